@@ -0,0 +1,23 @@
+package org.xwiki.contrib.xwikifs.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * BenchmarkRunner.
+ *
+ * Runs the benchmarks selected on the command line (all of them by default) with the GC profiler enabled, so that
+ * allocation rates are reported along with timings. Any standard JMH option can be passed.
+ *
+ * @version $Id$
+ */
+public class BenchmarkRunner
+{
+    public static void main(String[] args) throws Exception
+    {
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build())
+                .run();
+    }
+}
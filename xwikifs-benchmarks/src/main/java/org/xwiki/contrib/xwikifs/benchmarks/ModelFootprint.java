@@ -0,0 +1,80 @@
+package org.xwiki.contrib.xwikifs.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.xwiki.contrib.xwikifs.TreeIndex;
+import org.xwiki.contrib.xwikifs.model.XWikiClassRegistry;
+import org.xwiki.contrib.xwikifs.model.XWikiDocument;
+
+/**
+ * ModelFootprint.
+ *
+ * Reports the heap retained by the in-memory model of a synthetic tree, in bytes per object and per 10k objects. The
+ * whole tree is read with a shared class registry, like a XAR build does, and kept in memory while the heap is
+ * measured. Run it with:
+ *
+ * <pre>
+ * java -cp xwikifs-benchmarks/target/benchmarks.jar org.xwiki.contrib.xwikifs.benchmarks.ModelFootprint \
+ *     [pages] [objectsPerPage]
+ * </pre>
+ *
+ * @version $Id$
+ */
+public class ModelFootprint
+{
+    private static final int GC_RUNS = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int objectsPerPage = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        File root = new File(new File(System.getProperty("java.io.tmpdir")),
+                String.format("xwikifs-footprint-%s", Long.toString(System.nanoTime())));
+        root.mkdirs();
+
+        try {
+            new TreeGenerator().setPages(pages).setObjectsPerPage(objectsPerPage).setContentSize(64).generate(root);
+
+            XWikiClassRegistry classRegistry = new XWikiClassRegistry();
+            List<File> documentDirectories = new ArrayList<File>();
+            for (File documentDirectory : root.listFiles()) {
+                documentDirectories.add(documentDirectory);
+            }
+
+            long before = getUsedHeap();
+
+            List<XWikiDocument> documents = new ArrayList<XWikiDocument>();
+            for (File documentDirectory : documentDirectories) {
+                documents.add(XWikiDocument.createFromDirectory(TreeIndex.scanDocument(documentDirectory),
+                        classRegistry));
+            }
+
+            long retained = getUsedHeap() - before;
+            long objects = 0;
+            for (XWikiDocument document : documents) {
+                objects += document.getObjects() != null ? document.getObjects().size() : 0;
+            }
+
+            System.out.println(String.format("%d documents, %d objects, %d classes: %d bytes retained, %d bytes per"
+                    + " object, %.2f MB per 10k objects", documents.size(), objects, classRegistry.size(), retained,
+                    retained / Math.max(objects, 1), retained * 10000.0 / Math.max(objects, 1) / (1024 * 1024)));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    private static long getUsedHeap() throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < GC_RUNS; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
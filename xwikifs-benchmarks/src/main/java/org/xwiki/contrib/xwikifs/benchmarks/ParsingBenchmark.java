@@ -0,0 +1,42 @@
+package org.xwiki.contrib.xwikifs.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.xwikifs.Constants;
+import org.xwiki.contrib.xwikifs.MapWithReferences;
+import org.xwiki.contrib.xwikifs.model.XWikiDocument;
+
+/**
+ * ParsingBenchmark.
+ *
+ * Measures the parsing of YAML files with references and of whole document directories.
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark
+{
+    @Benchmark
+    public MapWithReferences fromYaml(TreeState tree) throws Exception
+    {
+        return MapWithReferences.fromYaml(new File(tree.getDocumentDirectory(), Constants.DOCUMENT_FILE_NAME));
+    }
+
+    @Benchmark
+    public XWikiDocument createFromDirectory(TreeState tree) throws Exception
+    {
+        return XWikiDocument.createFromDirectory(tree.getDocumentDirectory());
+    }
+}
@@ -0,0 +1,56 @@
+package org.xwiki.contrib.xwikifs.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullWriter;
+import org.dom4j.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.xwikifs.StreamingXMLWriter;
+import org.xwiki.contrib.xwikifs.XARUtils;
+import org.xwiki.contrib.xwikifs.model.XWikiDocument;
+
+/**
+ * RenderingBenchmark.
+ *
+ * Measures the XML serialization of a single document that has already been parsed.
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderingBenchmark
+{
+    private XWikiDocument xwikiDocument;
+
+    @Setup(Level.Trial)
+    public void parse(TreeState tree) throws Exception
+    {
+        xwikiDocument = XWikiDocument.createFromDirectory(tree.getDocumentDirectory());
+    }
+
+    @Benchmark
+    public void writeXWikiDocument() throws Exception
+    {
+        XARUtils.writeXWikiDocument(xwikiDocument, new StreamingXMLWriter(new NullWriter(), true));
+    }
+
+    @Benchmark
+    public Document getXMLFromXWikiDocument() throws Exception
+    {
+        return XARUtils.getXMLFromXWikiDocument(xwikiDocument);
+    }
+}
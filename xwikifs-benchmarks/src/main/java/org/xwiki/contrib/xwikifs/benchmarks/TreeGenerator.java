@@ -0,0 +1,149 @@
+package org.xwiki.contrib.xwikifs.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.xwiki.contrib.xwikifs.Constants;
+
+/**
+ * TreeGenerator.
+ *
+ * Generates synthetic XWikiFS trees. The generated content only depends on the parameters, so that every run of a
+ * benchmark works on the same data.
+ *
+ * @version $Id$
+ */
+public class TreeGenerator
+{
+    public static final String CLASS_NAME = "Benchmark.BenchmarkClass";
+
+    private static final int SPACES = 10;
+
+    private int pages = 100;
+
+    private int objectsPerPage = 10;
+
+    private int contentSize = 4096;
+
+    private int attachmentSize = 0;
+
+    public TreeGenerator setPages(int pages)
+    {
+        this.pages = pages;
+        return this;
+    }
+
+    public TreeGenerator setObjectsPerPage(int objectsPerPage)
+    {
+        this.objectsPerPage = objectsPerPage;
+        return this;
+    }
+
+    public TreeGenerator setContentSize(int contentSize)
+    {
+        this.contentSize = contentSize;
+        return this;
+    }
+
+    public TreeGenerator setAttachmentSize(int attachmentSize)
+    {
+        this.attachmentSize = attachmentSize;
+        return this;
+    }
+
+    /**
+     * Generate the tree.
+     *
+     * @param root the root directory of the tree (created if it doesn't exist).
+     * @throws IOException if an error occurs.
+     */
+    public void generate(File root) throws IOException
+    {
+        Random random = new Random(pages);
+
+        for (int i = 0; i < pages; i++) {
+            File documentDirectory = new File(root, String.format("Space%d.Page%d", i % SPACES, i));
+            documentDirectory.mkdirs();
+
+            write(new File(documentDirectory, Constants.DOCUMENT_FILE_NAME),
+                    String.format("title: Page %d\nparent: Main.WebHome\ncontent: -> content.xwiki\n", i));
+            write(new File(documentDirectory, "content.xwiki"), generateText(random, contentSize));
+
+            if (objectsPerPage > 0) {
+                File objectsDirectory = new File(documentDirectory, Constants.OBJECTS_DIRECTORY_NAME);
+                File classInfoDirectory = new File(objectsDirectory, Constants.CLASSINFO_DIRECTORY_NAME);
+                classInfoDirectory.mkdirs();
+
+                write(new File(classInfoDirectory, CLASS_NAME + Constants.CLASS_FILE_EXTENSION), generateClass());
+
+                for (int j = 0; j < objectsPerPage; j++) {
+                    String objectName = String.format("%s-%d", CLASS_NAME, j);
+                    write(new File(objectsDirectory, objectName + Constants.OBJECT_FILE_EXTENSION), String.format(
+                            "author: XWiki.Admin\nstate: open\ncomment: -> %s/comment.txt\n", objectName));
+
+                    File commentFile = new File(new File(objectsDirectory, objectName), "comment.txt");
+                    commentFile.getParentFile().mkdirs();
+                    write(commentFile, generateText(random, contentSize / 8));
+                }
+            }
+
+            if (attachmentSize > 0) {
+                File attachmentsDirectory = new File(documentDirectory, Constants.ATTACHMENTS_DIRECTORY_NAME);
+                attachmentsDirectory.mkdirs();
+
+                /* Random data doesn't compress, like the images and archives usually attached to pages. */
+                byte[] data = new byte[attachmentSize];
+                random.nextBytes(data);
+                FileOutputStream out = new FileOutputStream(new File(attachmentsDirectory, "image.png"));
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+            }
+        }
+    }
+
+    private String generateClass()
+    {
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("name: %s\ncustomClass: null\nvalidationScript: null\nproperties:\n", CLASS_NAME));
+        appendProperty(result, "author", 1, "com.xpn.xwiki.objects.classes.StringClass");
+        appendProperty(result, "comment", 2, "com.xpn.xwiki.objects.classes.TextAreaClass");
+        appendProperty(result, "state", 3, "com.xpn.xwiki.objects.classes.StringClass");
+
+        return result.toString();
+    }
+
+    private void appendProperty(StringBuilder builder, String name, int number, String classType)
+    {
+        builder.append(String.format("  %s:\n    disabled: 0\n    name: %s\n    number: %d\n    prettyName: %s\n"
+                + "    size: 30\n    unmodifiable: 0\n    classType: %s\n", name, name, number, name, classType));
+    }
+
+    private String generateText(Random random, int size)
+    {
+        String[] words = {"XWiki", "page", "content", "with", "<b>markup</b>", "&", "{{velocity}}", "text", "\n"};
+
+        StringBuilder result = new StringBuilder(size + 16);
+        while (result.length() < size) {
+            result.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        result.setLength(size);
+
+        return result.toString();
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            IOUtils.write(content, out, "UTF-8");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.xwiki.contrib.xwikifs.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * TreeState.
+ *
+ * A synthetic XWikiFS tree generated in a temporary directory before each trial.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+public class TreeState
+{
+    @Param("100")
+    public int pages;
+
+    @Param("10")
+    public int objectsPerPage;
+
+    @Param("4096")
+    public int contentSize;
+
+    @Param("0")
+    public int attachmentSize;
+
+    public File root;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException
+    {
+        root = new File(new File(System.getProperty("java.io.tmpdir")),
+                String.format("xwikifs-benchmark-%s", Long.toString(System.nanoTime())));
+        root.mkdirs();
+
+        new TreeGenerator().setPages(pages).setObjectsPerPage(objectsPerPage).setContentSize(contentSize)
+                .setAttachmentSize(attachmentSize).generate(root);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException
+    {
+        FileUtils.deleteDirectory(root);
+    }
+
+    /**
+     * @return the directory of the first document of the tree.
+     */
+    public File getDocumentDirectory()
+    {
+        return new File(root, "Space0.Page0");
+    }
+}
@@ -0,0 +1,59 @@
+package org.xwiki.contrib.xwikifs.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.xwikifs.CompressionPolicy;
+import org.xwiki.contrib.xwikifs.XWikiFS;
+
+/**
+ * XARBenchmark.
+ *
+ * Measures the throughput of whole-tree operations: building a XAR and reformatting the tree.
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XARBenchmark
+{
+    @Param({"1", "4"})
+    public int parallelism;
+
+    @Param("deflate")
+    public String attachmentCompression;
+
+    @Param("true")
+    public boolean prettyPrint;
+
+    @Benchmark
+    public void writeXAR(TreeState tree) throws Exception
+    {
+        XWikiFS xwikiFS = new XWikiFS(tree.root);
+        xwikiFS.setParallelism(parallelism);
+        xwikiFS.getCompressionPolicy()
+                .setAttachmentCompression(CompressionPolicy.AttachmentCompression.parse(attachmentCompression));
+        xwikiFS.setPrettyPrint(prettyPrint);
+        xwikiFS.writeXAR(new NullOutputStream());
+    }
+
+    @Benchmark
+    public void reformat(TreeState tree) throws Exception
+    {
+        new XWikiFS(tree.root).reformat();
+    }
+}
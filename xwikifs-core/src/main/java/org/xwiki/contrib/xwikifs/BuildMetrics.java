@@ -0,0 +1,615 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * BuildMetrics.
+ *
+ * Collects where the time of a XAR build goes: the time spent in each phase of the build, the number of files opened,
+ * the number of bytes read and written, and the cost of each document.
+ *
+ * Each thread taking part in the build attaches a recorder, and the code of the build reports the phases it enters
+ * and the files it reads through the static methods of this class. Phases are exclusive: entering a phase pauses the
+ * current one, so the time of a phase doesn't include the time of the phases nested in it. When no recorder is
+ * attached to the current thread, which is always the case when metrics are disabled, the static methods do nothing.
+ *
+ * @version $Id$
+ */
+public class BuildMetrics
+{
+    /**
+     * The phases of a build.
+     */
+    public enum Phase
+    {
+        /**
+         * Listing document directories and building the document model.
+         */
+        READ_DOCUMENTS("document reading"),
+
+        /**
+         * Reading and parsing the YAML files.
+         */
+        PARSE_YAML("YAML parsing"),
+
+        /**
+         * Reading referenced files.
+         */
+        READ_REFERENCES("reference reading"),
+
+        /**
+         * Writing the XML serialization of documents.
+         */
+        WRITE_XML("XML writing"),
+
+        /**
+         * Reading and Base64-encoding attachments.
+         */
+        ENCODE_ATTACHMENTS("Base64 encoding"),
+
+        /**
+         * Compressing and writing the ZIP entries.
+         */
+        COMPRESS("ZIP compression"),
+
+        /**
+         * Computing the keys of the build cache, reading and writing cache entries.
+         */
+        CACHE("build cache"),
+
+        /**
+         * Anything else, including waiting for workers.
+         */
+        OTHER("other");
+
+        private final String label;
+
+        Phase(String label)
+        {
+            this.label = label;
+        }
+
+        /**
+         * @return a human readable name of the phase.
+         */
+        public String getLabel()
+        {
+            return label;
+        }
+    }
+
+    /**
+     * The default number of documents listed in the reports.
+     */
+    public static final int DEFAULT_SLOWEST_DOCUMENTS = 10;
+
+    private static final ThreadLocal<Recorder> RECORDER = new ThreadLocal<Recorder>();
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private static final String NEWLINE = "\n";
+
+    private static final Comparator<DocumentMetrics> SLOWEST_FIRST = new Comparator<DocumentMetrics>()
+    {
+        @Override public int compare(DocumentMetrics first, DocumentMetrics second)
+        {
+            return Long.compare(second.nanos, first.nanos);
+        }
+    };
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    private long filesOpened;
+
+    private long bytesRead;
+
+    private long classesParsed;
+
+    private long classParseNanos;
+
+    private long bytesWritten;
+
+    private long startTime;
+
+    private int running;
+
+    private long wallNanos;
+
+    private int slowestDocuments = DEFAULT_SLOWEST_DOCUMENTS;
+
+    private final ConcurrentLinkedQueue<DocumentMetrics> documents = new ConcurrentLinkedQueue<DocumentMetrics>();
+
+    /**
+     * @return the number of documents listed in the reports.
+     */
+    public int getSlowestDocuments()
+    {
+        return slowestDocuments;
+    }
+
+    /**
+     * @param slowestDocuments the number of documents listed in the reports, slowest first.
+     */
+    public void setSlowestDocuments(int slowestDocuments)
+    {
+        if (slowestDocuments < 0) {
+            throw new IllegalArgumentException(String.format("Invalid number of documents %d", slowestDocuments));
+        }
+
+        this.slowestDocuments = slowestDocuments;
+    }
+
+    /**
+     * Start measuring a build. Builds running concurrently, like the shards of a XAR, are measured as a single build.
+     */
+    synchronized void start()
+    {
+        if (running++ == 0) {
+            startTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Stop measuring a build.
+     *
+     * @param bytesWritten the size of the XAR.
+     * @return true if no other build is running.
+     */
+    synchronized boolean stop(long bytesWritten)
+    {
+        this.bytesWritten += bytesWritten;
+        if (--running == 0) {
+            this.wallNanos += System.nanoTime() - startTime;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Attach a recorder to the current thread. Until {@link #detach()} is called, the phases entered and the files
+     * read by the current thread are recorded.
+     */
+    void attach()
+    {
+        RECORDER.set(new Recorder());
+    }
+
+    /**
+     * Detach the recorder of the current thread and add what it recorded to the metrics.
+     */
+    void detach()
+    {
+        Recorder recorder = RECORDER.get();
+        if (recorder == null) {
+            return;
+        }
+
+        RECORDER.remove();
+        recorder.switchPhase(Phase.OTHER);
+
+        synchronized (this) {
+            for (int i = 0; i < phaseNanos.length; i++) {
+                phaseNanos[i] += recorder.phaseNanos[i];
+            }
+            filesOpened += recorder.filesOpened;
+            bytesRead += recorder.bytesRead;
+            classesParsed += recorder.classesParsed;
+            classParseNanos += recorder.classParseNanos;
+        }
+    }
+
+    /**
+     * @return a marker of the cost of the current thread so far, to be given to
+     *         {@link #recordDocument(String, long[], long)}, or null if no recorder is attached.
+     */
+    static long[] mark()
+    {
+        Recorder recorder = RECORDER.get();
+        if (recorder == null) {
+            return null;
+        }
+
+        return new long[] {System.nanoTime(), recorder.bytesRead};
+    }
+
+    /**
+     * Record the cost of a document, measured by the current thread since a marker was taken.
+     *
+     * @param documentId the id of the document.
+     * @param mark the marker taken when the current thread started working on the document (can be null).
+     * @param size the size of the XML serialization of the document.
+     */
+    void recordDocument(String documentId, long[] mark, long size)
+    {
+        Recorder recorder = RECORDER.get();
+        if (recorder == null || mark == null) {
+            return;
+        }
+
+        documents.add(new DocumentMetrics(documentId, System.nanoTime() - mark[0], recorder.bytesRead - mark[1], size));
+    }
+
+    /**
+     * Enter a phase, pausing the current one.
+     *
+     * @param phase the phase to be entered.
+     * @return the phase to be given back to {@link #exit(Phase)} when leaving the entered phase, or null if no recorder
+     *         is attached to the current thread.
+     */
+    public static Phase enter(Phase phase)
+    {
+        Recorder recorder = RECORDER.get();
+
+        return recorder != null ? recorder.switchPhase(phase) : null;
+    }
+
+    /**
+     * Leave the current phase, resuming the previous one.
+     *
+     * @param previous the value returned by the matching {@link #enter(Phase)} call.
+     */
+    public static void exit(Phase previous)
+    {
+        if (previous != null) {
+            Recorder recorder = RECORDER.get();
+            if (recorder != null) {
+                recorder.switchPhase(previous);
+            }
+        }
+    }
+
+    /**
+     * Record that a file is opened and read entirely.
+     *
+     * @param file the file.
+     */
+    public static void fileRead(File file)
+    {
+        Recorder recorder = RECORDER.get();
+        if (recorder != null) {
+            recorder.filesOpened++;
+            recorder.bytesRead += file.length();
+        }
+    }
+
+    /**
+     * Record that a class file has been parsed.
+     *
+     * @param nanos the time spent parsing the class file, nested phases included.
+     */
+    public static void classParsed(long nanos)
+    {
+        Recorder recorder = RECORDER.get();
+        if (recorder != null) {
+            recorder.classesParsed++;
+            recorder.classParseNanos += nanos;
+        }
+    }
+
+    /**
+     * @return the current time for measuring a duration given to {@link #classParsed(long)}, or 0 if no recorder is
+     *         attached to the current thread.
+     */
+    public static long now()
+    {
+        return RECORDER.get() != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Make the reads from a reader on a referenced file count as reference reading. Streamed references are read
+     * while the XML is written, so the time spent reading them would be counted as XML writing otherwise.
+     *
+     * @param reader a reader on a referenced file.
+     * @return the reader to be used instead.
+     */
+    public static Reader track(Reader reader)
+    {
+        if (RECORDER.get() == null) {
+            return reader;
+        }
+
+        return new FilterReader(reader)
+        {
+            @Override public int read() throws IOException
+            {
+                Phase previous = enter(Phase.READ_REFERENCES);
+                try {
+                    return super.read();
+                } finally {
+                    exit(previous);
+                }
+            }
+
+            @Override public int read(char[] buffer, int offset, int length) throws IOException
+            {
+                Phase previous = enter(Phase.READ_REFERENCES);
+                try {
+                    return super.read(buffer, offset, length);
+                } finally {
+                    exit(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param phase a phase.
+     * @return the time spent in the phase, summed over all the threads, in nanoseconds.
+     */
+    public synchronized long getPhaseNanos(Phase phase)
+    {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return the number of files opened.
+     */
+    public synchronized long getFilesOpened()
+    {
+        return filesOpened;
+    }
+
+    /**
+     * @return the number of bytes read from files.
+     */
+    public synchronized long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * @return the number of bytes of the XAR.
+     */
+    public synchronized long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of class files parsed.
+     */
+    public synchronized long getClassesParsed()
+    {
+        return classesParsed;
+    }
+
+    /**
+     * @return the number of documents measured.
+     */
+    public int getDocumentCount()
+    {
+        return documents.size();
+    }
+
+    /**
+     * @return the elapsed time of the build, in nanoseconds.
+     */
+    public synchronized long getWallNanos()
+    {
+        return wallNanos;
+    }
+
+    /**
+     * @return the slowest documents, slowest first.
+     */
+    public List<DocumentMetrics> getSlowest()
+    {
+        List<DocumentMetrics> result = new ArrayList<DocumentMetrics>(documents);
+        Collections.sort(result, SLOWEST_FIRST);
+
+        return result.subList(0, Math.min(slowestDocuments, result.size()));
+    }
+
+    /**
+     * @return the metrics formatted as a table, one line per phase, followed by the counters and the slowest
+     *         documents.
+     */
+    public synchronized String toTable()
+    {
+        long totalNanos = 0;
+        for (long nanos : phaseNanos) {
+            totalNanos += nanos;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT, "Build metrics: %d documents in %.1f ms", documents.size(),
+                wallNanos / NANOS_PER_MILLI)).append(NEWLINE);
+        builder.append(String.format(Locale.ROOT, "  %-20s %12s %7s", "Phase", "Time (ms)", "%")).append(NEWLINE);
+        for (Phase phase : Phase.values()) {
+            long nanos = phaseNanos[phase.ordinal()];
+            builder.append(String.format(Locale.ROOT, "  %-20s %12.1f %7.1f", phase.getLabel(),
+                    nanos / NANOS_PER_MILLI, totalNanos > 0 ? nanos * 100.0 / totalNanos : 0.0)).append(NEWLINE);
+        }
+        builder.append(String.format(Locale.ROOT, "  Files opened: %d, bytes read: %d, bytes written: %d",
+                filesOpened, bytesRead, bytesWritten)).append(NEWLINE);
+        builder.append(String.format(Locale.ROOT, "  Class files parsed: %d (%.1f ms)", classesParsed,
+                classParseNanos / NANOS_PER_MILLI));
+
+        List<DocumentMetrics> slowest = getSlowest();
+        if (!slowest.isEmpty()) {
+            builder.append(NEWLINE).append("  Slowest documents:");
+            for (DocumentMetrics document : slowest) {
+                builder.append(NEWLINE).append(String.format(Locale.ROOT,
+                        "    %-40s %10.1f ms %12d bytes read %12d bytes written", document.getDocumentId(),
+                        document.getNanos() / NANOS_PER_MILLI, document.getBytesRead(), document.getSize()));
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * @return the metrics as a JSON object.
+     */
+    public synchronized String toJSON()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\n");
+        builder.append(String.format(Locale.ROOT, "  \"documents\": %d,\n", documents.size()));
+        builder.append(String.format(Locale.ROOT, "  \"wallTimeMillis\": %.3f,\n", wallNanos / NANOS_PER_MILLI));
+        builder.append("  \"phases\": {");
+        for (Phase phase : Phase.values()) {
+            builder.append(phase.ordinal() > 0 ? "," : "").append("\n");
+            builder.append(String.format(Locale.ROOT, "    \"%s\": %.3f", phase.name().toLowerCase(Locale.ROOT),
+                    phaseNanos[phase.ordinal()] / NANOS_PER_MILLI));
+        }
+        builder.append("\n  },\n");
+        builder.append(String.format(Locale.ROOT, "  \"filesOpened\": %d,\n", filesOpened));
+        builder.append(String.format(Locale.ROOT, "  \"bytesRead\": %d,\n", bytesRead));
+        builder.append(String.format(Locale.ROOT, "  \"bytesWritten\": %d,\n", bytesWritten));
+        builder.append(String.format(Locale.ROOT, "  \"classFilesParsed\": %d,\n", classesParsed));
+        builder.append(String.format(Locale.ROOT, "  \"classParseTimeMillis\": %.3f,\n",
+                classParseNanos / NANOS_PER_MILLI));
+        builder.append("  \"slowestDocuments\": [");
+        List<DocumentMetrics> slowest = getSlowest();
+        for (int i = 0; i < slowest.size(); i++) {
+            DocumentMetrics document = slowest.get(i);
+            builder.append(i > 0 ? "," : "").append("\n");
+            builder.append(String.format(Locale.ROOT,
+                    "    {\"id\": \"%s\", \"timeMillis\": %.3f, \"bytesRead\": %d, \"bytesWritten\": %d}",
+                    escapeJSON(document.getDocumentId()), document.getNanos() / NANOS_PER_MILLI,
+                    document.getBytesRead(), document.getSize()));
+        }
+        builder.append(slowest.isEmpty() ? "]\n" : "\n  ]\n");
+        builder.append("}\n");
+
+        return builder.toString();
+    }
+
+    /**
+     * Write the metrics as a JSON report.
+     *
+     * @param file the report file.
+     * @throws IOException if an error occurs.
+     */
+    public void writeJSON(File file) throws IOException
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(toJSON());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String escapeJSON(String value)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < ' ') {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * The cost of a document.
+     */
+    public static class DocumentMetrics
+    {
+        private final String documentId;
+
+        private final long nanos;
+
+        private final long bytesRead;
+
+        private final long size;
+
+        DocumentMetrics(String documentId, long nanos, long bytesRead, long size)
+        {
+            this.documentId = documentId;
+            this.nanos = nanos;
+            this.bytesRead = bytesRead;
+            this.size = size;
+        }
+
+        /**
+         * @return the id of the document.
+         */
+        public String getDocumentId()
+        {
+            return documentId;
+        }
+
+        /**
+         * @return the time spent reading and serializing the document, in nanoseconds.
+         */
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        /**
+         * @return the number of bytes read from files for the document.
+         */
+        public long getBytesRead()
+        {
+            return bytesRead;
+        }
+
+        /**
+         * @return the size of the XML serialization of the document.
+         */
+        public long getSize()
+        {
+            return size;
+        }
+    }
+
+    /**
+     * What a thread records.
+     */
+    private static class Recorder
+    {
+        private final long[] phaseNanos = new long[Phase.values().length];
+
+        private Phase phase = Phase.OTHER;
+
+        private long since = System.nanoTime();
+
+        private long filesOpened;
+
+        private long bytesRead;
+
+        private long classesParsed;
+
+        private long classParseNanos;
+
+        /**
+         * Charge the time elapsed since the last switch to the current phase and make another phase current.
+         *
+         * @param newPhase the new current phase.
+         * @return the previous current phase.
+         */
+        Phase switchPhase(Phase newPhase)
+        {
+            long now = System.nanoTime();
+            phaseNanos[phase.ordinal()] += now - since;
+            since = now;
+
+            Phase previous = phase;
+            phase = newPhase;
+
+            return previous;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * CompressionPolicy.
+ *
+ * Decides how each entry of a XAR is compressed. Page entries are deflated with the configured level, except for the
+ * pages that embed already-compressed attachments (images, archives, media...): their Base64-encoded content cannot be
+ * compressed much further, so spending CPU time on a full deflate is wasted. Such pages can instead be compressed with
+ * Huffman coding only, which still removes most of the Base64 overhead at a fraction of the cost, or stored as is.
+ *
+ * @version $Id$
+ */
+public class CompressionPolicy
+{
+    /**
+     * How the pages embedding already-compressed attachments are compressed.
+     */
+    public enum AttachmentCompression
+    {
+        /**
+         * Deflate with the configured level, like any other page.
+         */
+        DEFLATE,
+
+        /**
+         * Deflate with Huffman coding only.
+         */
+        FAST,
+
+        /**
+         * Don't compress.
+         */
+        STORE;
+
+        /**
+         * @param value the name of a mode, case insensitive.
+         * @return the corresponding mode.
+         */
+        public static AttachmentCompression parse(String value)
+        {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                String expected = Arrays.toString(values()).toLowerCase(Locale.ROOT);
+                throw new IllegalArgumentException(
+                        String.format("Invalid attachment compression %s, expected one of %s", value, expected), e);
+            }
+        }
+    }
+
+    /**
+     * The default size above which already-compressed attachments make a page use the attachment compression.
+     */
+    public static final long DEFAULT_ATTACHMENT_THRESHOLD = 64 * 1024;
+
+    /**
+     * The extensions of the file formats that are already compressed.
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList("png", "jpg", "jpeg",
+            "gif", "webp", "ico", "zip", "jar", "war", "xar", "xip", "gz", "tgz", "bz2", "xz", "7z", "rar", "mp3",
+            "ogg", "mp4", "webm", "avi", "mov", "woff", "woff2", "docx", "xlsx", "pptx", "odt", "ods", "odp"));
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    private AttachmentCompression attachmentCompression = AttachmentCompression.DEFLATE;
+
+    private long attachmentThreshold = DEFAULT_ATTACHMENT_THRESHOLD;
+
+    /**
+     * @return the compression level used for deflated entries.
+     */
+    public int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * @param level the compression level used for deflated entries, from 0 to 9, or -1 for the default level.
+     */
+    public void setLevel(int level)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(String.format("Invalid compression level %d", level));
+        }
+
+        this.level = level;
+    }
+
+    /**
+     * @return how the pages embedding already-compressed attachments are compressed.
+     */
+    public AttachmentCompression getAttachmentCompression()
+    {
+        return attachmentCompression;
+    }
+
+    /**
+     * @param attachmentCompression how the pages embedding already-compressed attachments are compressed.
+     */
+    public void setAttachmentCompression(AttachmentCompression attachmentCompression)
+    {
+        this.attachmentCompression = attachmentCompression;
+    }
+
+    /**
+     * @return the total size of already-compressed attachments above which a page uses the attachment compression.
+     */
+    public long getAttachmentThreshold()
+    {
+        return attachmentThreshold;
+    }
+
+    /**
+     * @param attachmentThreshold the total size, in bytes, of already-compressed attachments above which a page uses
+     *            the attachment compression.
+     */
+    public void setAttachmentThreshold(long attachmentThreshold)
+    {
+        this.attachmentThreshold = attachmentThreshold;
+    }
+
+    /**
+     * @return the compression of the entries that don't contain a page, like package.xml.
+     */
+    public Compression getDefaultCompression()
+    {
+        return new Compression(ZipEntry.DEFLATED, level, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /**
+     * Get the compression of the entry of a page. Only the attachment file names and sizes are looked at, so that the
+     * compression can be chosen without reading the document.
+     *
+     * @param documentDirectory the directory containing the XWiki document data.
+     * @return the compression of the entry.
+     */
+    public Compression getCompression(File documentDirectory)
+    {
+        if (attachmentCompression == AttachmentCompression.DEFLATE) {
+            return getDefaultCompression();
+        }
+
+        long compressedSize = 0;
+
+        File[] attachments = new File(documentDirectory, Constants.ATTACHMENTS_DIRECTORY_NAME).listFiles();
+        if (attachments != null) {
+            for (File attachment : attachments) {
+                if (isCompressed(attachment.getName())) {
+                    compressedSize += attachment.length();
+                }
+            }
+        }
+
+        if (compressedSize == 0 || compressedSize < attachmentThreshold) {
+            return getDefaultCompression();
+        }
+
+        if (attachmentCompression == AttachmentCompression.STORE) {
+            return new Compression(ZipEntry.STORED, Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        }
+
+        return new Compression(ZipEntry.DEFLATED, Deflater.BEST_SPEED, Deflater.HUFFMAN_ONLY);
+    }
+
+    /**
+     * @return a string describing the policy, for logging.
+     */
+    @Override public String toString()
+    {
+        return String.format("level=%d,attachmentCompression=%s,attachmentThreshold=%d", level,
+                attachmentCompression.name().toLowerCase(Locale.ROOT), attachmentThreshold);
+    }
+
+    /**
+     * @param fileName a file name.
+     * @return true if the extension of the file name is the one of an already-compressed file format.
+     */
+    private static boolean isCompressed(String fileName)
+    {
+        int index = fileName.lastIndexOf('.');
+
+        return index != -1 && COMPRESSED_EXTENSIONS.contains(fileName.substring(index + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * The compression parameters of a ZIP entry.
+     */
+    public static class Compression
+    {
+        private final int method;
+
+        private final int level;
+
+        private final int strategy;
+
+        Compression(int method, int level, int strategy)
+        {
+            this.method = method;
+            this.level = level;
+            this.strategy = strategy;
+        }
+
+        /**
+         * @return the ZIP method, either {@link ZipEntry#DEFLATED} or {@link ZipEntry#STORED}.
+         */
+        public int getMethod()
+        {
+            return method;
+        }
+
+        /**
+         * @return the deflate level.
+         */
+        public int getLevel()
+        {
+            return level;
+        }
+
+        /**
+         * @return the deflate strategy.
+         */
+        public int getStrategy()
+        {
+            return strategy;
+        }
+    }
+}
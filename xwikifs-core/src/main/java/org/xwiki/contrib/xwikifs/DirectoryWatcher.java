@@ -0,0 +1,131 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DirectoryWatcher.
+ *
+ * Watches a directory tree for changes and reports them grouped by the top-level entry of the tree they belong to
+ * (i.e., for an XWikiFS root, by document directory name). Changes are batched: once a change is detected, the watcher
+ * waits until no other change happens for a given delay, so that saving many files at once results in a single
+ * notification.
+ *
+ * @version $Id$
+ */
+public class DirectoryWatcher implements Closeable
+{
+    private final Path root;
+
+    private final WatchService watchService;
+
+    /**
+     * The directories registered to the watch service, indexed by their watch key.
+     */
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+    /**
+     * Constructor.
+     *
+     * @param root the root of the directory tree to be watched.
+     * @throws IOException if an error occurs.
+     */
+    public DirectoryWatcher(File root) throws IOException
+    {
+        this.root = root.toPath();
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        register(this.root);
+    }
+
+    /**
+     * Wait for changes.
+     *
+     * @param delay the time, in milliseconds, without any further change after which a batch of changes is reported.
+     * @return the names of the top-level entries of the tree that have changed.
+     * @throws IOException if an error occurs.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public Set<String> take(long delay) throws IOException, InterruptedException
+    {
+        Set<String> result = new TreeSet<String>();
+
+        WatchKey key = watchService.take();
+        while (key != null) {
+            Path directory = directories.get(key);
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    /* Events have been lost: consider that everything has changed. */
+                    String[] names = root.toFile().list();
+                    if (names != null) {
+                        for (String name : names) {
+                            result.add(name);
+                        }
+                    }
+                } else if (directory != null) {
+                    Path path = directory.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        register(path);
+                    }
+
+                    Path relativePath = root.relativize(path);
+                    if (relativePath.getNameCount() > 0) {
+                        result.add(relativePath.getName(0).toString());
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                directories.remove(key);
+            }
+
+            key = watchService.poll(delay, TimeUnit.MILLISECONDS);
+        }
+
+        return result;
+    }
+
+    @Override public void close() throws IOException
+    {
+        watchService.close();
+    }
+
+    /**
+     * Register a directory and all its subdirectories to the watch service.
+     *
+     * @param directory the directory.
+     * @throws IOException if an error occurs.
+     */
+    private void register(Path directory) throws IOException
+    {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes)
+                    throws IOException
+            {
+                WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                directories.put(key, path);
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,110 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileContent.
+ *
+ * Reads the files of an XWikiFS through NIO channels. A file is read with a single read into a buffer of its exact
+ * size, or memory mapped when it is larger than {@link #MAPPING_THRESHOLD}, so that its bytes are not copied through
+ * intermediate stream buffers. Text files are always decoded as UTF-8, whatever the platform default charset.
+ *
+ * @version $Id$
+ */
+public final class FileContent
+{
+    /**
+     * The charset of all the text files of an XWikiFS.
+     */
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The size above which files are memory mapped instead of being read. Mapping a file has a fixed cost that is only
+     * worth paying for large files.
+     */
+    public static final long MAPPING_THRESHOLD = 256 * 1024;
+
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private FileContent()
+    {
+    }
+
+    /**
+     * Get the bytes of a file.
+     *
+     * @param file the file to be read.
+     * @return a buffer containing the whole file, positioned at its start. The buffer may be a read-only mapping of the
+     *         file.
+     * @throws IOException if an error occurs.
+     */
+    public static ByteBuffer read(File file) throws IOException
+    {
+        BuildMetrics.fileRead(file);
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > MAPPING_THRESHOLD) {
+                /* The mapping stays valid after the channel is closed. */
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException(String.format("%s has been truncated while being read", file));
+                }
+            }
+            /* Called on Buffer: the ByteBuffer override of flip() only exists since Java 9. */
+            ((Buffer) buffer).flip();
+
+            return buffer;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Get the text of a file, decoded as UTF-8. A leading byte order mark is removed.
+     *
+     * @param file the file to be read.
+     * @return the text of the file.
+     * @throws IOException if an error occurs.
+     */
+    public static String readString(File file) throws IOException
+    {
+        CharBuffer chars = UTF8.decode(read(file));
+        if (chars.hasRemaining() && chars.get(chars.position()) == BYTE_ORDER_MARK) {
+            ((Buffer) chars).position(chars.position() + 1);
+        }
+
+        return chars.toString();
+    }
+
+    /**
+     * Open a reader on the text of a file, decoded as UTF-8, for streaming it without keeping it in memory.
+     *
+     * @param file the file to be read.
+     * @return a reader on the text of the file, to be closed by the caller.
+     * @throws IOException if an error occurs.
+     */
+    public static Reader openReader(File file) throws IOException
+    {
+        BuildMetrics.fileRead(file);
+
+        return new InputStreamReader(Channels.newInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ)),
+                UTF8);
+    }
+}
@@ -1,7 +1,14 @@
 package org.xwiki.contrib.xwikifs;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -17,31 +24,188 @@ public class Main
 {
     private static final String ROOT_OPTION_NAME = "root";
 
+    private static final String PARALLELISM_OPTION_NAME = "parallelism";
+
+    private static final String CACHE_OPTION_NAME = "cache";
+
+    private static final String INDEX_OPTION_NAME = "index";
+
+    private static final String REPRODUCIBLE_OPTION_NAME = "reproducible";
+
+    private static final String TIMESTAMP_OPTION_NAME = "timestamp";
+
+    private static final String SOURCE_DATE_EPOCH_VARIABLE = "SOURCE_DATE_EPOCH";
+
+    private static final String COMPRESSION_LEVEL_OPTION_NAME = "compressionLevel";
+
+    private static final String ATTACHMENT_COMPRESSION_OPTION_NAME = "attachmentCompression";
+
+    private static final String ATTACHMENT_THRESHOLD_OPTION_NAME = "attachmentThreshold";
+
+    private static final String PARALLEL_COMPRESSION_OPTION_NAME = "parallelCompression";
+
+    private static final String COMPACT_OPTION_NAME = "compact";
+
+    private static final String METRICS_OPTION_NAME = "metrics";
+
+    private static final String METRICS_REPORT_OPTION_NAME = "metricsReport";
+
+    private static final String SLOWEST_DOCUMENTS_OPTION_NAME = "slowestDocuments";
+
+    private static final String INCLUDE_OPTION_NAME = "include";
+
+    private static final String EXCLUDE_OPTION_NAME = "exclude";
+
+    private static final String SHARD_BY_OPTION_NAME = "shardBy";
+
+    private static final String SHARD_SIZE_OPTION_NAME = "shardSize";
+
+    private static final String PORT_OPTION_NAME = "port";
+
+    private static final String MANIFEST_OPTION_NAME = "manifest";
+
     private static final String XAR_DEFAULT_NAME = "output.xar";
 
+    private static final String DELTA_XAR_DEFAULT_NAME = "delta.xar";
+
     private static final String XAR_ACTION = "xar";
 
     private static final String REFORMAT_ACTION = "reformat";
 
+    private static final String WATCH_ACTION = "watch";
+
+    private static final String IMPORT_ACTION = "import";
+
+    private static final String VALIDATE_ACTION = "validate";
+
+    private static final String SERVE_ACTION = "serve";
+
+    private static final String DELTA_ACTION = "delta";
+
     private static Options options;
 
     public static void main(String[] args) throws Exception
     {
         options = new Options();
-        options.addOption(new Option(ROOT_OPTION_NAME, true, "XWikiFS root"));
+        options.addOption(new Option(ROOT_OPTION_NAME, true,
+                String.format("XWikiFS root, or several roots separated by '%s'", File.pathSeparator)));
+        options.addOption(new Option(INCLUDE_OPTION_NAME, true,
+                "Comma-separated patterns of the spaces to include, with * and ? wildcards (default: all spaces)"));
+        options.addOption(new Option(EXCLUDE_OPTION_NAME, true,
+                "Comma-separated patterns of the spaces to exclude, with * and ? wildcards"));
+        options.addOption(new Option(SHARD_BY_OPTION_NAME, true,
+                "Split the XAR into shards built concurrently: none, space or size (default: none)"));
+        options.addOption(new Option(SHARD_SIZE_OPTION_NAME, true, String.format(
+                "Maximum size in bytes of the sources of a shard when sharding by size (default: %d)",
+                ShardingPolicy.DEFAULT_SHARD_SIZE)));
+        options.addOption(new Option(PARALLELISM_OPTION_NAME, true,
+                "Number of threads used for reading and serializing documents (default: 1)"));
+        options.addOption(new Option(CACHE_OPTION_NAME, true,
+                "Directory of the build cache used for skipping unchanged documents (default: no cache)"));
+        options.addOption(new Option(INDEX_OPTION_NAME, true,
+                "File of the tree index used for only scanning the directories that changed (default: no index)"));
+        options.addOption(new Option(REPRODUCIBLE_OPTION_NAME, false,
+                "Build byte-identical XARs from identical sources (deterministic guids and dates)"));
+        options.addOption(new Option(TIMESTAMP_OPTION_NAME, true, String.format(
+                "Fixed date used in the XAR, in seconds since the epoch or ISO-8601 (default: $%s, or 1980-01-01, in"
+                        + " reproducible mode, file modification dates otherwise)", SOURCE_DATE_EPOCH_VARIABLE)));
+        options.addOption(new Option(COMPRESSION_LEVEL_OPTION_NAME, true, "Deflate level, from 0 to 9 (default: 6)"));
+        options.addOption(new Option(ATTACHMENT_COMPRESSION_OPTION_NAME, true,
+                "Compression of pages with already-compressed attachments: deflate, fast or store (default: deflate)"));
+        options.addOption(new Option(ATTACHMENT_THRESHOLD_OPTION_NAME, true, String.format(
+                "Size in bytes of already-compressed attachments above which the attachment compression is used"
+                        + " (default: %d)", CompressionPolicy.DEFAULT_ATTACHMENT_THRESHOLD)));
+        options.addOption(new Option(PARALLEL_COMPRESSION_OPTION_NAME, false,
+                "Compress entries in parallel when the parallelism is greater than 1"));
+        options.addOption(new Option(COMPACT_OPTION_NAME, false,
+                "Write compact XML, without indentation (default: pretty printed XML)"));
+        options.addOption(new Option(METRICS_OPTION_NAME, false,
+                "Log the time spent in each build phase, the bytes read and written and the slowest documents"));
+        options.addOption(new Option(METRICS_REPORT_OPTION_NAME, true,
+                "File where the build metrics are written as JSON (implies -metrics)"));
+        options.addOption(new Option(SLOWEST_DOCUMENTS_OPTION_NAME, true, String.format(
+                "Number of slowest documents listed in the build metrics (default: %d)",
+                BuildMetrics.DEFAULT_SLOWEST_DOCUMENTS)));
+        options.addOption(new Option(PORT_OPTION_NAME, true,
+                String.format("Port of the serve action, on the loopback interface (default: %d)",
+                        XARServer.DEFAULT_PORT)));
+        options.addOption(new Option(MANIFEST_OPTION_NAME, true,
+                "File where the delta action writes the page hashes of the whole tree, for the next delta"));
 
         CommandLineParser commandLineParser = new BasicParser();
         CommandLine commandLine = commandLineParser.parse(options, args);
 
-        File root = new File(System.getProperty("user.dir"));
+        List<File> roots = new ArrayList<File>();
         if (commandLine.hasOption(ROOT_OPTION_NAME)) {
-            root = new File(commandLine.getOptionValue(ROOT_OPTION_NAME));
+            for (String path : commandLine.getOptionValue(ROOT_OPTION_NAME).split(File.pathSeparator)) {
+                roots.add(new File(path));
+            }
+        } else {
+            roots.add(new File(System.getProperty("user.dir")));
         }
+        File root = roots.get(0);
 
         if (commandLine.getArgs().length == 0) {
             printHelp();
         } else {
-            XWikiFS xwikiFS = new XWikiFS(root);
+            if (IMPORT_ACTION.equals(commandLine.getArgs()[0])) {
+                /* Pages can be imported in a new XWikiFS. */
+                root.mkdirs();
+            }
+
+            XWikiFS xwikiFS = new XWikiFS(roots);
+            if (commandLine.hasOption(INCLUDE_OPTION_NAME)) {
+                xwikiFS.setIncludes(Arrays.asList(commandLine.getOptionValue(INCLUDE_OPTION_NAME).split(",")));
+            }
+            if (commandLine.hasOption(EXCLUDE_OPTION_NAME)) {
+                xwikiFS.setExcludes(Arrays.asList(commandLine.getOptionValue(EXCLUDE_OPTION_NAME).split(",")));
+            }
+            if (commandLine.hasOption(SHARD_BY_OPTION_NAME)) {
+                xwikiFS.getShardingPolicy().setMode(
+                        ShardingPolicy.Mode.parse(commandLine.getOptionValue(SHARD_BY_OPTION_NAME)));
+            }
+            if (commandLine.hasOption(SHARD_SIZE_OPTION_NAME)) {
+                xwikiFS.getShardingPolicy().setShardSize(
+                        Long.parseLong(commandLine.getOptionValue(SHARD_SIZE_OPTION_NAME)));
+            }
+            if (commandLine.hasOption(PARALLELISM_OPTION_NAME)) {
+                xwikiFS.setParallelism(Integer.parseInt(commandLine.getOptionValue(PARALLELISM_OPTION_NAME)));
+            }
+            if (commandLine.hasOption(CACHE_OPTION_NAME)) {
+                xwikiFS.setCacheDirectory(new File(commandLine.getOptionValue(CACHE_OPTION_NAME)));
+            }
+            if (commandLine.hasOption(INDEX_OPTION_NAME)) {
+                xwikiFS.setIndexFile(new File(commandLine.getOptionValue(INDEX_OPTION_NAME)));
+            }
+            if (commandLine.hasOption(REPRODUCIBLE_OPTION_NAME)) {
+                xwikiFS.setReproducible(true);
+                xwikiFS.setTimestamp(XWikiFS.parseTimestamp(System.getenv(SOURCE_DATE_EPOCH_VARIABLE)));
+            }
+            if (commandLine.hasOption(TIMESTAMP_OPTION_NAME)) {
+                xwikiFS.setTimestamp(XWikiFS.parseTimestamp(commandLine.getOptionValue(TIMESTAMP_OPTION_NAME)));
+            }
+            if (commandLine.hasOption(COMPRESSION_LEVEL_OPTION_NAME)) {
+                xwikiFS.getCompressionPolicy().setLevel(
+                        Integer.parseInt(commandLine.getOptionValue(COMPRESSION_LEVEL_OPTION_NAME)));
+            }
+            if (commandLine.hasOption(ATTACHMENT_COMPRESSION_OPTION_NAME)) {
+                xwikiFS.getCompressionPolicy().setAttachmentCompression(CompressionPolicy.AttachmentCompression.parse(
+                        commandLine.getOptionValue(ATTACHMENT_COMPRESSION_OPTION_NAME)));
+            }
+            if (commandLine.hasOption(ATTACHMENT_THRESHOLD_OPTION_NAME)) {
+                xwikiFS.getCompressionPolicy().setAttachmentThreshold(
+                        Long.parseLong(commandLine.getOptionValue(ATTACHMENT_THRESHOLD_OPTION_NAME)));
+            }
+            xwikiFS.setParallelCompression(commandLine.hasOption(PARALLEL_COMPRESSION_OPTION_NAME));
+            xwikiFS.setPrettyPrint(!commandLine.hasOption(COMPACT_OPTION_NAME));
+            if (commandLine.hasOption(METRICS_OPTION_NAME) || commandLine.hasOption(METRICS_REPORT_OPTION_NAME)) {
+                BuildMetrics metrics = new BuildMetrics();
+                if (commandLine.hasOption(SLOWEST_DOCUMENTS_OPTION_NAME)) {
+                    metrics.setSlowestDocuments(
+                            Integer.parseInt(commandLine.getOptionValue(SLOWEST_DOCUMENTS_OPTION_NAME)));
+                }
+                xwikiFS.setMetrics(metrics);
+            }
 
             if (XAR_ACTION.equals(commandLine.getArgs()[0])) {
                 File xarFile = new File(root, XAR_DEFAULT_NAME);
@@ -49,9 +213,56 @@ public class Main
                     xarFile = new File(commandLine.getArgs()[1]);
                 }
 
-                xwikiFS.writeXAR(new FileOutputStream(xarFile));
+                xwikiFS.writeShardedXAR(xarFile);
+
+                if (commandLine.hasOption(METRICS_REPORT_OPTION_NAME)) {
+                    xwikiFS.getMetrics().writeJSON(new File(commandLine.getOptionValue(METRICS_REPORT_OPTION_NAME)));
+                }
             } else if (REFORMAT_ACTION.equals(commandLine.getArgs()[0])) {
                 xwikiFS.reformat();
+            } else if (WATCH_ACTION.equals(commandLine.getArgs()[0])) {
+                File output = new File(root, XAR_DEFAULT_NAME);
+                if (commandLine.getArgs().length == 2) {
+                    output = new File(commandLine.getArgs()[1]);
+                }
+
+                new XARWatcher(xwikiFS, output).run();
+            } else if (VALIDATE_ACTION.equals(commandLine.getArgs()[0])) {
+                if (!new XWikiFSValidator(xwikiFS).validate().isEmpty()) {
+                    System.exit(1);
+                }
+            } else if (SERVE_ACTION.equals(commandLine.getArgs()[0])) {
+                int port = XARServer.DEFAULT_PORT;
+                if (commandLine.hasOption(PORT_OPTION_NAME)) {
+                    port = Integer.parseInt(commandLine.getOptionValue(PORT_OPTION_NAME));
+                }
+
+                new XARServer(xwikiFS, port).run();
+            } else if (DELTA_ACTION.equals(commandLine.getArgs()[0]) && commandLine.getArgs().length >= 2) {
+                XARDelta delta = XARDelta.load(new File(commandLine.getArgs()[1]));
+
+                File xarFile = new File(root, DELTA_XAR_DEFAULT_NAME);
+                if (commandLine.getArgs().length == 3) {
+                    xarFile = new File(commandLine.getArgs()[2]);
+                }
+
+                OutputStream out = new FileOutputStream(xarFile);
+                try {
+                    xwikiFS.writeDeltaXAR(out, delta);
+                } finally {
+                    out.close();
+                }
+
+                if (commandLine.hasOption(MANIFEST_OPTION_NAME)) {
+                    delta.writeManifest(new File(commandLine.getOptionValue(MANIFEST_OPTION_NAME)));
+                }
+            } else if (IMPORT_ACTION.equals(commandLine.getArgs()[0]) && commandLine.getArgs().length == 2) {
+                InputStream in = new BufferedInputStream(new FileInputStream(commandLine.getArgs()[1]));
+                try {
+                    new XARImporter(root).importXAR(in);
+                } finally {
+                    in.close();
+                }
             } else {
                 printHelp();
             }
@@ -62,6 +273,8 @@ public class Main
     {
         HelpFormatter formatter = new HelpFormatter();
         formatter.printHelp("xwikifs [options...] action [params...]", null, options,
-                String.format("\nActions:\n%x [target]\n%s", XAR_ACTION, REFORMAT_ACTION));
+                String.format("\nActions:\n%s [target]\n%s\n%s [target XAR or existing directory]\n%s <XAR>\n%s\n%s"
+                        + "\n%s <baseline XAR or manifest> [target]", XAR_ACTION, REFORMAT_ACTION, WATCH_ACTION,
+                        IMPORT_ACTION, VALIDATE_ACTION, SERVE_ACTION, DELTA_ACTION));
     }
 }
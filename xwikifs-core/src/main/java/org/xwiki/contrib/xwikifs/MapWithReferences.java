@@ -1,20 +1,24 @@
 package org.xwiki.contrib.xwikifs;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
-import org.yaml.snakeyaml.DumperOptions;
-import org.yaml.snakeyaml.Yaml;
 
 /**
  * Map with references.
@@ -27,6 +31,10 @@ import org.yaml.snakeyaml.Yaml;
  * external files that have the name of the reference id. The id can also have the form of a relative path causing the
  * reference to be read/written in the corresponding subdirectory allowing flexibility in organising the references.
  *
+ * When a map is read with lazy references, referenced files are only checked for existence at load time: their
+ * content is read the first time the corresponding value is accessed, and it can be streamed without being kept in
+ * memory using {@link #getReferencedContent(Object)}.
+ *
  * @version $Id$
  */
 public class MapWithReferences implements Map
@@ -41,13 +49,28 @@ public class MapWithReferences implements Map
      */
     protected Map<String, String> references;
 
+    /**
+     * The files the references of this map have been resolved to, or null if there are none.
+     */
+    private Set<File> referencedFiles;
+
     /**
      * Constructor.
      */
     public MapWithReferences()
+    {
+        this(false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param lazyReferences true if referenced values should be read only when accessed.
+     */
+    public MapWithReferences(boolean lazyReferences)
     {
         wrappedMap = new LinkedHashMap();
-        references = new LinkedHashMap<String, String>();
+        references = lazyReferences ? new LazyReferences() : new LinkedHashMap<String, String>();
     }
 
     @Override public int size()
@@ -103,6 +126,35 @@ public class MapWithReferences implements Map
         return wrappedMap.put(key, value);
     }
 
+    /**
+     * Get a handle to a referenced value, which allows to stream the value without keeping it in memory.
+     *
+     * @param key the key.
+     * @return the handle to the referenced value, or null if the value associated to the key is not a reference.
+     */
+    public ReferencedContent getReferencedContent(Object key)
+    {
+        Object value = wrappedMap.get(key);
+
+        if (value instanceof String) {
+            String string = (String) value;
+            if (isReference(string)) {
+                String referenceId = getReferenceId(string);
+
+                if (references instanceof LazyReferences) {
+                    return ((LazyReferences) references).contents.get(referenceId);
+                }
+
+                String referencedValue = references.get(referenceId);
+                if (referencedValue != null) {
+                    return new ReferencedContent(referencedValue);
+                }
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Store a value as a referenced value.
      *
@@ -118,6 +170,25 @@ public class MapWithReferences implements Map
         return references.put(referenceId, value);
     }
 
+    /**
+     * Store a handle to a referenced value. With lazy references the handle is stored as is, so that a value that is
+     * already stored in a file is not read.
+     *
+     * @param key the key.
+     * @param referenceId the reference id.
+     * @param content the handle to the referenced value.
+     * @throws IOException if the value cannot be read.
+     */
+    public void putReference(Object key, String referenceId, ReferencedContent content) throws IOException
+    {
+        if (references instanceof LazyReferences) {
+            wrappedMap.put(key, String.format("-> %s", referenceId));
+            ((LazyReferences) references).contents.put(referenceId, content);
+        } else {
+            putReference(key, referenceId, content.get());
+        }
+    }
+
     @Override public Object remove(Object key)
     {
         Object value = wrappedMap.get(key);
@@ -208,6 +279,26 @@ public class MapWithReferences implements Map
         return result;
     }
 
+    /**
+     * @return the files the references of this map and of its nested maps have been resolved to, when the map has
+     *         been read from a file.
+     */
+    public Set<File> getReferencedFiles()
+    {
+        Set<File> result = new LinkedHashSet<File>();
+        if (referencedFiles != null) {
+            result.addAll(referencedFiles);
+        }
+
+        for (Object value : wrappedMap.values()) {
+            if (value instanceof MapWithReferences) {
+                result.addAll(((MapWithReferences) value).getReferencedFiles());
+            }
+        }
+
+        return result;
+    }
+
     /**
      * @return the mapping between reference ids and the corresponding values.
      */
@@ -229,18 +320,47 @@ public class MapWithReferences implements Map
      */
     public static MapWithReferences fromYaml(File file) throws IOException
     {
-        DumperOptions opts = new DumperOptions();
-        opts.setCanonical(false);
-        opts.setPrettyFlow(true);
-        opts.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-        opts.setDefaultScalarStyle(DumperOptions.ScalarStyle.PLAIN);
+        return fromYaml(file, false);
+    }
+
+    /**
+     * Read a map with references from a YAML file
+     *
+     * @param file the file to be read.
+     * @param lazyReferences true if referenced files should be read only when the corresponding values are accessed.
+     * @return the map with references.
+     */
+    public static MapWithReferences fromYaml(File file, boolean lazyReferences) throws IOException
+    {
+        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.PARSE_YAML);
+        try {
+            return fromYaml(file, FileContent.readString(file), lazyReferences);
+        } finally {
+            BuildMetrics.exit(previous);
+        }
+    }
 
-        Yaml yaml = new Yaml(opts);
-        FileInputStream in = new FileInputStream(file);
-        Map data = (Map) yaml.load(in);
-        in.close();
+    /**
+     * Read a map with references from the content of a YAML file that has already been read.
+     *
+     * @param file the file the content was read from, for resolving references.
+     * @param content the content of the file.
+     * @param lazyReferences true if referenced files should be read only when the corresponding values are accessed.
+     * @return the map with references.
+     */
+    public static MapWithReferences fromYaml(File file, String content, boolean lazyReferences) throws IOException
+    {
+        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.PARSE_YAML);
+        try {
+            Object data = YamlEngine.load(content);
+            if (!(data instanceof Map)) {
+                throw new IllegalArgumentException(String.format("Content of %s is not a YAML map", file));
+            }
 
-        return fromMap(file.getParentFile(), data);
+            return fromMap(file.getParentFile(), (Map) data, lazyReferences);
+        } finally {
+            BuildMetrics.exit(previous);
+        }
     }
 
     /**
@@ -251,7 +371,19 @@ public class MapWithReferences implements Map
      */
     protected static MapWithReferences fromMap(File baseDir, Map map) throws IOException
     {
-        MapWithReferences result = new MapWithReferences();
+        return fromMap(baseDir, map, false);
+    }
+
+    /**
+     * Convert a standard map to a map with references.
+     *
+     * @param baseDir the base dir for resolving references.
+     * @param map the map to be converted.
+     * @param lazyReferences true if referenced files should be read only when the corresponding values are accessed.
+     */
+    protected static MapWithReferences fromMap(File baseDir, Map map, boolean lazyReferences) throws IOException
+    {
+        MapWithReferences result = new MapWithReferences(lazyReferences);
 
         for (Object key : map.keySet()) {
             Object value = map.get(key);
@@ -260,12 +392,32 @@ public class MapWithReferences implements Map
                 if (isReference(string)) {
                     String id = getReferenceId(string);
 
-                    result.putReference(key, id, IOUtils.toString(new FileInputStream(new File(baseDir, id))));
+                    File referencedFile = new File(baseDir, id);
+                    if (result.referencedFiles == null) {
+                        result.referencedFiles = new LinkedHashSet<File>();
+                    }
+                    result.referencedFiles.add(referencedFile);
+
+                    if (lazyReferences) {
+                        if (!referencedFile.isFile()) {
+                            throw new FileNotFoundException(
+                                    String.format("%s (referenced file doesn't exist)", referencedFile));
+                        }
+
+                        result.putReference(key, id, new ReferencedContent(referencedFile));
+                    } else {
+                        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.READ_REFERENCES);
+                        try {
+                            result.putReference(key, id, FileContent.readString(referencedFile));
+                        } finally {
+                            BuildMetrics.exit(previous);
+                        }
+                    }
                 } else {
                     result.put(key, value);
                 }
             } else if (value instanceof Map) {
-                result.put(key, fromMap(baseDir, (Map) value));
+                result.put(key, fromMap(baseDir, (Map) value, lazyReferences));
             } else {
                 result.put(key, value);
             }
@@ -281,31 +433,69 @@ public class MapWithReferences implements Map
      */
     public void toYaml(File file) throws Exception
     {
-        DumperOptions opts = new DumperOptions();
-        opts.setCanonical(false);
-        opts.setPrettyFlow(true);
-        opts.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-        opts.setDefaultScalarStyle(DumperOptions.ScalarStyle.PLAIN);
-
-        Yaml yaml = new Yaml(opts);
-
         FileOutputStream out = new FileOutputStream(file);
-        IOUtils.write(yaml.dump(wrappedMap), out);
-        out.flush();
-        out.close();
+        try {
+            out.write(YamlEngine.dump(wrappedMap).getBytes(FileContent.UTF8));
+        } finally {
+            out.close();
+        }
 
-        Map<String, String> references = collectReferences(this);
+        Map<String, ReferencedContent> contents = collectReferencedContents(this);
 
         File parentFile = file.getParentFile();
-        for (String key : references.keySet()) {
+        for (String key : contents.keySet()) {
             File outputFile = new File(parentFile, key);
+            ReferencedContent content = contents.get(key);
+
+            /* Don't rewrite values that are already stored in the right place. */
+            if (content.getFile() != null
+                    && content.getFile().getCanonicalFile().equals(outputFile.getCanonicalFile()))
+            {
+                continue;
+            }
+
             outputFile.getParentFile().mkdirs();
 
-            out = new FileOutputStream(outputFile);
-            IOUtils.write(references.get(key), out);
-            out.flush();
-            out.close();
+            Reader reader = content.openReader();
+            try {
+                Writer writer = new OutputStreamWriter(new FileOutputStream(outputFile), FileContent.UTF8);
+                try {
+                    IOUtils.copy(reader, writer);
+                } finally {
+                    writer.close();
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Recursively traverse the map with references in order to collect all the reference ids and the handles to their
+     * corresponding values, without reading lazy references.
+     *
+     * @param mapWithReferences the root map with references.
+     * @return a mapping with all the reference ids to the handles to their corresponding values.
+     */
+    protected Map<String, ReferencedContent> collectReferencedContents(MapWithReferences mapWithReferences)
+    {
+        Map<String, ReferencedContent> result = new LinkedHashMap<String, ReferencedContent>();
+
+        if (mapWithReferences.references instanceof LazyReferences) {
+            result.putAll(((LazyReferences) mapWithReferences.references).contents);
+        } else {
+            for (Map.Entry<String, String> entry : mapWithReferences.references.entrySet()) {
+                result.put(entry.getKey(), new ReferencedContent(entry.getValue()));
+            }
+        }
+
+        for (Object value : mapWithReferences.wrappedMap.values()) {
+            if (value instanceof MapWithReferences) {
+                result.putAll(collectReferencedContents((MapWithReferences) value));
+            }
         }
+
+        return result;
     }
 
     /**
@@ -330,4 +520,65 @@ public class MapWithReferences implements Map
 
         return result;
     }
+
+    /**
+     * Reference values that are read from the referenced files only when accessed.
+     */
+    private static class LazyReferences extends AbstractMap<String, String>
+    {
+        private final Map<String, ReferencedContent> contents = new LinkedHashMap<String, ReferencedContent>();
+
+        @Override public int size()
+        {
+            return contents.size();
+        }
+
+        @Override public boolean containsKey(Object id)
+        {
+            return contents.containsKey(id);
+        }
+
+        @Override public String get(Object id)
+        {
+            return read(contents.get(id));
+        }
+
+        @Override public String put(String id, String value)
+        {
+            return read(contents.put(id, new ReferencedContent(value)));
+        }
+
+        @Override public String remove(Object id)
+        {
+            return read(contents.remove(id));
+        }
+
+        @Override public void clear()
+        {
+            contents.clear();
+        }
+
+        @Override public Set<Entry<String, String>> entrySet()
+        {
+            Set<Entry<String, String>> result = new LinkedHashSet<Entry<String, String>>();
+            for (String id : contents.keySet()) {
+                result.add(new SimpleImmutableEntry<String, String>(id, get(id)));
+            }
+
+            return result;
+        }
+
+        private String read(ReferencedContent content)
+        {
+            if (content == null) {
+                return null;
+            }
+
+            try {
+                return content.get();
+            } catch (IOException e) {
+                throw new UncheckedIOException(String.format("Unable to read %s", content.getFile()), e);
+            }
+        }
+    }
 }
@@ -0,0 +1,92 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+
+/**
+ * ReferencedContent.
+ *
+ * A handle to the value of a reference. The value is either already in memory or it is read from the referenced file
+ * the first time it is needed. The content can also be streamed from the referenced file without keeping it in
+ * memory.
+ *
+ * @version $Id$
+ */
+public class ReferencedContent
+{
+    private final File file;
+
+    private volatile String value;
+
+    /**
+     * Create a handle to the content of a referenced file.
+     *
+     * @param file the referenced file.
+     */
+    public ReferencedContent(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Create a handle to a value that is already in memory.
+     *
+     * @param value the value.
+     */
+    public ReferencedContent(String value)
+    {
+        this.file = null;
+        this.value = value;
+    }
+
+    /**
+     * @return the referenced file, or null if the value was not read from a file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Get the value, reading the referenced file if it has not been read yet. The value is then kept in memory.
+     *
+     * @return the value.
+     * @throws IOException if an error occurs.
+     */
+    public String get() throws IOException
+    {
+        String result = value;
+        if (result == null) {
+            BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.READ_REFERENCES);
+            try {
+                result = FileContent.readString(file);
+            } finally {
+                BuildMetrics.exit(previous);
+            }
+
+            value = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Open a reader on the value. If the value has not been read yet, it is streamed from the referenced file and it
+     * is not kept in memory.
+     *
+     * @return a reader on the value, to be closed by the caller.
+     * @throws IOException if an error occurs.
+     */
+    public Reader openReader() throws IOException
+    {
+        String result = value;
+        if (result != null) {
+            return new StringReader(result);
+        }
+
+        return BuildMetrics.track(FileContent.openReader(file));
+    }
+}
@@ -0,0 +1,153 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * ShardingPolicy.
+ *
+ * Decides how the documents of an XWikiFS are split into several XARs, so that very large wikis can be built and
+ * imported in parallel. Each shard is identified by a name, used as the suffix of its XAR file and as its Maven
+ * classifier.
+ *
+ * @version $Id$
+ */
+public class ShardingPolicy
+{
+    /**
+     * How documents are split.
+     */
+    public enum Mode
+    {
+        /**
+         * A single XAR containing all the documents.
+         */
+        NONE,
+
+        /**
+         * One XAR per space, named after the space.
+         */
+        SPACE,
+
+        /**
+         * XARs whose sources don't exceed the shard size, numbered from 1. A document larger than the shard size gets
+         * its own XAR.
+         */
+        SIZE;
+
+        /**
+         * @param value the name of a mode, case insensitive.
+         * @return the corresponding mode.
+         */
+        public static Mode parse(String value)
+        {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                String expected = Arrays.toString(values()).toLowerCase(Locale.ROOT);
+                throw new IllegalArgumentException(
+                        String.format("Invalid sharding mode %s, expected one of %s", value, expected), e);
+            }
+        }
+    }
+
+    /**
+     * The default maximum size of the sources of a shard, when sharding by size.
+     */
+    public static final long DEFAULT_SHARD_SIZE = 100L * 1024 * 1024;
+
+    private Mode mode = Mode.NONE;
+
+    private long shardSize = DEFAULT_SHARD_SIZE;
+
+    /**
+     * @return how documents are split.
+     */
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * @param mode how documents are split.
+     */
+    public void setMode(Mode mode)
+    {
+        this.mode = mode;
+    }
+
+    /**
+     * @return the maximum size, in bytes, of the sources of a shard when sharding by size.
+     */
+    public long getShardSize()
+    {
+        return shardSize;
+    }
+
+    /**
+     * @param shardSize the maximum size, in bytes, of the sources of a shard when sharding by size.
+     */
+    public void setShardSize(long shardSize)
+    {
+        if (shardSize <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid shard size %d", shardSize));
+        }
+
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * Split documents into shards. The order of the documents is kept, both among the shards and within each shard.
+     *
+     * @param documentDirectories the directories containing XWiki document data, in the order they are packaged.
+     * @return the document directories of each shard, by shard name.
+     */
+    public Map<String, List<File>> getShards(File[] documentDirectories)
+    {
+        Map<String, List<File>> shards = new LinkedHashMap<String, List<File>>();
+
+        long currentSize = 0;
+        for (File documentDirectory : documentDirectories) {
+            String shardName;
+            if (mode == Mode.SPACE) {
+                shardName = documentDirectory.getName().split("\\.", 2)[0];
+            } else if (mode == Mode.SIZE) {
+                long size = FileUtils.sizeOfDirectory(documentDirectory);
+                if (shards.isEmpty() || (currentSize > 0 && currentSize + size > shardSize)) {
+                    /* Start a new shard. */
+                    shardName = String.format("%d", shards.size() + 1);
+                    currentSize = 0;
+                } else {
+                    shardName = String.format("%d", shards.size());
+                }
+                currentSize += size;
+            } else {
+                shardName = "";
+            }
+
+            List<File> shard = shards.get(shardName);
+            if (shard == null) {
+                shard = new ArrayList<File>();
+                shards.put(shardName, shard);
+            }
+            shard.add(documentDirectory);
+        }
+
+        return shards;
+    }
+
+    /**
+     * @return a string describing the policy, for logging.
+     */
+    @Override public String toString()
+    {
+        return String.format("mode=%s,shardSize=%d", mode.name().toLowerCase(Locale.ROOT), shardSize);
+    }
+}
@@ -0,0 +1,292 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * StreamingXMLWriter.
+ *
+ * A minimal StAX-style XML writer that emits elements as soon as they are produced, without building any tree in
+ * memory. Empty elements are always expanded (i.e., written as an open and a close tag) and, when pretty printing is
+ * enabled, elements are indented with two spaces while text content is written verbatim.
+ *
+ * @version $Id$
+ */
+public class StreamingXMLWriter
+{
+    private static final String INDENT = "  ";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Writer writer;
+
+    private final boolean prettyPrint;
+
+    /**
+     * The number of elements the output is nested in, used for indenting a fragment of a larger document.
+     */
+    private final int baseDepth;
+
+    /**
+     * The stack of the elements that are currently open.
+     */
+    private final Deque<String> openElements = new ArrayDeque<String>();
+
+    /**
+     * True if the element that is going to be closed contains child elements (used for indenting the close tag).
+     */
+    private boolean hasChildElements;
+
+    /**
+     * Constructor.
+     *
+     * @param writer the writer where the XML will be written to.
+     * @param prettyPrint true if the output should be indented.
+     */
+    public StreamingXMLWriter(Writer writer, boolean prettyPrint)
+    {
+        this(writer, prettyPrint, 0);
+    }
+
+    /**
+     * Constructor for a writer producing a fragment of a larger document, to be inserted with
+     * {@link #fragment(String)}.
+     *
+     * @param writer the writer where the XML will be written to.
+     * @param prettyPrint true if the output should be indented.
+     * @param depth the number of elements that will be open where the fragment is inserted.
+     */
+    public StreamingXMLWriter(Writer writer, boolean prettyPrint, int depth)
+    {
+        this.writer = writer;
+        this.prettyPrint = prettyPrint;
+        this.baseDepth = depth;
+    }
+
+    /**
+     * @return true if the output is indented.
+     */
+    public boolean isPrettyPrint()
+    {
+        return prettyPrint;
+    }
+
+    /**
+     * @return the number of elements currently open, including the ones the output is nested in.
+     */
+    public int getDepth()
+    {
+        return baseDepth + openElements.size();
+    }
+
+    /**
+     * Write the XML declaration.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public void startDocument() throws IOException
+    {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        if (prettyPrint) {
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Terminate the document and flush the underlying writer. The underlying writer is not closed.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public void endDocument() throws IOException
+    {
+        if (!openElements.isEmpty()) {
+            throw new IllegalStateException(String.format("Element %s is still open", openElements.peek()));
+        }
+
+        if (prettyPrint) {
+            writer.write('\n');
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Open an element.
+     *
+     * @param name the element name.
+     * @param attributes a list of attribute name/value pairs.
+     * @throws IOException if an error occurs.
+     */
+    public void startElement(String name, String... attributes) throws IOException
+    {
+        if (prettyPrint) {
+            writeIndentation(getDepth());
+        }
+
+        writer.write('<');
+        writer.write(name);
+        for (int i = 0; i + 1 < attributes.length; i += 2) {
+            writer.write(' ');
+            writer.write(attributes[i]);
+            writer.write("=\"");
+            writeEscaped(attributes[i + 1], true);
+            writer.write('"');
+        }
+        writer.write('>');
+
+        openElements.push(name);
+        hasChildElements = false;
+    }
+
+    /**
+     * Close the last opened element.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public void endElement() throws IOException
+    {
+        String name = openElements.pop();
+
+        if (prettyPrint && hasChildElements) {
+            writeIndentation(getDepth());
+        }
+
+        writer.write("</");
+        writer.write(name);
+        writer.write('>');
+
+        hasChildElements = true;
+    }
+
+    /**
+     * Write an element containing only text.
+     *
+     * @param name the element name.
+     * @param text the element text (can be null).
+     * @throws IOException if an error occurs.
+     */
+    public void element(String name, String text) throws IOException
+    {
+        startElement(name);
+        if (text != null) {
+            text(text);
+        }
+        endElement();
+    }
+
+    /**
+     * Write complete elements that have already been serialized, as if they were written at the current position.
+     *
+     * @param xml the elements, written by a writer with the same pretty printing and created with the current depth.
+     * @throws IOException if an error occurs.
+     */
+    public void fragment(String xml) throws IOException
+    {
+        writer.write(xml);
+
+        hasChildElements = true;
+    }
+
+    /**
+     * Write escaped text in the current element.
+     *
+     * @param text the text.
+     * @throws IOException if an error occurs.
+     */
+    public void text(String text) throws IOException
+    {
+        writeEscaped(text, false);
+    }
+
+    /**
+     * Write escaped text in the current element.
+     *
+     * @param buffer the buffer containing the text.
+     * @param offset the offset of the text in the buffer.
+     * @param length the length of the text.
+     * @throws IOException if an error occurs.
+     */
+    public void text(char[] buffer, int offset, int length) throws IOException
+    {
+        writeEscaped(buffer, offset, length);
+    }
+
+    /**
+     * Write escaped text in the current element, streaming it from a reader.
+     *
+     * @param reader the reader providing the text (not closed by this method).
+     * @throws IOException if an error occurs.
+     */
+    public void text(Reader reader) throws IOException
+    {
+        char[] buffer = new char[BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            writeEscaped(buffer, 0, read);
+        }
+    }
+
+    private void writeIndentation(int depth) throws IOException
+    {
+        writer.write('\n');
+        for (int i = 0; i < depth; i++) {
+            writer.write(INDENT);
+        }
+    }
+
+    private void writeEscaped(String text, boolean attribute) throws IOException
+    {
+        int length = text.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            String entity = getEntity(text.charAt(i), attribute);
+            if (entity != null) {
+                writer.write(text, start, i - start);
+                writer.write(entity);
+                start = i + 1;
+            }
+        }
+
+        writer.write(text, start, length - start);
+    }
+
+    private void writeEscaped(char[] buffer, int offset, int length) throws IOException
+    {
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            String entity = getEntity(buffer[i], false);
+            if (entity != null) {
+                writer.write(buffer, start, i - start);
+                writer.write(entity);
+                start = i + 1;
+            }
+        }
+
+        writer.write(buffer, start, end - start);
+    }
+
+    /**
+     * @param c a character.
+     * @param attribute true if the character is part of an attribute value.
+     * @return the entity to be used instead of the character, or null if the character doesn't need escaping.
+     */
+    private static String getEntity(char c, boolean attribute)
+    {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return attribute ? "&quot;" : null;
+            default:
+                return null;
+        }
+    }
+}
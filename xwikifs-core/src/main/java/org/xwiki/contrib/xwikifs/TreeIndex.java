@@ -0,0 +1,667 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TreeIndex.
+ *
+ * A persisted index of the XWikiFS tree, used for skipping the discovery of documents on start-up. For each root, the
+ * index stores the names of its sub-directories, and for each document directory the directories and files it
+ * contains, with their sizes, modification dates and content hashes.
+ *
+ * Adding, removing or renaming an entry changes the modification date of its parent directory, so a listing is reused
+ * as long as the modification dates of the listed directories are unchanged, which only takes a stat per directory.
+ * Other directories are scanned again. Hashes are reused as long as the size and modification date of the file are
+ * unchanged.
+ *
+ * Modification dates have a limited precision: a directory listed, or a file hashed, in the same tick as its last
+ * modification could be modified again without its date changing. Such listings and hashes are used but not kept.
+ *
+ * @version $Id$
+ */
+public class TreeIndex
+{
+    protected static final Logger logger = LoggerFactory.getLogger(TreeIndex.class);
+
+    /**
+     * The first line of an index file, to be changed every time the format changes.
+     */
+    private static final String HEADER = "xwikifs-index\t1";
+
+    /**
+     * The precision assumed for modification dates, in milliseconds.
+     */
+    private static final long MODIFICATION_DATE_PRECISION = 2000;
+
+    private static final String SEPARATOR = "\t";
+
+    private static final String NO_HASH = "-";
+
+    private static final String ROOT_RECORD = "R";
+
+    private static final String ROOT_DIRECTORY_RECORD = "r";
+
+    private static final String DOCUMENT_RECORD = "D";
+
+    private static final String DOCUMENT_DIRECTORY_RECORD = "d";
+
+    private static final String DOCUMENT_FILE_RECORD = "f";
+
+    private final File file;
+
+    private final Map<String, RootEntry> roots = new ConcurrentHashMap<String, RootEntry>();
+
+    private final Map<String, DocumentEntry> documents = new ConcurrentHashMap<String, DocumentEntry>();
+
+    private final AtomicInteger reusedDirectories = new AtomicInteger();
+
+    private final AtomicInteger scannedDirectories = new AtomicInteger();
+
+    private TreeIndex(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Load an index. A missing or invalid index file gives an empty index, whose directories are all scanned.
+     *
+     * @param file the index file.
+     * @return the index.
+     */
+    public static TreeIndex load(File file)
+    {
+        TreeIndex index = new TreeIndex(file);
+
+        if (file.isFile()) {
+            try {
+                index.read(FileContent.readString(file));
+
+                logger.info(String.format("Loaded tree index %s: %d roots, %d documents", file, index.roots.size(),
+                        index.documents.size()));
+            } catch (Exception e) {
+                logger.warn(String.format("Ignoring invalid tree index %s: %s", file, e.getMessage()));
+
+                index.roots.clear();
+                index.documents.clear();
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * @return the index file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Write the index to its file. Listings and hashes that cannot be trusted are left out, along with the documents
+     * that are not in the indexed roots anymore.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public void save() throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+
+        /* Write to a temporary file first, so that concurrent or interrupted builds never see partial indexes. */
+        File temporaryFile = File.createTempFile("index-", ".tmp", parent);
+        Writer writer =
+                new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporaryFile), FileContent.UTF8));
+        try {
+            write(writer);
+        } finally {
+            writer.close();
+        }
+
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        logger.info(String.format("Tree index: %d directories reused, %d directories scanned", reusedDirectories.get(),
+                scannedDirectories.get()));
+    }
+
+    /**
+     * @return the number of directories whose indexed listing has been reused.
+     */
+    public int getReusedDirectories()
+    {
+        return reusedDirectories.get();
+    }
+
+    /**
+     * @return the number of directories that have been scanned because they were not indexed or have changed.
+     */
+    public int getScannedDirectories()
+    {
+        return scannedDirectories.get();
+    }
+
+    /**
+     * Get the sub-directories of a root.
+     *
+     * @param root a root of the XWikiFS.
+     * @return the sub-directories of the root, sorted by name.
+     * @throws IOException if an error occurs.
+     */
+    public List<File> getDirectories(File root) throws IOException
+    {
+        String key = root.getAbsolutePath();
+
+        RootEntry entry = roots.get(key);
+        if (entry != null && entry.trusted && entry.lastModified == root.lastModified()) {
+            reusedDirectories.incrementAndGet();
+        } else {
+            scannedDirectories.incrementAndGet();
+
+            entry = scanRoot(root);
+            roots.put(key, entry);
+
+            /* Forget the documents that have been removed. */
+            String prefix = key + File.separator;
+            Set<String> directoryNames = new HashSet<String>(entry.directoryNames);
+            for (String documentKey : documents.keySet()) {
+                if (documentKey.startsWith(prefix) && !directoryNames.contains(documentKey.substring(prefix.length())))
+                {
+                    documents.remove(documentKey);
+                }
+            }
+        }
+
+        List<File> result = new ArrayList<File>();
+        for (String directoryName : entry.directoryNames) {
+            result.add(new File(root, directoryName));
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the content of a document directory, scanning it again if it changed since it was indexed.
+     *
+     * @param documentDirectory a document directory.
+     * @return the content of the document directory.
+     * @throws IOException if an error occurs.
+     */
+    public DocumentEntry getDocument(File documentDirectory) throws IOException
+    {
+        String key = documentDirectory.getAbsolutePath();
+
+        DocumentEntry entry = documents.get(key);
+        if (entry != null && entry.trusted && !entry.hasChanged(documentDirectory)) {
+            reusedDirectories.incrementAndGet();
+
+            return entry.withDirectory(documentDirectory);
+        }
+
+        scannedDirectories.incrementAndGet();
+
+        DocumentEntry newEntry = scanDocument(documentDirectory);
+        if (entry != null) {
+            /* Keep the hashes of the files that haven't changed. */
+            for (Map.Entry<String, FileEntry> fileEntry : newEntry.files.entrySet()) {
+                FileEntry previous = entry.files.get(fileEntry.getKey());
+                if (previous != null && previous.hash != null && previous.isSameFile(fileEntry.getValue())) {
+                    newEntry.files.put(fileEntry.getKey(), previous);
+                }
+            }
+        }
+        documents.put(key, newEntry);
+
+        return newEntry;
+    }
+
+    /**
+     * Scan a document directory, without using an index.
+     *
+     * @param documentDirectory a document directory.
+     * @return the content of the document directory.
+     * @throws IOException if an error occurs.
+     */
+    public static DocumentEntry scanDocument(File documentDirectory) throws IOException
+    {
+        if (!documentDirectory.isDirectory()) {
+            throw new IllegalArgumentException(
+                    String.format("%s doesn't exist or is not a directory.", documentDirectory));
+        }
+
+        final DocumentEntry entry = new DocumentEntry(documentDirectory);
+        final Path start = documentDirectory.toPath();
+        final long scanTime = System.currentTimeMillis();
+
+        Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>()
+                {
+                    @Override public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes)
+                    {
+                        /* Use the same dates as the ones used for checking the directory afterwards. */
+                        long lastModified = path.toFile().lastModified();
+                        entry.directories.put(getRelativePath(start, path), lastModified);
+                        entry.trusted &= isTrusted(lastModified, scanTime);
+
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override public FileVisitResult visitFile(Path path, BasicFileAttributes attributes)
+                    {
+                        entry.files.put(getRelativePath(start, path),
+                                new FileEntry(attributes.size(), attributes.lastModifiedTime().toMillis(), null));
+
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+
+        return entry;
+    }
+
+    private static RootEntry scanRoot(File root) throws IOException
+    {
+        long scanTime = System.currentTimeMillis();
+        long lastModified = root.lastModified();
+
+        List<String> directoryNames = new ArrayList<String>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(root.toPath());
+        try {
+            for (Path path : stream) {
+                if (Files.isDirectory(path)) {
+                    directoryNames.add(path.getFileName().toString());
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        Collections.sort(directoryNames);
+
+        return new RootEntry(lastModified, isTrusted(lastModified, scanTime), directoryNames);
+    }
+
+    /**
+     * @param lastModified the modification date of a directory or file.
+     * @param time the time at which the directory was listed or the file was read.
+     * @return true if the directory or file cannot have been modified since it was read without its date changing.
+     */
+    private static boolean isTrusted(long lastModified, long time)
+    {
+        return time - lastModified > MODIFICATION_DATE_PRECISION;
+    }
+
+    private static String getRelativePath(Path start, Path path)
+    {
+        return start.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private void write(Writer writer) throws IOException
+    {
+        writer.write(HEADER);
+        writer.write('\n');
+
+        for (Map.Entry<String, RootEntry> root : new TreeMap<String, RootEntry>(roots).entrySet()) {
+            RootEntry rootEntry = root.getValue();
+            if (!rootEntry.trusted) {
+                continue;
+            }
+
+            writeRecord(writer, ROOT_RECORD, root.getKey(), Long.toString(rootEntry.lastModified));
+            for (String directoryName : rootEntry.directoryNames) {
+                writeRecord(writer, ROOT_DIRECTORY_RECORD, directoryName);
+
+                DocumentEntry entry = documents.get(new File(root.getKey(), directoryName).getPath());
+                if (entry != null && entry.trusted) {
+                    writeDocument(writer, entry);
+                }
+            }
+        }
+    }
+
+    private void writeDocument(Writer writer, DocumentEntry entry) throws IOException
+    {
+        writeRecord(writer, DOCUMENT_RECORD);
+        for (Map.Entry<String, Long> directory : entry.directories.entrySet()) {
+            writeRecord(writer, DOCUMENT_DIRECTORY_RECORD, directory.getKey(), Long.toString(directory.getValue()));
+        }
+        for (Map.Entry<String, FileEntry> fileEntry : entry.files.entrySet()) {
+            FileEntry value = fileEntry.getValue();
+            writeRecord(writer, DOCUMENT_FILE_RECORD, fileEntry.getKey(), Long.toString(value.size),
+                    Long.toString(value.lastModified), value.hash != null ? value.hash : NO_HASH);
+        }
+    }
+
+    private static void writeRecord(Writer writer, String type, String... values) throws IOException
+    {
+        writer.write(type);
+        for (String value : values) {
+            writer.write(SEPARATOR);
+            writer.write(escape(value));
+        }
+        writer.write('\n');
+    }
+
+    private void read(String content) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new StringReader(content));
+        if (!HEADER.equals(reader.readLine())) {
+            throw new IOException("Unsupported index format");
+        }
+
+        String rootKey = null;
+        RootEntry rootEntry = null;
+        DocumentEntry entry = null;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] values = line.split(SEPARATOR, -1);
+            for (int i = 1; i < values.length; i++) {
+                values[i] = unescape(values[i]);
+            }
+
+            if (ROOT_RECORD.equals(values[0]) && values.length == 3) {
+                rootKey = values[1];
+                rootEntry = new RootEntry(Long.parseLong(values[2]), true, new ArrayList<String>());
+                roots.put(rootKey, rootEntry);
+                entry = null;
+            } else if (ROOT_DIRECTORY_RECORD.equals(values[0]) && values.length == 2 && rootEntry != null) {
+                rootEntry.directoryNames.add(values[1]);
+                entry = null;
+            } else if (DOCUMENT_RECORD.equals(values[0]) && values.length == 1 && rootEntry != null
+                    && !rootEntry.directoryNames.isEmpty())
+            {
+                String directoryName = rootEntry.directoryNames.get(rootEntry.directoryNames.size() - 1);
+                entry = new DocumentEntry(new File(rootKey, directoryName));
+                documents.put(entry.directory.getPath(), entry);
+            } else if (DOCUMENT_DIRECTORY_RECORD.equals(values[0]) && values.length == 3 && entry != null) {
+                entry.directories.put(values[1], Long.parseLong(values[2]));
+            } else if (DOCUMENT_FILE_RECORD.equals(values[0]) && values.length == 5 && entry != null) {
+                entry.files.put(values[1], new FileEntry(Long.parseLong(values[2]), Long.parseLong(values[3]),
+                        NO_HASH.equals(values[4]) ? null : values[4]));
+            } else {
+                throw new IOException(String.format("Invalid line [%s]", line));
+            }
+        }
+    }
+
+    private static String escape(String value)
+    {
+        return value.replace("%", "%25").replace("\t", "%09").replace("\n", "%0A").replace("\r", "%0D");
+    }
+
+    private static String unescape(String value)
+    {
+        return value.replace("%0D", "\r").replace("%0A", "\n").replace("%09", "\t").replace("%25", "%");
+    }
+
+    /**
+     * The sub-directories of a root.
+     */
+    private static class RootEntry
+    {
+        private final long lastModified;
+
+        private final boolean trusted;
+
+        private final List<String> directoryNames;
+
+        RootEntry(long lastModified, boolean trusted, List<String> directoryNames)
+        {
+            this.lastModified = lastModified;
+            this.trusted = trusted;
+            this.directoryNames = directoryNames;
+        }
+    }
+
+    /**
+     * The size, modification date and, once computed, the content hash of a file.
+     */
+    private static class FileEntry
+    {
+        private final long size;
+
+        private final long lastModified;
+
+        private final String hash;
+
+        FileEntry(long size, long lastModified, String hash)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        boolean isSameFile(FileEntry other)
+        {
+            return size == other.size && lastModified == other.lastModified;
+        }
+    }
+
+    /**
+     * The directories and files contained in a document directory. Paths are relative to the document directory and
+     * use {@code /} as separator, the document directory itself having an empty path.
+     */
+    public static final class DocumentEntry
+    {
+        private final File directory;
+
+        private final NavigableMap<String, Long> directories;
+
+        private final NavigableMap<String, FileEntry> files;
+
+        private boolean trusted = true;
+
+        DocumentEntry(File directory)
+        {
+            this(directory, new TreeMap<String, Long>(), new ConcurrentSkipListMap<String, FileEntry>());
+        }
+
+        private DocumentEntry(File directory, NavigableMap<String, Long> directories,
+                NavigableMap<String, FileEntry> files)
+        {
+            this.directory = directory;
+            this.directories = directories;
+            this.files = files;
+        }
+
+        /**
+         * @return the document directory.
+         */
+        public File getDirectory()
+        {
+            return directory;
+        }
+
+        /**
+         * @return the modification date of the document directory.
+         */
+        public long getLastModified()
+        {
+            return directories.get("");
+        }
+
+        /**
+         * @param path a relative path.
+         * @return true if a file or directory exists at the given path.
+         */
+        public boolean exists(String path)
+        {
+            return files.containsKey(path) || directories.containsKey(path);
+        }
+
+        /**
+         * @param path a relative path.
+         * @return true if a regular file exists at the given path.
+         */
+        public boolean isFile(String path)
+        {
+            return files.containsKey(path);
+        }
+
+        /**
+         * @param path the relative path of a directory.
+         * @return the names of the files and directories contained in the directory, sorted, or null if the directory
+         *         doesn't exist.
+         */
+        public List<String> list(String path)
+        {
+            if (!directories.containsKey(path)) {
+                return null;
+            }
+
+            String prefix = path.isEmpty() ? path : path + "/";
+
+            TreeSet<String> names = new TreeSet<String>();
+            for (String child : files.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet()) {
+                addChildName(child, prefix, names);
+            }
+            for (String child : directories.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet()) {
+                addChildName(child, prefix, names);
+            }
+
+            return new ArrayList<String>(names);
+        }
+
+        private static void addChildName(String child, String prefix, TreeSet<String> names)
+        {
+            String name = child.substring(prefix.length());
+            if (!name.isEmpty() && name.indexOf('/') < 0) {
+                names.add(name);
+            }
+        }
+
+        /**
+         * @return the relative paths of all the regular files contained in the document directory, sorted.
+         */
+        public List<String> getFiles()
+        {
+            return new ArrayList<String>(files.keySet());
+        }
+
+        /**
+         * @param path the relative path of a regular file.
+         * @return the file.
+         */
+        public File getFile(String path)
+        {
+            return new File(directory, path.replace('/', File.separatorChar));
+        }
+
+        /**
+         * @param path the relative path of a regular file.
+         * @return the size of the file, when it was last scanned or hashed.
+         */
+        public long getSize(String path)
+        {
+            return files.get(path).size;
+        }
+
+        /**
+         * @param path the relative path of a regular file.
+         * @return the modification date of the file, when it was last scanned or hashed.
+         */
+        public long getLastModified(String path)
+        {
+            return files.get(path).lastModified;
+        }
+
+        /**
+         * Get the SHA-1 hash of the content of a file. The file is read only if it changed since its hash was computed.
+         *
+         * @param path the relative path of a regular file.
+         * @return the hexadecimal hash of the file content.
+         * @throws IOException if an error occurs.
+         */
+        public String getHash(String path) throws IOException
+        {
+            File file = getFile(path);
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            FileEntry current = new FileEntry(attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+
+            FileEntry entry = files.get(path);
+            if (entry != null && entry.hash != null && entry.isSameFile(current)) {
+                return entry.hash;
+            }
+
+            long readTime = System.currentTimeMillis();
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-1 is not available", e);
+            }
+            digest.update(FileContent.read(file));
+            String hash = Hex.encodeHexString(digest.digest());
+
+            files.put(path, new FileEntry(current.size, current.lastModified,
+                    isTrusted(current.lastModified, readTime) ? hash : null));
+
+            return hash;
+        }
+
+        /**
+         * @param documentDirectory the document directory, as currently known.
+         * @return true if any directory has been modified since it was listed.
+         */
+        boolean hasChanged(File documentDirectory)
+        {
+            for (Map.Entry<String, Long> entry : directories.entrySet()) {
+                File file = new File(documentDirectory, entry.getKey().replace('/', File.separatorChar));
+                if (file.lastModified() != entry.getValue()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * @param documentDirectory the document directory, possibly with a different path than the indexed one.
+         * @return an entry sharing the content of this entry, for the given directory.
+         */
+        DocumentEntry withDirectory(File documentDirectory)
+        {
+            if (documentDirectory.getPath().equals(directory.getPath())) {
+                return this;
+            }
+
+            DocumentEntry entry = new DocumentEntry(documentDirectory, directories, files);
+            entry.trusted = trusted;
+
+            return entry;
+        }
+    }
+}
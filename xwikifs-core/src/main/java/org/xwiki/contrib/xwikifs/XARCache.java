@@ -0,0 +1,227 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * XARCache.
+ *
+ * An on-disk cache of the XML serialization of XWiki documents. Entries are keyed by a hash of everything that
+ * contributes to the serialization of a document: the content of all the files in the document directory (document,
+ * class, objects, class info, referenced files and attachments), the modification dates that end up in the XML and a
+ * string describing the configuration used for building the XAR.
+ *
+ * Referenced files that live outside the document directory are not taken into account, so the documents referencing
+ * such files must not be cached.
+ *
+ * @version $Id$
+ */
+public class XARCache
+{
+    /**
+     * The version of the serialization format. It must be changed every time the XML generated for a given document
+     * changes, in order to invalidate existing caches.
+     */
+    private static final String FORMAT_VERSION = "2";
+
+    private static final String ENTRY_EXTENSION = ".xml";
+
+    private final File directory;
+
+    private final Set<String> usedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param directory the directory where cache entries are stored.
+     */
+    public XARCache(File directory)
+    {
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        if (!directory.isDirectory()) {
+            throw new IllegalArgumentException(String.format("%s is not a directory.", directory));
+        }
+
+        this.directory = directory;
+    }
+
+    /**
+     * Compute the cache key of a document directory.
+     *
+     * @param documentDirectory the document directory.
+     * @param configuration a string describing the configuration that affects the serialization.
+     * @return the cache key.
+     * @throws IOException if an error occurs.
+     */
+    public String computeKey(File documentDirectory, String configuration) throws IOException
+    {
+        return computeKey(TreeIndex.scanDocument(documentDirectory), configuration);
+    }
+
+    /**
+     * Compute the cache key of a document directory whose content is known. File contents are hashed separately, so
+     * that the hashes kept in a tree index are reused.
+     *
+     * @param document the content of the document directory.
+     * @param configuration a string describing the configuration that affects the serialization.
+     * @return the cache key.
+     * @throws IOException if an error occurs.
+     */
+    public String computeKey(TreeIndex.DocumentEntry document, String configuration) throws IOException
+    {
+        MessageDigest digest = createDigest();
+
+        update(digest, FORMAT_VERSION);
+        update(digest, configuration);
+        update(digest, document.getDirectory().getName());
+        update(digest, Long.toString(document.getLastModified()));
+
+        for (String path : document.getFiles()) {
+            /* Computing the hash also refreshes the size and date of the file. */
+            String hash = document.getHash(path);
+
+            update(digest, path);
+            update(digest, Long.toString(document.getSize(path)));
+            if (path.startsWith(Constants.ATTACHMENTS_DIRECTORY_NAME + "/")) {
+                /* The date of attachments is part of the serialization. */
+                update(digest, Long.toString(document.getLastModified(path)));
+            }
+            update(digest, hash);
+        }
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Get a cached serialization. Cache hits and misses are counted.
+     *
+     * @param key the cache key.
+     * @return the cached data, or null if there is no entry for the given key.
+     * @throws IOException if an error occurs.
+     */
+    public byte[] get(String key) throws IOException
+    {
+        usedKeys.add(key);
+
+        File entryFile = getEntryFile(key);
+        if (!entryFile.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+
+        BuildMetrics.fileRead(entryFile);
+        InputStream in = new FileInputStream(entryFile);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Store a serialization in the cache.
+     *
+     * @param key the cache key.
+     * @param data the data to be stored.
+     * @throws IOException if an error occurs.
+     */
+    public void put(String key, byte[] data) throws IOException
+    {
+        usedKeys.add(key);
+
+        /* Write to a temporary file first, so that concurrent or interrupted builds never see partial entries. */
+        File temporaryFile = File.createTempFile("entry-", ".tmp", directory);
+        FileOutputStream out = new FileOutputStream(temporaryFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        Files.move(temporaryFile.toPath(), getEntryFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Delete all the entries that have not been accessed through this instance.
+     *
+     * @return the number of deleted entries.
+     */
+    public int prune()
+    {
+        int result = 0;
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.endsWith(ENTRY_EXTENSION)) {
+                    String key = fileName.substring(0, fileName.length() - ENTRY_EXTENSION.length());
+                    if (!usedKeys.contains(key) && file.delete()) {
+                        result++;
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the number of cache hits.
+     */
+    public int getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cache misses.
+     */
+    public int getMisses()
+    {
+        return misses.get();
+    }
+
+    private File getEntryFile(String key)
+    {
+        return new File(directory, key + ENTRY_EXTENSION);
+    }
+
+    private static void update(MessageDigest digest, String string)
+    {
+        digest.update(string.getBytes(FileContent.UTF8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest createDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * XARDelta.
+ *
+ * Selects the documents that changed since a baseline, for building a XAR containing only the added and modified
+ * pages. The baseline is either a previous XAR or a manifest listing the SHA-1 hash of the XML of each page, as
+ * written by {@link #writeManifest(File)}. A XAR baseline is hashed in a single streaming pass, without parsing its
+ * pages.
+ *
+ * Pages are compared on their XML, so the baseline must have been built with the same configuration. The XML depends
+ * on the document dates, so the delta is only meaningful with a fixed timestamp, or file modification dates that are
+ * preserved between builds, and in reproducible mode, where missing object guids are not random.
+ *
+ * @version $Id$
+ */
+public class XARDelta
+{
+    protected static final Logger logger = LoggerFactory.getLogger(XARDelta.class);
+
+    /**
+     * The first line of a manifest file, to be changed every time the format changes.
+     */
+    private static final String HEADER = "xwikifs-manifest\t1";
+
+    private static final String SEPARATOR = "\t";
+
+    private static final String PACKAGE_FILE_NAME = "package.xml";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The hash of each page of the baseline, by document id.
+     */
+    private final Map<String, String> baseline;
+
+    /**
+     * The hash of each page of the current build, by document id.
+     */
+    private final Map<String, String> hashes = new TreeMap<String, String>();
+
+    private final List<String> addedDocuments = new ArrayList<String>();
+
+    private final List<String> modifiedDocuments = new ArrayList<String>();
+
+    /**
+     * Constructor.
+     *
+     * @param baseline the hash of each page of the baseline, by document id.
+     */
+    public XARDelta(Map<String, String> baseline)
+    {
+        this.baseline = new HashMap<String, String>(baseline);
+    }
+
+    /**
+     * Load a baseline, either a XAR or a manifest.
+     *
+     * @param file the baseline file.
+     * @return the delta against the baseline.
+     * @throws IOException if an error occurs.
+     */
+    public static XARDelta load(File file) throws IOException
+    {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException(String.format("%s doesn't exist or is not a regular file", file));
+        }
+
+        Map<String, String> baseline = isZip(file) ? hashXAR(file) : readManifest(file);
+
+        logger.info(String.format("Loaded baseline %s: %d pages", file, baseline.size()));
+
+        return new XARDelta(baseline);
+    }
+
+    /**
+     * Record the XML of a page of the current build and compare it with the baseline. Pages are expected to be
+     * recorded once, by the thread writing the XAR.
+     *
+     * @param documentId the id of the document, in the form of Space.Name.
+     * @param data the XML serialization of the page.
+     * @return true if the page is not in the baseline or if its XML is different.
+     */
+    public boolean isChanged(String documentId, byte[] data)
+    {
+        MessageDigest digest = createDigest();
+        digest.update(data);
+        String hash = Hex.encodeHexString(digest.digest());
+        hashes.put(documentId, hash);
+
+        String baselineHash = baseline.get(documentId);
+        if (baselineHash == null) {
+            addedDocuments.add(documentId);
+        } else if (!baselineHash.equals(hash)) {
+            modifiedDocuments.add(documentId);
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the ids of the recorded pages that are not in the baseline.
+     */
+    public List<String> getAddedDocuments()
+    {
+        return Collections.unmodifiableList(addedDocuments);
+    }
+
+    /**
+     * @return the ids of the recorded pages whose XML is different in the baseline.
+     */
+    public List<String> getModifiedDocuments()
+    {
+        return Collections.unmodifiableList(modifiedDocuments);
+    }
+
+    /**
+     * @return the ids of the pages of the baseline that have not been recorded. A XAR cannot delete pages, so these
+     *         pages are only reported.
+     */
+    public List<String> getRemovedDocuments()
+    {
+        List<String> result = new ArrayList<String>();
+        for (String documentId : new TreeMap<String, String>(baseline).keySet()) {
+            if (!hashes.containsKey(documentId)) {
+                result.add(documentId);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Write the manifest of the recorded pages, to be used as the baseline of the next delta.
+     *
+     * @param file the manifest file.
+     * @throws IOException if an error occurs.
+     */
+    public void writeManifest(File file) throws IOException
+    {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), FileContent.UTF8));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, String> hash : hashes.entrySet()) {
+                writer.write(hash.getKey());
+                writer.write(SEPARATOR);
+                writer.write(hash.getValue());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        logger.info(String.format("Wrote manifest %s: %d pages", file, hashes.size()));
+    }
+
+    private static boolean isZip(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            return in.read() == 'P' && in.read() == 'K';
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Hash the pages of a XAR, as it is read.
+     *
+     * @param file the XAR file.
+     * @return the hash of each page, by document id.
+     * @throws IOException if an error occurs.
+     */
+    private static Map<String, String> hashXAR(File file) throws IOException
+    {
+        Map<String, String> result = new HashMap<String, String>();
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        MessageDigest digest = createDigest();
+
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            ZipEntry zipEntry = zis.getNextEntry();
+            while (zipEntry != null) {
+                String entryName = zipEntry.getName();
+                int separator = entryName.indexOf('/');
+                if (!zipEntry.isDirectory() && entryName.endsWith(".xml") && !PACKAGE_FILE_NAME.equals(entryName)
+                        && separator > 0)
+                {
+                    int read;
+                    while ((read = zis.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+
+                    String documentId = String.format("%s.%s", entryName.substring(0, separator),
+                            entryName.substring(separator + 1, entryName.length() - ".xml".length()));
+                    result.put(documentId, Hex.encodeHexString(digest.digest()));
+                }
+
+                zis.closeEntry();
+                zipEntry = zis.getNextEntry();
+            }
+        } finally {
+            zis.close();
+        }
+
+        return result;
+    }
+
+    private static Map<String, String> readManifest(File file) throws IOException
+    {
+        Map<String, String> result = new HashMap<String, String>();
+
+        BufferedReader reader = new BufferedReader(new StringReader(FileContent.readString(file)));
+        if (!HEADER.equals(reader.readLine())) {
+            throw new IllegalArgumentException(String.format("%s is neither a XAR nor a manifest", file));
+        }
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                String[] parts = line.split(SEPARATOR);
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException(String.format("Invalid line [%s] in manifest %s", line, file));
+                }
+                result.put(parts[0], parts[1]);
+            }
+        }
+
+        return result;
+    }
+
+    private static MessageDigest createDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,642 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * XARImporter.
+ *
+ * Imports the pages of a XAR into an XWikiFS. The XAR is read as a stream and each page is parsed with a pull parser,
+ * so that no page is ever fully loaded in memory: the page content and the attachments are written to disk while they
+ * are being parsed, and only the small fields (metadata, class descriptions, object properties) are kept until the
+ * corresponding files are written.
+ *
+ * Each page is first imported in a staging directory that replaces the document directory once the page has been
+ * completely parsed, so that a malformed page doesn't leave a partially imported document behind. Staging directories
+ * are named without a dot, so that the ones left behind by an interrupted import are not taken for documents.
+ *
+ * Page, space, class and attachment names come from the XAR and end up in file paths, so names that could designate
+ * a file outside of their directory are rejected.
+ *
+ * @version $Id$
+ */
+public class XARImporter
+{
+    protected static final Logger logger = LoggerFactory.getLogger(XARImporter.class);
+
+    private static final String PACKAGE_FILE_NAME = "package.xml";
+
+    private static final String CONTENT_FILE_NAME = "content.xwiki";
+
+    private static final String DEFAULT_SYNTAX = "xwiki/2.1";
+
+    /**
+     * Object property values longer than this (or spanning multiple lines) are stored in referenced files.
+     */
+    private static final int MAX_INLINE_PROPERTY_LENGTH = 256;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String CURRENT_DIRECTORY = ".";
+
+    private static final String PARENT_DIRECTORY = "..";
+
+    private final File root;
+
+    private final XMLInputFactory xmlInputFactory;
+
+    /**
+     * Constructor.
+     *
+     * @param root the root of the XWikiFS where pages are imported.
+     */
+    public XARImporter(File root)
+    {
+        this.root = root;
+
+        xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Import all the pages of a XAR. Existing document directories for the imported pages are replaced.
+     *
+     * @param in the input stream containing the XAR (not closed by this method).
+     * @return the number of imported documents.
+     * @throws Exception if an error occurs.
+     */
+    public int importXAR(InputStream in) throws Exception
+    {
+        logger.info(String.format("Importing XAR into %s...", root));
+
+        root.mkdirs();
+
+        int imported = 0;
+
+        ZipInputStream zis = new ZipInputStream(in);
+        ZipEntry zipEntry = zis.getNextEntry();
+        while (zipEntry != null) {
+            String entryName = zipEntry.getName();
+            if (!zipEntry.isDirectory() && entryName.endsWith(".xml") && !PACKAGE_FILE_NAME.equals(entryName)) {
+                if (importDocument(entryName, zis)) {
+                    imported++;
+                }
+            }
+
+            zis.closeEntry();
+            zipEntry = zis.getNextEntry();
+        }
+
+        logger.info(String.format("Importing XAR done: %d documents imported", imported));
+
+        return imported;
+    }
+
+    /**
+     * Import a page.
+     *
+     * @param entryName the name of the XAR entry containing the page.
+     * @param in the input stream containing the page XML (not closed by this method).
+     * @return true if the page has been imported, false if it has been skipped.
+     * @throws Exception if an error occurs.
+     */
+    private boolean importDocument(String entryName, InputStream in) throws Exception
+    {
+        File stagingDirectory = Files.createTempDirectory(root.toPath(), "import-").toFile();
+        try {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                if (reader.nextTag() != XMLStreamConstants.START_ELEMENT
+                        || !"xwikidoc".equals(reader.getLocalName()))
+                {
+                    logger.warn(String.format("Skipped %s: not an XWiki document", entryName));
+
+                    return false;
+                }
+
+                return readDocument(entryName, reader, stagingDirectory);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            if (stagingDirectory.exists()) {
+                FileUtils.deleteDirectory(stagingDirectory);
+            }
+        }
+    }
+
+    /**
+     * Read the xwikidoc element of a page and move the imported document directory into place.
+     *
+     * @param entryName the name of the XAR entry containing the page.
+     * @param reader the XML reader, positioned on the xwikidoc start element.
+     * @param stagingDirectory the directory where the document files are written while parsing.
+     * @return true if the page has been imported, false if it has been skipped.
+     * @throws Exception if an error occurs.
+     */
+    private boolean readDocument(String entryName, XMLStreamReader reader, File stagingDirectory) throws Exception
+    {
+        String space = null;
+        String name = null;
+        boolean translation = false;
+        String date = null;
+
+        MapWithReferences data = new MapWithReferences(true);
+        Map<String, Object> xwikiClass = null;
+        Map<String, Integer> objectCounts = new LinkedHashMap<String, Integer>();
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String element = reader.getLocalName();
+
+            if ("web".equals(element)) {
+                space = readText(reader);
+            } else if ("name".equals(element)) {
+                name = readText(reader);
+            } else if ("translation".equals(element)) {
+                translation = "1".equals(readText(reader));
+            } else if ("date".equals(element)) {
+                date = readText(reader);
+            } else if ("language".equals(element) || "parent".equals(element) || "title".equals(element)) {
+                String value = readText(reader);
+                if (!value.isEmpty()) {
+                    data.put(element, value);
+                }
+            } else if ("syntaxId".equals(element)) {
+                String value = readText(reader);
+                if (!value.isEmpty() && !DEFAULT_SYNTAX.equals(value)) {
+                    data.put("syntax", value);
+                }
+            } else if ("hidden".equals(element)) {
+                if (Boolean.parseBoolean(readText(reader))) {
+                    data.put("hidden", Boolean.TRUE);
+                }
+            } else if ("content".equals(element)) {
+                File contentFile = new File(stagingDirectory, CONTENT_FILE_NAME);
+                if (readText(reader, contentFile) > 0) {
+                    data.putReference("content", CONTENT_FILE_NAME, new ReferencedContent(contentFile));
+                } else {
+                    contentFile.delete();
+                }
+            } else if ("class".equals(element)) {
+                xwikiClass = readClass(reader);
+            } else if ("object".equals(element)) {
+                readObject(reader, stagingDirectory, objectCounts);
+            } else if ("attachment".equals(element)) {
+                readAttachment(reader, stagingDirectory);
+            } else {
+                skipElement(reader);
+            }
+        }
+
+        if (translation) {
+            logger.warn(String.format("Skipped %s: translations are not supported", entryName));
+
+            return false;
+        }
+
+        if (!isValidName(space) || !isValidName(name) || space.contains(".")) {
+            logger.warn(String.format("Skipped %s: invalid document reference %s.%s", entryName, space, name));
+
+            return false;
+        }
+
+        File documentDirectory = new File(root, String.format("%s.%s", space, name));
+        if (!documentDirectory.getCanonicalFile().getParentFile().equals(root.getCanonicalFile())) {
+            logger.warn(String.format("Skipped %s: %s is outside of %s", entryName, documentDirectory, root));
+
+            return false;
+        }
+
+        if (xwikiClass != null && xwikiClass.get("properties") != null) {
+            MapWithReferences classData = new MapWithReferences();
+            classData.putAll(xwikiClass);
+            classData.toYaml(new File(stagingDirectory, Constants.CLASS_FILE_NAME));
+        }
+
+        if (!data.isEmpty()) {
+            data.toYaml(new File(stagingDirectory, Constants.DOCUMENT_FILE_NAME));
+        }
+
+        if (documentDirectory.exists()) {
+            FileUtils.deleteDirectory(documentDirectory);
+        }
+        Files.move(stagingDirectory.toPath(), documentDirectory.toPath());
+
+        setLastModified(documentDirectory, date);
+
+        logger.info(String.format("  Imported %s", documentDirectory.getName()));
+
+        return true;
+    }
+
+    /**
+     * Read a class element.
+     *
+     * @param reader the XML reader, positioned on the class start element.
+     * @return the class description, with the property descriptions under the "properties" key, or null if the class
+     *         doesn't have any property.
+     * @throws XMLStreamException if an error occurs.
+     */
+    private Map<String, Object> readClass(XMLStreamReader reader) throws XMLStreamException
+    {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String element = reader.getLocalName();
+            Object value = readElement(reader);
+            if (value instanceof Map) {
+                properties.put(element, value);
+            } else {
+                result.put(element, toClassValue((String) value));
+            }
+        }
+
+        if (properties.isEmpty()) {
+            return null;
+        }
+
+        result.put("properties", properties);
+
+        return result;
+    }
+
+    /**
+     * Read an object element and write the object file along with the description of its class.
+     *
+     * @param reader the XML reader, positioned on the object start element.
+     * @param stagingDirectory the directory where the document files are written.
+     * @param objectCounts the number of objects already read for each class, used when an object has no number.
+     * @throws Exception if an error occurs.
+     */
+    private void readObject(XMLStreamReader reader, File stagingDirectory, Map<String, Integer> objectCounts)
+            throws Exception
+    {
+        Map<String, Object> xwikiClass = null;
+        String className = null;
+        String number = null;
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String element = reader.getLocalName();
+
+            if ("class".equals(element)) {
+                xwikiClass = readClass(reader);
+            } else if ("className".equals(element)) {
+                className = readText(reader);
+            } else if ("number".equals(element)) {
+                number = readText(reader);
+            } else if ("property".equals(element)) {
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    properties.put(reader.getLocalName(), readText(reader));
+                }
+            } else {
+                /* The guid is not imported: it is not described by the class and it is generated when building. */
+                skipElement(reader);
+            }
+        }
+
+        if (!isValidName(className) || !className.contains(".")) {
+            logger.warn(String.format("Skipped object of invalid class %s", className));
+
+            return;
+        }
+
+        if (number != null && !number.matches("[0-9]+")) {
+            logger.warn(String.format("Skipped object of class %s with invalid number %s", className, number));
+
+            return;
+        }
+
+        Integer count = objectCounts.get(className);
+        count = count != null ? count + 1 : 0;
+        objectCounts.put(className, count);
+
+        String objectName = String.format("%s-%s", className, number != null ? number : count);
+
+        File objectsDirectory = new File(stagingDirectory, Constants.OBJECTS_DIRECTORY_NAME);
+        File classInfoDirectory = new File(objectsDirectory, Constants.CLASSINFO_DIRECTORY_NAME);
+        classInfoDirectory.mkdirs();
+
+        File classInfoFile = new File(classInfoDirectory, String.format("%s%s", className,
+                Constants.CLASS_FILE_EXTENSION));
+        if (!classInfoFile.exists()) {
+            MapWithReferences classData = new MapWithReferences();
+            if (xwikiClass != null) {
+                classData.putAll(xwikiClass);
+            } else {
+                classData.put("name", className);
+            }
+            classData.toYaml(classInfoFile);
+        }
+
+        MapWithReferences objectData = new MapWithReferences(true);
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            String value = property.getValue();
+            if (value.length() > MAX_INLINE_PROPERTY_LENGTH || value.indexOf('\n') != -1) {
+                objectData.putReference(property.getKey(),
+                        String.format("%s/%s.txt", objectName, property.getKey()), new ReferencedContent(value));
+            } else {
+                objectData.put(property.getKey(), value);
+            }
+        }
+        objectData.toYaml(new File(objectsDirectory, String.format("%s%s", objectName,
+                Constants.OBJECT_FILE_EXTENSION)));
+    }
+
+    /**
+     * Read an attachment element, decoding its content to a file of the attachments directory.
+     *
+     * @param reader the XML reader, positioned on the attachment start element.
+     * @param stagingDirectory the directory where the document files are written.
+     * @throws Exception if an error occurs.
+     */
+    private void readAttachment(XMLStreamReader reader, File stagingDirectory) throws Exception
+    {
+        File attachmentsDirectory = new File(stagingDirectory, Constants.ATTACHMENTS_DIRECTORY_NAME);
+        attachmentsDirectory.mkdirs();
+
+        String filename = null;
+        String date = null;
+        File contentFile = File.createTempFile("attachment-", ".tmp", attachmentsDirectory);
+        try {
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String element = reader.getLocalName();
+
+                if ("filename".equals(element)) {
+                    filename = readText(reader);
+                } else if ("date".equals(element)) {
+                    date = readText(reader);
+                } else if ("content".equals(element)) {
+                    readBase64(reader, contentFile);
+                } else {
+                    skipElement(reader);
+                }
+            }
+
+            if (filename == null || !isValidName(new File(filename).getName())) {
+                logger.warn(String.format("Skipped attachment with invalid file name %s", filename));
+
+                return;
+            }
+
+            File attachmentFile = new File(attachmentsDirectory, new File(filename).getName());
+            if (attachmentFile.exists()) {
+                logger.warn(String.format("Skipped attachment %s: the document already has an attachment named %s",
+                        filename, attachmentFile.getName()));
+
+                return;
+            }
+
+            Files.move(contentFile.toPath(), attachmentFile.toPath());
+
+            setLastModified(attachmentFile, date);
+        } finally {
+            /* Only left when the attachment is skipped or cannot be read. */
+            contentFile.delete();
+        }
+    }
+
+    /**
+     * Check that a name read from the XAR can be used in a file name without designating another directory.
+     *
+     * @param name the name.
+     * @return false if the name is null or empty, if it is a current or parent directory reference, or if it contains
+     *         a path separator or a control character.
+     */
+    private static boolean isValidName(String name)
+    {
+        if (name == null || name.isEmpty() || CURRENT_DIRECTORY.equals(name) || PARENT_DIRECTORY.equals(name)) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '/' || c == '\\' || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Read an element that contains either text or child elements with text.
+     *
+     * @param reader the XML reader, positioned on the start element.
+     * @return the text of the element, or a map of the child element names to their texts.
+     * @throws XMLStreamException if an error occurs.
+     */
+    private Object readElement(XMLStreamReader reader) throws XMLStreamException
+    {
+        StringBuilder text = new StringBuilder();
+        Map<String, Object> children = null;
+
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (children == null) {
+                        children = new LinkedHashMap<String, Object>();
+                    }
+                    String element = reader.getLocalName();
+                    children.put(element, toClassValue(readText(reader)));
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (children != null) {
+                        return children;
+                    }
+                    return text.toString();
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Read the text of an element, ignoring any child element.
+     *
+     * @param reader the XML reader, positioned on the start element.
+     * @return the text of the element.
+     * @throws XMLStreamException if an error occurs.
+     */
+    private String readText(XMLStreamReader reader) throws XMLStreamException
+    {
+        StringBuilder text = new StringBuilder();
+
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    skipElement(reader);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    return text.toString();
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Stream the text of an element to a file, ignoring any child element.
+     *
+     * @param reader the XML reader, positioned on the start element.
+     * @param file the file where the text is written.
+     * @return the number of characters written.
+     * @throws Exception if an error occurs.
+     */
+    private long readText(XMLStreamReader reader, File file) throws Exception
+    {
+        long length = 0;
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), FileContent.UTF8);
+        try {
+            while (true) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        skipElement(reader);
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        writer.write(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        length += reader.getTextLength();
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        return length;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Decode the Base64 text of an element to a file, without keeping either the text or the decoded data in memory.
+     *
+     * @param reader the XML reader, positioned on the start element.
+     * @param file the file where the decoded data is written.
+     * @throws Exception if an error occurs.
+     */
+    private void readBase64(XMLStreamReader reader, File file) throws Exception
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        OutputStream out = new Base64OutputStream(new FileOutputStream(file), false);
+        try {
+            while (true) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        skipElement(reader);
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        char[] chars = reader.getTextCharacters();
+                        int start = reader.getTextStart();
+                        int length = reader.getTextLength();
+                        for (int offset = 0; offset < length; offset += buffer.length) {
+                            int count = Math.min(buffer.length, length - offset);
+                            for (int i = 0; i < count; i++) {
+                                buffer[i] = (byte) chars[start + offset + i];
+                            }
+                            out.write(buffer, 0, count);
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        return;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Skip an element and all its children.
+     *
+     * @param reader the XML reader, positioned on the start element.
+     * @throws XMLStreamException if an error occurs.
+     */
+    private void skipElement(XMLStreamReader reader) throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Convert the text of a class element to the value stored in a class file: empty texts are stored as null and
+     * numbers as integers, like in hand-written class files.
+     *
+     * @param text the text.
+     * @return the value.
+     */
+    private static Object toClassValue(String text)
+    {
+        if (text.isEmpty()) {
+            return null;
+        }
+
+        if (text.matches("0|[1-9][0-9]{0,8}")) {
+            return Integer.valueOf(text);
+        }
+
+        return text;
+    }
+
+    /**
+     * Set the modification date of a file from a XAR date, which is used as the document or attachment date when
+     * building a XAR.
+     *
+     * @param file the file.
+     * @param date the date, in milliseconds, as found in the XAR (can be null).
+     */
+    private static void setLastModified(File file, String date)
+    {
+        if (date != null && date.matches("[0-9]+")) {
+            file.setLastModified(Long.parseLong(date));
+        }
+    }
+}
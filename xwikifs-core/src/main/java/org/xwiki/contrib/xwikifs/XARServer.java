@@ -0,0 +1,548 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.contrib.xwikifs.model.XWikiDocument;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * XARServer.
+ *
+ * A local HTTP server giving access to the XML serialization of single documents, without building the whole XAR:
+ * <ul>
+ * <li>{@code GET /pages/} lists the ids of the documents, one per line;</li>
+ * <li>{@code GET /pages/Space.Name} returns the XML of a document, as it is written in the XAR;</li>
+ * <li>{@code GET /xar} streams the whole XAR.</li>
+ * </ul>
+ *
+ * Documents are serialized on demand and the most recently used ones are kept in memory, up to the cache size. The
+ * roots are watched for changes, and the documents whose directories change are serialized again on the next request.
+ * If watching fails, documents are not kept in memory anymore.
+ * Requests are handled concurrently, each one by its own thread.
+ *
+ * @version $Id$
+ */
+public class XARServer
+{
+    protected static final Logger logger = LoggerFactory.getLogger(XARServer.class);
+
+    /**
+     * The default port.
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    /**
+     * The default maximum size of the serialized documents kept in memory, in bytes.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+
+    private static final long WATCH_DELAY = 50;
+
+    private static final String PAGES_PATH = "/pages/";
+
+    private static final String XAR_PATH = "/xar";
+
+    private static final String PACKAGE_FILE_NAME = "package.xml";
+
+    private final XWikiFS xwikiFS;
+
+    private final int port;
+
+    /**
+     * The serialized documents, indexed by document directory name, from the least to the most recently used.
+     */
+    private final Map<String, Page> pages = new LinkedHashMap<String, Page>(16, 0.75f, true);
+
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+
+    /**
+     * False once watching a root failed: changes are not seen anymore, so documents are serialized for every request
+     * instead of being served stale from memory.
+     */
+    private boolean caching = true;
+
+    /**
+     * The total size of the serialized documents in memory.
+     */
+    private long cachedSize;
+
+    /**
+     * The number of times each document has been invalidated, for not caching a serialization started before a
+     * change.
+     */
+    private final Map<String, Integer> versions = new HashMap<String, Integer>();
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    private HttpServer server;
+
+    private ExecutorService executorService;
+
+    private final List<Thread> watcherThreads = new ArrayList<Thread>();
+
+    /**
+     * Constructor.
+     *
+     * @param xwikiFS the XWikiFS to be served.
+     * @param port the port the server listens to on the loopback interface, or 0 for any free port.
+     */
+    public XARServer(XWikiFS xwikiFS, int port)
+    {
+        this.xwikiFS = xwikiFS;
+        this.port = port;
+    }
+
+    /**
+     * Start the server and serve requests until the calling thread is interrupted.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public void run() throws Exception
+    {
+        start();
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Start watching the roots and serving requests in the background.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public void start() throws IOException
+    {
+        for (File root : xwikiFS.getRoots()) {
+            final DirectoryWatcher watcher = new DirectoryWatcher(root);
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override public void run()
+                {
+                    watch(watcher);
+                }
+            }, String.format("XARServer watcher %s", root));
+            thread.setDaemon(true);
+            thread.start();
+            watcherThreads.add(thread);
+        }
+
+        executorService = Executors.newCachedThreadPool();
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executorService);
+        server.createContext("/", new HttpHandler()
+        {
+            @Override public void handle(HttpExchange exchange) throws IOException
+            {
+                try {
+                    XARServer.this.handle(exchange);
+                } catch (RuntimeException e) {
+                    logger.error(String.format("Unable to handle %s", exchange.getRequestURI()), e);
+                }
+
+                /*
+                 * Not reached on IOException: the server then drops the connection, so that a response that broke
+                 * while being sent is not seen as complete.
+                 */
+                exchange.close();
+            }
+        });
+        server.start();
+
+        logger.info(String.format("Serving %s at http://localhost:%d%s", xwikiFS.getRoots(), getPort(), PAGES_PATH));
+    }
+
+    /**
+     * Stop serving requests and watching the roots.
+     */
+    public void stop()
+    {
+        if (server != null) {
+            server.stop(0);
+            executorService.shutdownNow();
+            server = null;
+        }
+
+        for (Thread thread : watcherThreads) {
+            thread.interrupt();
+        }
+        watcherThreads.clear();
+    }
+
+    /**
+     * @return the port the server listens to.
+     */
+    public int getPort()
+    {
+        return server != null ? server.getAddress().getPort() : port;
+    }
+
+    /**
+     * @return the maximum size of the serialized documents kept in memory, in bytes.
+     */
+    public synchronized long getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    /**
+     * @param cacheSize the maximum size of the serialized documents kept in memory, in bytes. Documents larger than
+     *            this are serialized again for every request.
+     */
+    public synchronized void setCacheSize(long cacheSize)
+    {
+        this.cacheSize = cacheSize;
+        evict();
+    }
+
+    /**
+     * @return the number of requested documents that were already serialized.
+     */
+    public int getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requested documents that had to be serialized.
+     */
+    public int getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Invalidate the documents whose directories change, until the calling thread is interrupted or watching fails.
+     *
+     * @param watcher the watcher of a root.
+     */
+    void watch(DirectoryWatcher watcher)
+    {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (String name : watcher.take(WATCH_DELAY)) {
+                    invalidate(name);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error(String.format("Stopped watching for changes, documents are now serialized for every request:"
+                    + " %s", e.getMessage()));
+            stopCaching();
+        } finally {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                logger.warn(String.format("Unable to close the watcher: %s", e.getMessage()));
+            }
+        }
+    }
+
+    private synchronized void invalidate(String name)
+    {
+        Integer version = versions.get(name);
+        versions.put(name, version != null ? version + 1 : 1);
+
+        Page page = pages.remove(name);
+        if (page != null) {
+            cachedSize -= page.data.length;
+            logger.info(String.format("Invalidated %s", name));
+        }
+    }
+
+    private synchronized void stopCaching()
+    {
+        caching = false;
+        pages.clear();
+        cachedSize = 0;
+    }
+
+    private synchronized int getVersion(String name)
+    {
+        Integer version = versions.get(name);
+
+        return version != null ? version : 0;
+    }
+
+    private synchronized Page getCachedPage(String name)
+    {
+        return pages.get(name);
+    }
+
+    private synchronized void putPage(String name, int version, Page page)
+    {
+        /* Don't keep a serialization of content that changed while it was being read. */
+        if (caching && getVersion(name) == version && page.data.length <= cacheSize) {
+            Page previous = pages.put(name, page);
+            cachedSize += page.data.length - (previous != null ? previous.data.length : 0);
+            evict();
+        }
+    }
+
+    /**
+     * Remove the least recently used documents until the cache size is respected.
+     */
+    private synchronized void evict()
+    {
+        Iterator<Page> iterator = pages.values().iterator();
+        while (cachedSize > cacheSize && iterator.hasNext()) {
+            cachedSize -= iterator.next().data.length;
+            iterator.remove();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        long start = System.currentTimeMillis();
+
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            sendText(exchange, 405, String.format("Method %s is not allowed", method));
+        } else if (PAGES_PATH.equals(path)) {
+            StringBuilder ids = new StringBuilder();
+            for (File documentDirectory : xwikiFS.getDocumentDirectories()) {
+                ids.append(documentDirectory.getName()).append('\n');
+            }
+            sendText(exchange, 200, ids.toString().trim());
+        } else if (path.startsWith(PAGES_PATH)) {
+            sendPage(exchange, path.substring(PAGES_PATH.length()));
+        } else if (XAR_PATH.equals(path)) {
+            sendXAR(exchange);
+        } else {
+            sendText(exchange, 404, String.format("Unknown path %s, expected %s<Space.Name> or %s", path,
+                    PAGES_PATH, XAR_PATH));
+        }
+
+        logger.debug(String.format("%s %s %d in %d ms", method, path, exchange.getResponseCode(),
+                System.currentTimeMillis() - start));
+    }
+
+    private void sendPage(HttpExchange exchange, String name) throws IOException
+    {
+        File documentDirectory = getDocumentDirectory(name);
+        if (documentDirectory == null) {
+            sendText(exchange, 404, String.format("Document %s doesn't exist", name));
+            return;
+        }
+
+        Page page;
+        try {
+            page = getPage(documentDirectory);
+        } catch (Exception e) {
+            sendText(exchange, 500, String.format("Unable to read %s: %s", documentDirectory, e.getMessage()));
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=UTF-8");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.sendResponseHeaders(200, page.data.length);
+            exchange.getResponseBody().write(page.data);
+        }
+    }
+
+    /**
+     * Stream the whole XAR, serializing the documents that are not in memory yet. The XAR is built the same way as by
+     * the watch mode, so it doesn't use the compression policy nor the build cache. Each document is written as soon
+     * as it is serialized, so only one document is held in memory besides the cache. When a document cannot be read,
+     * the response has already started: the connection is dropped instead of ending a XAR missing documents.
+     */
+    private void sendXAR(HttpExchange exchange) throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", "application/zip");
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"xwikifs.xar\"");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        /* The size is not known in advance: use a chunked response. */
+        exchange.sendResponseHeaders(200, 0);
+
+        AbortableOutputStream out = new AbortableOutputStream(exchange.getResponseBody());
+        ZipArchiveOutputStream zos = new ZipArchiveOutputStream(out);
+        try {
+            List<String> documentIds = new ArrayList<String>();
+            for (File documentDirectory : xwikiFS.getDocumentDirectories()) {
+                Page page;
+                try {
+                    page = getPage(documentDirectory);
+                } catch (Exception e) {
+                    logger.error(String.format("Unable to build the XAR, %s cannot be read: %s", documentDirectory,
+                            e.getMessage()));
+                    out.abort();
+
+                    throw new IOException(String.format("Unable to read %s", documentDirectory), e);
+                }
+
+                zos.putArchiveEntry(xwikiFS.createEntry(XWikiFS.getEntryName(page.space, page.name)));
+                zos.write(page.data);
+                zos.closeArchiveEntry();
+
+                documentIds.add(String.format("%s.%s", page.space, page.name));
+            }
+
+            zos.putArchiveEntry(xwikiFS.createEntry(PACKAGE_FILE_NAME));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(zos, "UTF-8"));
+            XARUtils.writePackage(documentIds, new StreamingXMLWriter(writer, xwikiFS.isPrettyPrint()));
+            zos.closeArchiveEntry();
+        } finally {
+            zos.close();
+        }
+    }
+
+    /**
+     * @param name a document directory name, as given in a request.
+     * @return the document directory, or null if there is no such document.
+     */
+    private File getDocumentDirectory(String name)
+    {
+        if (name.isEmpty() || name.contains("/") || name.contains(File.separator) || name.startsWith(".")) {
+            return null;
+        }
+
+        for (File root : xwikiFS.getRoots()) {
+            File documentDirectory = new File(root, name);
+            if (xwikiFS.isDocumentDirectory(documentDirectory)) {
+                return documentDirectory;
+            }
+        }
+
+        return null;
+    }
+
+    private Page getPage(File documentDirectory) throws Exception
+    {
+        String name = documentDirectory.getName();
+
+        Page page = getCachedPage(name);
+        if (page != null) {
+            hits.incrementAndGet();
+
+            return page;
+        }
+
+        misses.incrementAndGet();
+
+        int version = getVersion(name);
+        XWikiDocument xwikiDocument = xwikiFS.readDocument(documentDirectory);
+        page = new Page(xwikiDocument.getSpace(), xwikiDocument.getName(), xwikiFS.serializeDocument(xwikiDocument));
+        putPage(name, version, page);
+
+        return page;
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException
+    {
+        byte[] data = (text + "\n").getBytes(FileContent.UTF8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            exchange.sendResponseHeaders(status, data.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(data);
+        }
+    }
+
+    /**
+     * An output stream that ignores everything once aborted, so that closing the streams wrapping it only releases
+     * their resources.
+     */
+    private static class AbortableOutputStream extends FilterOutputStream
+    {
+        private boolean aborted;
+
+        AbortableOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        void abort()
+        {
+            aborted = true;
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            if (!aborted) {
+                out.write(b);
+            }
+        }
+
+        @Override public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            if (!aborted) {
+                out.write(bytes, offset, length);
+            }
+        }
+
+        @Override public void flush() throws IOException
+        {
+            if (!aborted) {
+                out.flush();
+            }
+        }
+
+        @Override public void close() throws IOException
+        {
+            if (!aborted) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * The XML serialization of a document, along with what is needed for adding it to a XAR.
+     */
+    private static class Page
+    {
+        private final String space;
+
+        private final String name;
+
+        private final byte[] data;
+
+        Page(String space, String name, byte[] data)
+        {
+            this.space = space;
+            this.name = name;
+            this.data = data;
+        }
+    }
+}
@@ -1,18 +1,23 @@
 package org.xwiki.contrib.xwikifs;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
 
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.codec.binary.Base64OutputStream;
 import org.dom4j.Document;
 import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
 import org.xwiki.contrib.xwikifs.model.XWikiClass;
+import org.xwiki.contrib.xwikifs.model.XWikiClassRegistry;
 import org.xwiki.contrib.xwikifs.model.XWikiDocument;
 import org.xwiki.contrib.xwikifs.model.XWikiObject;
 
@@ -29,33 +34,64 @@ public class XARUtils
 
     private static final String DEFAULT_VERSION = "1.1";
 
+    /**
+     * The size of the buffer used for reading attachments (a multiple of 3, so that full buffers encode without
+     * padding).
+     */
+    private static final int BASE64_BUFFER_SIZE = 3 * 16 * 1024;
+
     /**
      * Create a package.xml document.
      *
      * @param xwikiDocuments the XWiki documents to be included in the package.xml
      * @return the package.xml document.
+     * @throws Exception if an error occurs.
      */
-    public static Document getPackageDocument(List<XWikiDocument> xwikiDocuments)
+    public static Document getPackageDocument(List<XWikiDocument> xwikiDocuments) throws Exception
     {
-        Document packageDocument = DocumentHelper.createDocument();
+        List<String> documentIds = new ArrayList<String>();
+        for (XWikiDocument xwikiDocument : xwikiDocuments) {
+            documentIds.add(String.format("%s.%s", xwikiDocument.getSpace(), xwikiDocument.getName()));
+        }
 
-        Element root = packageDocument.addElement("package");
-        Element infos = root.addElement("infos");
-        infos.addElement("name");
-        infos.addElement("description");
-        infos.addElement("licence");
-        infos.addElement("author");
-        infos.addElement("extensionId");
-        infos.addElement("version");
-        infos.addElement("backupPack").addText("true");
+        StringWriter out = new StringWriter();
+        writePackage(documentIds, new StreamingXMLWriter(out, false));
 
-        Element files = root.addElement("files");
-        for (XWikiDocument xwikiDocument : xwikiDocuments) {
-            files.addElement("file").addAttribute("language", "").addAttribute("defaultAction", "0")
-                    .addText(String.format("%s.%s", xwikiDocument.getSpace(), xwikiDocument.getName()));
+        return DocumentHelper.parseText(out.toString());
+    }
+
+    /**
+     * Write the package.xml serialization.
+     *
+     * @param documentIds the ids (in the form of Space.Name) of the documents to be included in the package.xml
+     * @param writer the XML writer.
+     * @throws IOException if an error occurs.
+     */
+    public static void writePackage(List<String> documentIds, StreamingXMLWriter writer) throws IOException
+    {
+        writer.startDocument();
+
+        writer.startElement("package");
+        writer.startElement("infos");
+        writer.element("name", null);
+        writer.element("description", null);
+        writer.element("licence", null);
+        writer.element("author", null);
+        writer.element("extensionId", null);
+        writer.element("version", null);
+        writer.element("backupPack", "true");
+        writer.endElement();
+
+        writer.startElement("files");
+        for (String documentId : documentIds) {
+            writer.startElement("file", "language", "", "defaultAction", "0");
+            writer.text(documentId);
+            writer.endElement();
         }
+        writer.endElement();
+        writer.endElement();
 
-        return packageDocument;
+        writer.endDocument();
     }
 
     /**
@@ -73,55 +109,126 @@ public class XARUtils
     public static Document getXMLFromXWikiDocument(XWikiDocument xwikiDocument, Map<String, String> overrides)
             throws Exception
     {
-        Document result = DocumentHelper.createDocument();
+        StringWriter out = new StringWriter();
+        writeXWikiDocument(xwikiDocument, overrides, new StreamingXMLWriter(out, false));
+
+        return DocumentHelper.parseText(out.toString());
+    }
+
+    /**
+     * Write the XML serialization for an XWiki document.
+     *
+     * @param xwikiDocument the XWiki document to be serialized.
+     * @param writer the XML writer.
+     * @throws IOException if an error occurs.
+     */
+    public static void writeXWikiDocument(XWikiDocument xwikiDocument, StreamingXMLWriter writer) throws IOException
+    {
+        writeXWikiDocument(xwikiDocument, new HashMap<String, String>(), writer);
+    }
+
+    public static void writeXWikiDocument(XWikiDocument xwikiDocument, Map<String, String> overrides,
+            StreamingXMLWriter writer) throws IOException
+    {
+        writeXWikiDocument(xwikiDocument, overrides, false, writer);
+    }
+
+    /**
+     * Write the XML serialization for an XWiki document.
+     *
+     * @param xwikiDocument the XWiki document to be serialized.
+     * @param overrides values to be used for document fields that are not stored in the XWikiFS. A "date" value, if
+     *            present, is used for all the document and attachment dates instead of the modification dates of the
+     *            files.
+     * @param deterministicGuids true if missing object guids should be derived from the document reference, the class
+     *            name and the object number instead of being random, so that serializing the same document twice
+     *            gives the same result.
+     * @param writer the XML writer.
+     * @throws IOException if an error occurs.
+     */
+    public static void writeXWikiDocument(XWikiDocument xwikiDocument, Map<String, String> overrides,
+            boolean deterministicGuids, StreamingXMLWriter writer) throws IOException
+    {
+        writeXWikiDocument(xwikiDocument, overrides, deterministicGuids ? "" : null, writer);
+    }
+
+    /**
+     * Write the XML serialization for an XWiki document.
+     *
+     * @param xwikiDocument the XWiki document to be serialized.
+     * @param overrides values to be used for document fields that are not stored in the XWikiFS.
+     * @param guidSeed the prefix of the identity from which missing object guids are derived, or null for random
+     *            guids. Serializing a document twice with the same seed gives the same result, and an empty seed gives
+     *            the deterministic guids.
+     * @param writer the XML writer.
+     * @throws IOException if an error occurs.
+     */
+    static void writeXWikiDocument(XWikiDocument xwikiDocument, Map<String, String> overrides, String guidSeed,
+            StreamingXMLWriter writer) throws IOException
+    {
+        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.WRITE_XML);
+        try {
+            writeDocument(xwikiDocument, overrides, guidSeed, writer);
+        } finally {
+            BuildMetrics.exit(previous);
+        }
+    }
+
+    private static void writeDocument(XWikiDocument xwikiDocument, Map<String, String> overrides,
+            String guidSeed, StreamingXMLWriter writer) throws IOException
+    {
+        String date = overrides.get("date");
+        if (date == null) {
+            date = String.format("%d", xwikiDocument.getLastModified());
+        }
+
+        writer.startDocument();
 
-        Element root = result.addElement("xwikidoc");
+        writer.startElement("xwikidoc");
 
-        root.addElement("web").addText(xwikiDocument.getSpace());
-        root.addElement("name").addText(xwikiDocument.getName());
+        writer.element("web", xwikiDocument.getSpace());
+        writer.element("name", xwikiDocument.getName());
 
-        addElement(root, "language", xwikiDocument.getData("language"), overrides.get("language"));
+        addElement(writer, "language", xwikiDocument.getData("language"), overrides.get("language"));
 
-        addElement(root, "defaultLanguage", overrides.get("defaultLanguage"), null);
-        root.addElement("translations").addText("0"); //TODO: Handle translations
+        addElement(writer, "defaultLanguage", overrides.get("defaultLanguage"), null);
+        writer.element("translations", "0"); //TODO: Handle translations
 
-        addElement(root, "parent", xwikiDocument.getData("parent"), overrides.get("parent"));
+        addElement(writer, "parent", xwikiDocument.getData("parent"), overrides.get("parent"));
 
-        addElement(root, "creator", overrides.get("creator"), DEFAULT_AUTHOR);
-        addElement(root, "author", overrides.get("author"), DEFAULT_AUTHOR);
-        addElement(root, "contentAuthor", overrides.get("contentAuthor"), DEFAULT_AUTHOR);
+        addElement(writer, "creator", overrides.get("creator"), DEFAULT_AUTHOR);
+        addElement(writer, "author", overrides.get("author"), DEFAULT_AUTHOR);
+        addElement(writer, "contentAuthor", overrides.get("contentAuthor"), DEFAULT_AUTHOR);
 
-        addElement(root, "customClass", overrides.get("customClass"), null);
+        addElement(writer, "customClass", overrides.get("customClass"), null);
 
-        root.addElement("creationDate").addText(String.format("%d", xwikiDocument.getLastModified()));
-        root.addElement("date").addText(String.format("%d", xwikiDocument.getLastModified()));
-        root.addElement("contentUpdateDate").addText(String.format("%d", xwikiDocument.getLastModified()));
+        writer.element("creationDate", date);
+        writer.element("date", date);
+        writer.element("contentUpdateDate", date);
 
-        root.addElement("version").addText(DEFAULT_VERSION);
+        writer.element("version", DEFAULT_VERSION);
 
-        addElement(root, "title", xwikiDocument.getData("title"), overrides.get("title"));
+        addElement(writer, "title", xwikiDocument.getData("title"), overrides.get("title"));
 
-        addElement(root, "defaultTemplate", overrides.get("defaultTemplate"), null);
-        addElement(root, "validationScript", overrides.get("validationScript"), null);
-        addElement(root, "comment", overrides.get("comment"), null);
-        root.addElement("minorEdit").addText("false");
+        addElement(writer, "defaultTemplate", overrides.get("defaultTemplate"), null);
+        addElement(writer, "validationScript", overrides.get("validationScript"), null);
+        addElement(writer, "comment", overrides.get("comment"), null);
+        writer.element("minorEdit", "false");
 
-        addElement(root, "syntaxId", xwikiDocument.getData("syntax"), "xwiki/2.1");
-        addElement(root, "hidden", xwikiDocument.getData("hidden"), "false");
+        addElement(writer, "syntaxId", xwikiDocument.getData("syntax"), "xwiki/2.1");
+        addElement(writer, "hidden", xwikiDocument.getData("hidden"), "false");
 
         /* Add class */
         XWikiClass xwikiClass = xwikiDocument.getXWikiClass();
         if (xwikiClass != null) {
-            Document xwikiClassDocument = XARUtils.getXMLFromXWikiClass(xwikiClass);
-            root.add(xwikiClassDocument.getRootElement());
+            writeXWikiClass(xwikiClass, xwikiDocument.getClassRegistry(), writer);
         }
 
         /* Add objects */
         List<XWikiObject> xwikiObjects = xwikiDocument.getObjects();
         if (xwikiObjects != null) {
             for (XWikiObject xwikiObject : xwikiObjects) {
-                Document objectDocument = XARUtils.getXMLFromXWikiObject(xwikiObject);
-                root.add(objectDocument.getRootElement());
+                writeXWikiObject(xwikiObject, guidSeed, writer);
             }
         }
 
@@ -129,118 +236,259 @@ public class XARUtils
         List<File> attachments = xwikiDocument.getAttachments();
         if (attachments != null) {
             for (File attachmentFile : attachments) {
-                Element attachment = root.addElement("attachment");
-                attachment.addElement("filename").addText(attachmentFile.getName());
-                attachment.addElement("filesize").addText(String.format("%d", attachmentFile.length()));
-                attachment.addElement("author").addText("xwiki:XWiki.Admin");
-                attachment.addElement("date").addText(String.format("%d", attachmentFile.lastModified()));
-                attachment.addElement("version").addText("1.1");
-                attachment.addElement("comment");
-                attachment.addElement("content")
-                        .addText(Base64.encodeBase64String(IOUtils.toByteArray(new FileInputStream(attachmentFile))));
+                writer.startElement("attachment");
+                writer.element("filename", attachmentFile.getName());
+                writer.element("filesize", String.format("%d", attachmentFile.length()));
+                writer.element("author", DEFAULT_AUTHOR);
+                writer.element("date", overrides.containsKey("date") ? date
+                        : String.format("%d", attachmentFile.lastModified()));
+                writer.element("version", DEFAULT_VERSION);
+                writer.element("comment", null);
+                writer.startElement("content");
+                writeBase64(attachmentFile, writer);
+                writer.endElement();
+                writer.endElement();
             }
         }
 
-        addElement(root, "content", xwikiDocument.getData("content"), "");
+        ReferencedContent content = xwikiDocument.getReferencedData("content");
+        if (content != null) {
+            addElement(writer, "content", content);
+        } else {
+            addElement(writer, "content", xwikiDocument.getData("content"), "");
+        }
 
-        return result;
+        writer.endElement();
+
+        writer.endDocument();
     }
 
     /**
-     * Generate the XML serialization for an XWiki object.
+     * Write the XML serialization for an XWiki object.
      *
      * @param xwikiObject the XWiki object to be serialized.
-     * @return the serialized XML data.
-     * @throws Exception if an error occurs.
+     * @param guidSeed the prefix of the identity from which a missing guid is derived, or null for a random guid.
+     * @param writer the XML writer.
+     * @throws IOException if an error occurs.
      */
-    private static Document getXMLFromXWikiObject(XWikiObject xwikiObject)
+    private static void writeXWikiObject(XWikiObject xwikiObject, String guidSeed,
+            StreamingXMLWriter writer) throws IOException
     {
-        Document result = DocumentHelper.createDocument();
-
-        Element root = result.addElement("object");
+        writer.startElement("object");
 
         XWikiClass xwikiClass = xwikiObject.getXWikiClass();
         if (xwikiClass != null) {
-            root.add(getXMLFromXWikiClass(xwikiClass).getRootElement());
+            writeXWikiClass(xwikiClass, xwikiObject.getXWikiDocument().getClassRegistry(), writer);
         }
 
-        root.addElement("name").addText(
-                String.format("%s.%s", xwikiObject.getXWikiDocument().getSpace(),
-                        xwikiObject.getXWikiDocument().getName()));
-        root.addElement("className").addText(xwikiObject.getClassName());
-        root.addElement("number").addText(String.format("%d", xwikiObject.getNumber()));
+        String documentId = String.format("%s.%s", xwikiObject.getXWikiDocument().getSpace(),
+                xwikiObject.getXWikiDocument().getName());
 
-        addElement(root, "guid", xwikiObject.getProperty("guid"), UUID.randomUUID().toString());
+        writer.element("name", documentId);
+        writer.element("className", xwikiObject.getClassName());
+        writer.element("number", String.format("%d", xwikiObject.getNumber()));
+
+        String guid = xwikiObject.getProperty("guid");
+        if (guid == null) {
+            if (guidSeed != null) {
+                String objectId = String.format("%s%s:%s:%d", guidSeed, documentId, xwikiObject.getClassName(),
+                        xwikiObject.getNumber());
+                guid = UUID.nameUUIDFromBytes(objectId.getBytes("UTF-8")).toString();
+            } else {
+                guid = UUID.randomUUID().toString();
+            }
+        }
+        writer.element("guid", guid);
 
         for (String property : xwikiObject.getProperties()) {
             if (!"guid".equals(property)) {
-                Element propertyElement = root.addElement("property");
-                propertyElement.addElement(property).addText(xwikiObject.getProperty(property).toString());
+                writer.startElement("property");
+                ReferencedContent content = xwikiObject.getReferencedProperty(property);
+                if (content != null) {
+                    addElement(writer, property, content);
+                } else {
+                    writer.element(property, xwikiObject.getProperty(property).toString());
+                }
+                writer.endElement();
             }
         }
 
-        return result;
+        writer.endElement();
     }
 
     /**
-     * Generate the XML serialization for an XWiki class.
+     * Write the XML serialization for an XWiki class.
      *
      * @param xwikiClass the XWiki class to be serialized.
-     * @return the serialized XML data.
-     * @throws Exception if an error occurs.
+     * @param classRegistry the registry the class comes from, which keeps its XML.
+     * @param writer the XML writer.
+     * @throws IOException if an error occurs.
+     */
+    private static void writeXWikiClass(XWikiClass xwikiClass, XWikiClassRegistry classRegistry,
+            StreamingXMLWriter writer) throws IOException
+    {
+        writer.fragment(getClassFragment(xwikiClass, classRegistry, writer.isPrettyPrint(), writer.getDepth()));
+    }
+
+    /**
+     * Get the XML serialization of an XWiki class, rendering it if the class registry doesn't have it yet.
+     *
+     * @param xwikiClass the XWiki class.
+     * @param classRegistry the registry the class comes from, which keeps its XML.
+     * @param prettyPrint true if the XML is indented.
+     * @param depth the number of elements the class element is nested in.
+     * @return the XML serialization of the class.
+     * @throws IOException if an error occurs.
      */
-    private static Document getXMLFromXWikiClass(XWikiClass xwikiClass)
+    static String getClassFragment(XWikiClass xwikiClass, XWikiClassRegistry classRegistry, boolean prettyPrint,
+            int depth) throws IOException
     {
-        Document result = DocumentHelper.createDocument();
+        ConcurrentMap<Integer, String> fragments = classRegistry.getFragments(xwikiClass, prettyPrint);
+
+        String fragment = fragments.get(depth);
+        if (fragment == null) {
+            /* Concurrent renderings of the same fragment give the same result, the first one is kept. */
+            StringWriter out = new StringWriter();
+            renderXWikiClass(xwikiClass, new StreamingXMLWriter(out, prettyPrint, depth));
+            fragments.putIfAbsent(depth, out.toString());
+            fragment = fragments.get(depth);
+        }
 
-        Element root = result.addElement("class");
+        return fragment;
+    }
+
+    private static void renderXWikiClass(XWikiClass xwikiClass, StreamingXMLWriter writer) throws IOException
+    {
+        writer.startElement("class");
 
         Map<String, String> data = xwikiClass.getData();
 
         for (Object key : data.keySet()) {
             Object value = data.get(key);
-            if (value != null) {
-                root.addElement(key.toString()).addText(data.get(key).toString());
-            } else {
-                root.addElement(key.toString());
-            }
+            writer.element(key.toString(), value != null ? value.toString() : null);
         }
 
         Map<String, Map<String, String>> properties = xwikiClass.getProperties();
         for (String key : properties.keySet()) {
-            Element propertyElement = root.addElement(key);
+            writer.startElement(key);
             Map<String, String> propertyAttributes = properties.get(key);
             for (String attribute : propertyAttributes.keySet()) {
                 Object value = propertyAttributes.get(attribute);
-                if (value != null) {
-                    propertyElement.addElement(attribute).addText(value.toString());
-                } else {
-                    propertyElement.addElement(attribute);
-                }
+                writer.element(attribute, value != null ? value.toString() : null);
             }
+            writer.endElement();
         }
 
-        return result;
+        writer.endElement();
+    }
+
+    /**
+     * Write the Base64 encoding of a file as the text of the current element. Small files are read at once, larger
+     * ones are memory mapped and encoded in fixed-size chunks, so that the size of the file doesn't affect the heap
+     * used.
+     *
+     * @param file the file to be encoded.
+     * @param writer the XML writer.
+     * @throws IOException if an error occurs.
+     */
+    private static void writeBase64(File file, StreamingXMLWriter writer) throws IOException
+    {
+        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.ENCODE_ATTACHMENTS);
+        try {
+            OutputStream out = new Base64OutputStream(new TextOutputStream(writer), true, 0, null);
+
+            ByteBuffer content = FileContent.read(file);
+            if (content.hasArray()) {
+                out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+            } else {
+                byte[] chunk = new byte[BASE64_BUFFER_SIZE];
+                while (content.hasRemaining()) {
+                    int length = Math.min(chunk.length, content.remaining());
+                    content.get(chunk, 0, length);
+                    out.write(chunk, 0, length);
+                }
+            }
+
+            /* Closing the Base64 stream writes the final padding, the XML writer is left open. */
+            out.close();
+        } finally {
+            BuildMetrics.exit(previous);
+        }
     }
 
     /**
-     * Add an XML element with text to a parent.
+     * Add an XML element with text to the XML output.
      *
-     * @param parent the parent XML element.
+     * @param writer the XML writer.
      * @param name the XML element name.
      * @param text the text of the XML element (can be null).
      * @param defaultText the default text (can be null)
+     * @throws IOException if an error occurs.
      */
-    protected static void addElement(Element parent, String name, String text, String defaultText)
+    protected static void addElement(StreamingXMLWriter writer, String name, String text, String defaultText)
+            throws IOException
     {
-        if (text != null) {
-            parent.addElement(name).addText(text);
-        } else {
-            if (defaultText != null) {
-                parent.addElement(name).addText(defaultText);
-            } else {
-                parent.addElement(name);
+        writer.element(name, text != null ? text : defaultText);
+    }
+
+    /**
+     * Add an XML element whose text is streamed from a referenced content.
+     *
+     * @param writer the XML writer.
+     * @param name the XML element name.
+     * @param content the referenced content.
+     * @throws IOException if an error occurs.
+     */
+    private static void addElement(StreamingXMLWriter writer, String name, ReferencedContent content)
+            throws IOException
+    {
+        writer.startElement(name);
+
+        Reader reader = content.openReader();
+        try {
+            writer.text(reader);
+        } finally {
+            reader.close();
+        }
+
+        writer.endElement();
+    }
+
+    /**
+     * An output stream that writes ASCII bytes as text of the current element of an XML writer.
+     */
+    private static class TextOutputStream extends OutputStream
+    {
+        private final StreamingXMLWriter writer;
+
+        private char[] chars = new char[BASE64_BUFFER_SIZE];
+
+        TextOutputStream(StreamingXMLWriter writer)
+        {
+            this.writer = writer;
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            if (chars.length < length) {
+                chars = new char[length];
+            }
+
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) (bytes[offset + i] & 0xff);
             }
+
+            writer.text(chars, 0, length);
+        }
+
+        @Override public void close()
+        {
+            /* The underlying XML writer is managed by the caller. */
         }
     }
 }
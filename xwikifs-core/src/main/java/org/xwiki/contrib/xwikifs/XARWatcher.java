@@ -0,0 +1,232 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.contrib.xwikifs.model.XWikiDocument;
+
+/**
+ * XARWatcher.
+ *
+ * Keeps a XAR continuously up to date with the content of an XWikiFS. All the documents are read once and kept in
+ * memory along with their XML serialization; then, every time a batch of changes is detected, only the document
+ * directories that changed are read again and the output is rewritten.
+ *
+ * The output can either be a XAR file, which is atomically replaced, or an existing directory, in which case an
+ * exploded XAR is maintained and only the files of the changed documents are rewritten.
+ *
+ * @version $Id$
+ */
+public class XARWatcher
+{
+    protected static final Logger logger = LoggerFactory.getLogger(XARWatcher.class);
+
+    private static final long DEFAULT_DELAY = 200;
+
+    private static final String PACKAGE_FILE_NAME = "package.xml";
+
+    private final XWikiFS xwikiFS;
+
+    private final File output;
+
+    private long delay = DEFAULT_DELAY;
+
+    /**
+     * The documents read from the XWikiFS, indexed by document directory name.
+     */
+    private final Map<String, XWikiDocument> documents = new TreeMap<String, XWikiDocument>();
+
+    /**
+     * The XML serialization of the documents, indexed by document directory name.
+     */
+    private final Map<String, byte[]> serializedDocuments = new HashMap<String, byte[]>();
+
+    /**
+     * Constructor.
+     *
+     * @param xwikiFS the XWikiFS to be watched.
+     * @param output the output XAR file, or an existing directory for an exploded XAR.
+     */
+    public XARWatcher(XWikiFS xwikiFS, File output)
+    {
+        this.xwikiFS = xwikiFS;
+        this.output = output;
+    }
+
+    /**
+     * @param delay the time, in milliseconds, without any further change after which the output is updated.
+     */
+    public void setDelay(long delay)
+    {
+        this.delay = delay;
+    }
+
+    /**
+     * Build the output and keep it up to date. This method only returns when the calling thread is interrupted.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public void run() throws Exception
+    {
+        if (xwikiFS.getRoots().size() > 1) {
+            throw new IllegalArgumentException("Watching an XWikiFS with several roots is not supported.");
+        }
+
+        /* Watch before the first build, so that changes made while building are not missed. */
+        DirectoryWatcher watcher = new DirectoryWatcher(xwikiFS.getTarget());
+        try {
+            for (File documentDirectory : xwikiFS.getDocumentDirectories()) {
+                update(documentDirectory.getName());
+            }
+            writeOutput(documents.keySet());
+
+            logger.info(String.format("Watching %s for changes, writing to %s", xwikiFS.getTarget(), output));
+
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<String> changes = watcher.take(delay);
+
+                long start = System.currentTimeMillis();
+
+                Set<String> updatedDocuments = new TreeSet<String>();
+                for (String name : changes) {
+                    if (update(name)) {
+                        updatedDocuments.add(name);
+                    }
+                }
+
+                if (!updatedDocuments.isEmpty()) {
+                    writeOutput(updatedDocuments);
+
+                    logger.info(String.format("Updated %s in %d ms", updatedDocuments,
+                            System.currentTimeMillis() - start));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Read again a document directory. If the document cannot be read (e.g., because it is being edited and is
+     * temporarily invalid), the previous version is kept.
+     *
+     * @param name the name of the document directory.
+     * @return true if the document has been updated or removed.
+     */
+    private boolean update(String name)
+    {
+        File documentDirectory = new File(xwikiFS.getTarget(), name);
+        if (!xwikiFS.isDocumentDirectory(documentDirectory)) {
+            serializedDocuments.remove(name);
+            return documents.remove(name) != null;
+        }
+
+        try {
+            XWikiDocument xwikiDocument = xwikiFS.readDocument(documentDirectory);
+            serializedDocuments.put(name, xwikiFS.serializeDocument(xwikiDocument));
+            documents.put(name, xwikiDocument);
+
+            return true;
+        } catch (Exception e) {
+            logger.error(String.format("Unable to read %s, keeping the previous version: %s", documentDirectory,
+                    e.getMessage()));
+
+            return false;
+        }
+    }
+
+    private void writeOutput(Collection<String> updatedDocuments) throws IOException
+    {
+        if (output.isDirectory()) {
+            writeExplodedXAR(updatedDocuments);
+        } else {
+            writeXAR();
+        }
+    }
+
+    /**
+     * Write the whole XAR in a temporary file and replace the output with it, so that readers never see a partially
+     * written XAR.
+     *
+     * @throws IOException if an error occurs.
+     */
+    private void writeXAR() throws IOException
+    {
+        File outputDirectory = output.getAbsoluteFile().getParentFile();
+        outputDirectory.mkdirs();
+        File temporaryFile = File.createTempFile("xwikifs-", ".xar", outputDirectory);
+
+        ZipArchiveOutputStream zos = new ZipArchiveOutputStream(new FileOutputStream(temporaryFile));
+        try {
+            for (Map.Entry<String, XWikiDocument> entry : documents.entrySet()) {
+                XWikiDocument xwikiDocument = entry.getValue();
+                zos.putArchiveEntry(xwikiFS.createEntry(
+                        XWikiFS.getEntryName(xwikiDocument.getSpace(), xwikiDocument.getName())));
+                zos.write(serializedDocuments.get(entry.getKey()));
+                zos.closeArchiveEntry();
+            }
+
+            zos.putArchiveEntry(xwikiFS.createEntry(PACKAGE_FILE_NAME));
+            writePackage(zos);
+            zos.closeArchiveEntry();
+        } finally {
+            zos.close();
+        }
+
+        Files.move(temporaryFile.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void writeExplodedXAR(Collection<String> updatedDocuments) throws IOException
+    {
+        for (String name : updatedDocuments) {
+            String[] parts = name.split("\\.", 2);
+            File file = new File(output, XWikiFS.getEntryName(parts[0], parts[1]));
+
+            byte[] data = serializedDocuments.get(name);
+            if (data != null) {
+                file.getParentFile().mkdirs();
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+            } else {
+                file.delete();
+            }
+        }
+
+        FileOutputStream out = new FileOutputStream(new File(output, PACKAGE_FILE_NAME));
+        try {
+            writePackage(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writePackage(OutputStream out) throws IOException
+    {
+        /* Document directory names are in the form Space.Name, so they are also the document ids. */
+        XARUtils.writePackage(new ArrayList<String>(documents.keySet()),
+                new StreamingXMLWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")),
+                        xwikiFS.isPrettyPrint()));
+    }
+}
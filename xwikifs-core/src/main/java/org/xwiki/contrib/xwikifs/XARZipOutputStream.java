@@ -0,0 +1,72 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+/**
+ * XARZipOutputStream.
+ *
+ * A ZIP output stream whose entries can each be compressed with a different method, level and deflate strategy. The
+ * time spent compressing and writing entries is recorded as {@link BuildMetrics.Phase#COMPRESS}.
+ *
+ * @version $Id$
+ */
+class XARZipOutputStream extends ZipArchiveOutputStream
+{
+    XARZipOutputStream(OutputStream out)
+    {
+        super(out);
+    }
+
+    /**
+     * Start a new entry. Stored entries must have their size and CRC set.
+     *
+     * @param entry the entry.
+     * @param compression the compression of the entry.
+     * @throws IOException if an error occurs.
+     */
+    void putArchiveEntry(ZipArchiveEntry entry, CompressionPolicy.Compression compression) throws IOException
+    {
+        entry.setMethod(compression.getMethod());
+        setLevel(compression.getLevel());
+
+        /* The deflater is shared by all the entries and keeps its strategy, so it is set again for every entry. */
+        def.setStrategy(compression.getStrategy());
+
+        putArchiveEntry(entry);
+    }
+
+    @Override public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.COMPRESS);
+        try {
+            super.write(bytes, offset, length);
+        } finally {
+            BuildMetrics.exit(previous);
+        }
+    }
+
+    @Override public void closeArchiveEntry() throws IOException
+    {
+        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.COMPRESS);
+        try {
+            super.closeArchiveEntry();
+        } finally {
+            BuildMetrics.exit(previous);
+        }
+    }
+
+    @Override public void addRawArchiveEntry(ZipArchiveEntry entry, InputStream rawStream) throws IOException
+    {
+        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.COMPRESS);
+        try {
+            super.addRawArchiveEntry(entry, rawStream);
+        } finally {
+            BuildMetrics.exit(previous);
+        }
+    }
+}
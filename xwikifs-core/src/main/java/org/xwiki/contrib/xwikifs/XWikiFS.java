@@ -1,23 +1,56 @@
 package org.xwiki.contrib.xwikifs;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileFilter;
 import java.io.FileOutputStream;
-import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
-import org.apache.commons.io.IOUtils;
-import org.dom4j.io.OutputFormat;
-import org.dom4j.io.XMLWriter;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xwiki.contrib.xwikifs.model.XWikiClassRegistry;
 import org.xwiki.contrib.xwikifs.model.XWikiDocument;
-import org.yaml.snakeyaml.DumperOptions;
-import org.yaml.snakeyaml.Yaml;
 
 /**
  * XWikiFS.
@@ -28,8 +61,51 @@ public class XWikiFS
 {
     protected static final Logger logger = LoggerFactory.getLogger(XWikiFS.class);
 
+    /**
+     * The timestamp used for all the dates of the XAR in reproducible mode when no timestamp is set, since the file
+     * modification dates depend on when the sources have been checked out: 1980-01-01T00:00:02Z, the start of the ZIP
+     * date range.
+     */
+    public static final long DEFAULT_REPRODUCIBLE_TIMESTAMP = 315532802000L;
+
     private final File target;
 
+    private final List<File> roots;
+
+    private List<Pattern> includes = new ArrayList<Pattern>();
+
+    private List<Pattern> excludes = new ArrayList<Pattern>();
+
+    private ShardingPolicy shardingPolicy = new ShardingPolicy();
+
+    private int parallelism = 1;
+
+    private File cacheDirectory;
+
+    private boolean reproducible;
+
+    private Long timestamp;
+
+    private CompressionPolicy compressionPolicy = new CompressionPolicy();
+
+    private boolean parallelCompression;
+
+    private boolean prettyPrint = true;
+
+    private BuildMetrics metrics;
+
+    private TreeIndex index;
+
+    /**
+     * The registry of class files, shared by all the documents read by this instance.
+     */
+    private XWikiClassRegistry classRegistry = new XWikiClassRegistry();
+
+    /**
+     * The files outside of the document directories referenced by the documents read so far.
+     */
+    private final Set<File> externalFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
     /**
      * Initialize an XWikiFS pointing to a given target.
      *
@@ -37,111 +113,1280 @@ public class XWikiFS
      */
     public XWikiFS(File target)
     {
-        if (!(target.exists() && target.isDirectory())) {
-            throw new IllegalArgumentException(String.format("%s doesn't exist or is not a directory."));
+        this(Arrays.asList(target));
+    }
+
+    /**
+     * Initialize an XWikiFS made of several roots, whose documents are packaged together. A document cannot be
+     * defined in more than one root.
+     *
+     * @param roots the directories containing XWiki document data.
+     */
+    public XWikiFS(List<File> roots)
+    {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("At least one root is needed.");
         }
 
-        this.target = target;
+        for (File root : roots) {
+            if (!(root.exists() && root.isDirectory())) {
+                throw new IllegalArgumentException(String.format("%s doesn't exist or is not a directory.", root));
+            }
+        }
 
-        logger.info(String.format("XWikiFS initialized at %s", target));
-    }
+        this.target = roots.get(0);
+        this.roots = new ArrayList<File>(roots);
 
-    public void reformat() throws Exception
-    {
-        reformat(target);
+        logger.info(String.format("XWikiFS initialized at %s", roots.size() == 1 ? target : this.roots));
     }
 
-    private void reformat(File root) throws Exception
+    /**
+     * Reformat all the document, object and class files in the XWikiFS using the canonical YAML formatting. Files are
+     * processed in parallel and only the files whose content actually changes are written.
+     *
+     * @return the number of reformatted files.
+     * @throws Exception if an error occurs.
+     */
+    public int reformat() throws Exception
     {
-        /* Recursively descend starting from root and reformat any file that has the appropriate extension. */
-        for (File file : root.listFiles()) {
-            if (file.isDirectory()) {
-                reformat(file);
-            } else {
-                String fileName = file.getName();
-                if (fileName.endsWith(Constants.DOCUMENT_FILE_EXTENSION) ||
-                        fileName.endsWith(Constants.OBJECT_FILE_EXTENSION) ||
-                        fileName.endsWith(Constants.CLASS_FILE_EXTENSION))
+        final List<File> files = new ArrayList<File>();
+
+        /* Collect the files of the documents, at any depth, that have the appropriate extension. */
+        for (File documentDirectory : getDocumentDirectories()) {
+            TreeIndex.DocumentEntry document = getDocumentEntry(documentDirectory);
+            for (String path : document.getFiles()) {
+                if (path.endsWith(Constants.DOCUMENT_FILE_EXTENSION) || path.endsWith(Constants.OBJECT_FILE_EXTENSION)
+                        || path.endsWith(Constants.CLASS_FILE_EXTENSION))
+                {
+                    files.add(document.getFile(path));
+                }
+            }
+        }
+
+        int changed = 0;
+
+        ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (final File file : files) {
+                results.add(executorService.submit(new Callable<Boolean>()
                 {
-                    logger.info(String.format("Reformatting %s", file));
-                    reformatYaml(file);
+                    @Override public Boolean call() throws Exception
+                    {
+                        return reformatYaml(file);
+                    }
+                }));
+            }
+
+            for (Future<Boolean> result : results) {
+                if (getResult(result)) {
+                    changed++;
                 }
             }
+        } finally {
+            executorService.shutdownNow();
         }
+
+        logger.info(String.format("Reformat done: %d files scanned, %d files changed", files.size(), changed));
+
+        saveIndex();
+
+        return changed;
     }
 
-    private void reformatYaml(File file) throws Exception
+    /**
+     * Reformat a YAML file, writing it only if the canonical formatting differs from the current content.
+     *
+     * @param file the file to be reformatted.
+     * @return true if the file has been written.
+     * @throws Exception if an error occurs.
+     */
+    private boolean reformatYaml(File file) throws Exception
     {
-        DumperOptions opts = new DumperOptions();
-        opts.setCanonical(false);
-        opts.setPrettyFlow(true);
-        opts.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-        opts.setDefaultScalarStyle(DumperOptions.ScalarStyle.PLAIN);
+        byte[] content = Files.readAllBytes(file.toPath());
 
-        Yaml yaml = new Yaml(opts);
-        FileInputStream in = new FileInputStream(file);
-        Object data = yaml.load(in);
-        in.close();
+        byte[] reformattedContent =
+                YamlEngine.dump(YamlEngine.load(new ByteArrayInputStream(content))).getBytes("UTF-8");
+        if (Arrays.equals(content, reformattedContent)) {
+            return false;
+        }
 
         FileOutputStream out = new FileOutputStream(file);
-        IOUtils.write(yaml.dump(data), out);
-        out.flush();
-        out.close();
+        try {
+            out.write(reformattedContent);
+        } finally {
+            out.close();
+        }
+
+        logger.info(String.format("Reformatted %s", file));
+
+        return true;
+    }
+
+    /**
+     * @return the number of threads used for reading and serializing documents, and for reformatting files.
+     */
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads used for reading and serializing documents, and for reformatting files. With a
+     * parallelism of 1 documents are streamed directly into the XAR, otherwise they are serialized by a pool of workers
+     * into per-document buffers that are appended to the XAR in order, so that the result is the same regardless of
+     * the parallelism.
+     *
+     * @param parallelism the number of threads.
+     */
+    public void setParallelism(int parallelism)
+    {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(String.format("Invalid parallelism %d", parallelism));
+        }
+
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the directory of the build cache, or null if the build cache is disabled.
+     */
+    public File getCacheDirectory()
+    {
+        return cacheDirectory;
+    }
+
+    /**
+     * Set the directory of the build cache. When a build cache is used, the XML serialization of each document is
+     * stored in the cache and documents whose content hasn't changed since the previous build are copied from the
+     * cache instead of being read and serialized again.
+     *
+     * @param cacheDirectory the directory of the build cache, or null for disabling the build cache.
+     */
+    public void setCacheDirectory(File cacheDirectory)
+    {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * @return true if the XAR is built in reproducible mode.
+     */
+    public boolean isReproducible()
+    {
+        return reproducible;
+    }
+
+    /**
+     * Set the reproducible mode. In reproducible mode, building a XAR twice from the same sources gives byte-identical
+     * files: missing object guids are derived from the object identity instead of being random, and all the dates of
+     * the XAR are set to the fixed timestamp, if any, or to {@link #DEFAULT_REPRODUCIBLE_TIMESTAMP} instead of the
+     * file modification dates. Documents, objects and attachments are always written in a stable order.
+     *
+     * @param reproducible true for enabling the reproducible mode.
+     */
+    public void setReproducible(boolean reproducible)
+    {
+        this.reproducible = reproducible;
+    }
+
+    /**
+     * @return the fixed timestamp used for all the dates of the XAR, or null if dates are taken from the files.
+     */
+    public Long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Set a fixed timestamp used for all the document and attachment dates, and for the ZIP entries in reproducible
+     * mode, instead of the modification dates of the files, which depend on when the sources have been checked out.
+     *
+     * @param timestamp the timestamp in milliseconds since the epoch, or null for using the file modification dates.
+     */
+    public void setTimestamp(Long timestamp)
+    {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return the policy deciding how the entries of the XAR are compressed.
+     */
+    public CompressionPolicy getCompressionPolicy()
+    {
+        return compressionPolicy;
+    }
+
+    /**
+     * @param compressionPolicy the policy deciding how the entries of the XAR are compressed.
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy)
+    {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * @return true if entries are compressed by the workers when the parallelism is greater than 1.
+     */
+    public boolean isParallelCompression()
+    {
+        return parallelCompression;
+    }
+
+    /**
+     * Set whether entries are compressed by the workers, in parallel, when the parallelism is greater than 1. Otherwise
+     * the workers only read and serialize documents, and all the entries are compressed by the thread writing the XAR.
+     * Entries compressed in parallel store their sizes in their local headers instead of in data descriptors, so
+     * the resulting XAR is not byte-identical to the one built without parallel compression.
+     *
+     * @param parallelCompression true for compressing the entries in parallel.
+     */
+    public void setParallelCompression(boolean parallelCompression)
+    {
+        this.parallelCompression = parallelCompression;
+    }
+
+    /**
+     * @return true if the XML of the documents is indented.
+     */
+    public boolean isPrettyPrint()
+    {
+        return prettyPrint;
+    }
+
+    /**
+     * Set whether the XML of the documents is indented. Without pretty printing, the XML is written without any
+     * whitespace between elements, which makes the XAR smaller and faster to write, especially for documents with many
+     * objects. Text content is written verbatim in both cases.
+     *
+     * @param prettyPrint true for indenting the XML, false for writing compact XML.
+     */
+    public void setPrettyPrint(boolean prettyPrint)
+    {
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * @return the metrics recorded by the XAR builds, or null if metrics are disabled.
+     */
+    public BuildMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Enable the build metrics. The time spent in each phase of the XAR builds, the files and bytes read and written,
+     * and the cost of each document are added to the given metrics, and a summary is logged at the end of each build.
+     *
+     * @param metrics the metrics to be recorded, or null for disabling the build metrics.
+     */
+    public void setMetrics(BuildMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the registry of the class files read by this instance.
+     */
+    public XWikiClassRegistry getClassRegistry()
+    {
+        return classRegistry;
+    }
+
+    /**
+     * Set the registry of class files, for sharing the parsed classes with other instances, e.g. the modules of a
+     * multi-module build. Registries are thread-safe, and classes are cached by file path and by content, so instances
+     * with different roots can share the same registry.
+     *
+     * @param classRegistry the registry of class files.
+     */
+    public void setClassRegistry(XWikiClassRegistry classRegistry)
+    {
+        this.classRegistry = classRegistry;
+    }
+
+    /**
+     * @return the tree index, or null if the tree is scanned on every build.
+     */
+    public TreeIndex getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Set the file of the tree index. The index is loaded immediately, and written back after each build, so that
+     * subsequent runs only scan the directories that changed.
+     *
+     * @param indexFile the file of the tree index, or null for scanning the whole tree on every build.
+     */
+    public void setIndexFile(File indexFile)
+    {
+        this.index = indexFile != null ? TreeIndex.load(indexFile) : null;
+    }
+
+    /**
+     * Parse a timestamp given either as a number of seconds since the epoch (like the SOURCE_DATE_EPOCH environment
+     * variable) or as an ISO-8601 date-time (like the project.build.outputTimestamp Maven property).
+     *
+     * @param value the timestamp to be parsed.
+     * @return the timestamp in milliseconds since the epoch, or null if the value is null or shorter than 2
+     *         characters, which is the Maven convention for disabling the timestamp (e.g., "a").
+     */
+    public static Long parseTimestamp(String value)
+    {
+        if (value == null || value.trim().length() < 2) {
+            return null;
+        }
+
+        value = value.trim();
+        if (value.matches("[0-9]+")) {
+            return Long.parseLong(value) * 1000;
+        }
+
+        try {
+            return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(String.format("Invalid timestamp %s", value), e);
+        }
     }
 
+    /**
+     * Write a XAR containing all the XWiki documents found in the XWikiFS.
+     *
+     * Documents are read and serialized one at a time directly in the XAR output stream so that only the ids of the
+     * documents, needed for building the package.xml, are kept in memory during the whole build.
+     *
+     * @param os the output stream where the XAR will be written.
+     * @throws Exception if an error occurs.
+     */
     public void writeXAR(OutputStream os) throws Exception
     {
-        /* Build a list of directories that contain XWiki document data. */
-        File[] documentDirectories = target.listFiles(new FilenameFilter()
-        {
-            @Override public boolean accept(File dir, String name)
-            {
-                File file = new File(dir, name);
-                return file.isDirectory() && name.contains(".");
+        XARCache cache = cacheDirectory != null ? new XARCache(cacheDirectory) : null;
+
+        writeXAR(os, getDocumentDirectories(), parallelism, cache, null);
+
+        pruneCache(cache);
+        saveIndex();
+    }
+
+    /**
+     * Write a XAR containing only the documents that changed since a baseline, with a package.xml listing exactly
+     * these documents. Every document is still read and serialized, or copied from the build cache, for comparing its
+     * XML with the baseline, but only the changed ones are written.
+     *
+     * @param os the output stream where the XAR will be written.
+     * @param delta the delta against the baseline, where the hashes of all the documents are recorded.
+     * @throws Exception if an error occurs.
+     */
+    public void writeDeltaXAR(OutputStream os, XARDelta delta) throws Exception
+    {
+        if (!reproducible) {
+            logger.warn("Building a delta outside of the reproducible mode: pages with objects without guid will"
+                    + " always be seen as modified");
+        }
+
+        XARCache cache = cacheDirectory != null ? new XARCache(cacheDirectory) : null;
+
+        writeXAR(os, getDocumentDirectories(), parallelism, cache, delta);
+
+        pruneCache(cache);
+        saveIndex();
+
+        logger.info(String.format("Delta: %d pages added, %d pages modified, %d pages removed (not deleted by the XAR)",
+                delta.getAddedDocuments().size(), delta.getModifiedDocuments().size(),
+                delta.getRemovedDocuments().size()));
+    }
+
+    /**
+     * Write one XAR per shard, as defined by the sharding policy. Shards are built concurrently, using as many threads
+     * as the parallelism, and the documents of each shard are read and serialized by the thread building the shard.
+     * Each shard is written next to the given XAR file, with the shard name appended to the file name. Without
+     * sharding, a single XAR is written to the given file.
+     *
+     * @param xarFile the XAR file, used for naming the shards.
+     * @return the XAR file of each shard, by shard name.
+     * @throws Exception if an error occurs.
+     */
+    public Map<String, File> writeShardedXAR(File xarFile) throws Exception
+    {
+        Map<String, List<File>> shards = shardingPolicy.getShards(getDocumentDirectories());
+        if (shards.isEmpty()) {
+            /* Still write a XAR, containing only the package.xml. */
+            shards.put("", new ArrayList<File>());
+        } else if (shards.size() > 1) {
+            logger.info(String.format("Building %d shards of %s...", shards.size(), xarFile));
+        }
+
+        /* Shards are the unit of parallelism, each one is built by a single thread. */
+        final int threads = shards.size() > 1 ? 1 : parallelism;
+
+        final XARCache cache = cacheDirectory != null ? new XARCache(cacheDirectory) : null;
+
+        Map<String, File> result = new LinkedHashMap<String, File>();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelism, shards.size()));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (Map.Entry<String, List<File>> shard : shards.entrySet()) {
+                final File shardFile = getShardFile(xarFile, shard.getKey());
+                final File[] documentDirectories = shard.getValue().toArray(new File[0]);
+                result.put(shard.getKey(), shardFile);
+
+                results.add(executorService.submit(new Callable<Void>()
+                {
+                    @Override public Void call() throws Exception
+                    {
+                        OutputStream out = new FileOutputStream(shardFile);
+                        try {
+                            writeXAR(out, documentDirectories, threads, cache, null);
+                        } finally {
+                            out.close();
+                        }
+
+                        return null;
+                    }
+                }));
             }
-        });
 
-        /* Read XWiki document data from the directories. */
-        List<XWikiDocument> xwikiDocuments = new ArrayList<XWikiDocument>();
-        for (File documentDirectory : documentDirectories) {
-            xwikiDocuments.add(XWikiDocument.createFromDirectory(documentDirectory));
+            for (Future<Void> future : results) {
+                getResult(future);
+            }
+        } finally {
+            executorService.shutdownNow();
         }
 
-        logger.info("Building XAR...");
+        pruneCache(cache);
+        saveIndex();
 
-        ZipOutputStream zos = null;
+        return result;
+    }
 
-        /* Create the XAR containing the XML serialization of XWiki document data. */
+    /**
+     * Compute a fingerprint of the sources of the XAR, for telling whether a XAR built earlier is still up to date. The
+     * fingerprint covers the included document directories with the paths, sizes and modification dates of all their
+     * files, the configuration affecting the XML serialization and the given configuration. Computing it only takes a
+     * stat per file, or less with a tree index, unless content hashes are included.
+     *
+     * @param configuration a description of the rest of the configuration the XAR is built with.
+     * @param contentHashes true for including the hashes of the file contents, for detecting changes that keep the
+     *            size and modification date of files.
+     * @return the hexadecimal fingerprint.
+     * @throws IOException if an error occurs.
+     */
+    public String computeFingerprint(String configuration, boolean contentHashes) throws IOException
+    {
+        return computeFingerprint(configuration, contentHashes, Collections.<File>emptyList());
+    }
+
+    /**
+     * Compute a fingerprint of the sources of the XAR, also covering files outside of the document directories. Which
+     * files the documents reference outside of their directories is only known once they are read: pass the
+     * {@link #getExternalFiles() external files} of the previous build.
+     *
+     * @param configuration a description of the rest of the configuration the XAR is built with.
+     * @param contentHashes true for including the hashes of the file contents, for detecting changes that keep the
+     *            size and modification date of files.
+     * @param externalFiles the files outside of the document directories referenced by the documents.
+     * @return the hexadecimal fingerprint.
+     * @throws IOException if an error occurs.
+     */
+    public String computeFingerprint(String configuration, boolean contentHashes, Collection<File> externalFiles)
+            throws IOException
+    {
+        MessageDigest digest;
         try {
-            zos = new ZipOutputStream(os);
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
 
-            OutputFormat outputFormat = OutputFormat.createPrettyPrint();
-            outputFormat.setExpandEmptyElements(true);
-            XMLWriter xmlWriter = new XMLWriter(zos, outputFormat);
+        updateFingerprint(digest, configuration);
+        updateFingerprint(digest, getConfiguration());
 
-            for (XWikiDocument xwikiDocument : xwikiDocuments) {
-                ZipEntry entry =
-                        new ZipEntry(String.format("%s/%s.xml", xwikiDocument.getSpace(), xwikiDocument.getName()));
-                zos.putNextEntry(entry);
+        for (File documentDirectory : getDocumentDirectories()) {
+            TreeIndex.DocumentEntry document = getDocumentEntry(documentDirectory);
 
-                xmlWriter.write(XARUtils.getXMLFromXWikiDocument(xwikiDocument));
-                zos.closeEntry();
+            updateFingerprint(digest, documentDirectory.getAbsolutePath());
+            updateFingerprint(digest, Long.toString(document.getLastModified()));
+            for (String path : document.getFiles()) {
+                /* The index only tracks listings: files modified in place are detected by their own attributes. */
+                BasicFileAttributes attributes =
+                        Files.readAttributes(document.getFile(path).toPath(), BasicFileAttributes.class);
 
-                logger.info(String.format("  Added %s.%s", xwikiDocument.getSpace(), xwikiDocument.getName()));
+                updateFingerprint(digest, path);
+                updateFingerprint(digest, Long.toString(attributes.size()));
+                updateFingerprint(digest, Long.toString(attributes.lastModifiedTime().toMillis()));
+                if (contentHashes) {
+                    updateFingerprint(digest, document.getHash(path));
+                }
             }
+        }
 
-            ZipEntry entry = new ZipEntry("package.xml");
-            zos.putNextEntry(entry);
-            xmlWriter.write(XARUtils.getPackageDocument(xwikiDocuments));
-            zos.closeEntry();
+        for (File externalFile : new TreeSet<File>(externalFiles)) {
+            updateFingerprint(digest, externalFile.getAbsolutePath());
+            if (externalFile.isFile()) {
+                updateFingerprint(digest, Long.toString(externalFile.length()));
+                updateFingerprint(digest, Long.toString(externalFile.lastModified()));
+                if (contentHashes) {
+                    digest.update(FileContent.read(externalFile));
+                    digest.update((byte) 0);
+                }
+            } else {
+                /* Missing files are fingerprinted too: creating one changes the XAR. */
+                updateFingerprint(digest, "-");
+            }
+        }
 
-            logger.info("  Added package.xml");
-        } finally {
-            if (zos != null) {
-                zos.flush();
-                zos.close();
+        saveIndex();
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private static void updateFingerprint(MessageDigest digest, String string)
+    {
+        digest.update(string.getBytes(FileContent.UTF8));
+        digest.update((byte) 0);
+    }
+
+    /**
+     * @param xarFile a XAR file.
+     * @param shardName the name of a shard, empty when there is a single shard.
+     * @return the XAR file of the shard.
+     */
+    static File getShardFile(File xarFile, String shardName)
+    {
+        if (shardName.isEmpty()) {
+            return xarFile;
+        }
+
+        String fileName = xarFile.getName();
+        if (fileName.endsWith(".xar")) {
+            fileName = fileName.substring(0, fileName.length() - ".xar".length());
+        }
+
+        return new File(xarFile.getAbsoluteFile().getParentFile(), String.format("%s-%s.xar", fileName, shardName));
+    }
+
+    /**
+     * Write a XAR containing some documents.
+     *
+     * @param os the output stream where the XAR will be written.
+     * @param documentDirectories the directories containing the documents to be written.
+     * @param threads the number of threads used for reading and serializing documents.
+     * @param cache the build cache (can be null).
+     * @param delta the delta selecting the documents to be written, or null for writing all the documents.
+     * @throws Exception if an error occurs.
+     */
+    private void writeXAR(OutputStream os, File[] documentDirectories, int threads, XARCache cache, XARDelta delta)
+            throws Exception
+    {
+        logger.info("Building XAR...");
+
+        List<String> documentIds = new ArrayList<String>();
+
+        XARZipOutputStream zos = null;
+
+        CountingOutputStream countingOutputStream = null;
+        if (metrics != null) {
+            metrics.start();
+            metrics.attach();
+            countingOutputStream = new CountingOutputStream(os);
+            os = countingOutputStream;
+        }
+
+        /* Create the XAR containing the XML serialization of XWiki document data. */
+        try {
+            zos = new XARZipOutputStream(os);
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(zos, "UTF-8"));
+            StreamingXMLWriter xmlWriter = new StreamingXMLWriter(writer, prettyPrint);
+
+            if (threads > 1) {
+                writeDocumentsInParallel(documentDirectories, threads, cache, delta, zos, documentIds);
+            } else if (cache != null || delta != null) {
+                /* Documents are compared with the baseline before being written, so they cannot be streamed. */
+                for (File documentDirectory : documentDirectories) {
+                    writeSerializedDocument(serializeDocument(documentDirectory, cache), delta, zos, documentIds);
+                }
+            } else {
+                for (File documentDirectory : documentDirectories) {
+                    CompressionPolicy.Compression compression = compressionPolicy.getCompression(documentDirectory);
+
+                    long[] mark = BuildMetrics.mark();
+                    XWikiDocument xwikiDocument = readDocument(documentDirectory);
+
+                    /* Missing guids must be the same in both serializations of a stored entry. */
+                    String guidSeed = reproducible ? "" : String.format("%s:", UUID.randomUUID());
+
+                    ZipArchiveEntry entry =
+                            createEntry(getEntryName(xwikiDocument.getSpace(), xwikiDocument.getName()));
+                    if (compression.getMethod() == ZipEntry.STORED) {
+                        computeSizeAndCrc(xwikiDocument, guidSeed, entry);
+                    }
+
+                    zos.putArchiveEntry(entry, compression);
+                    XARUtils.writeXWikiDocument(xwikiDocument, getOverrides(), guidSeed, xmlWriter);
+                    zos.closeArchiveEntry();
+
+                    recordDocument(xwikiDocument.getSpace(), xwikiDocument.getName(), mark, entry.getSize());
+                    addDocumentId(xwikiDocument.getSpace(), xwikiDocument.getName(), documentIds);
+                }
+            }
+
+            zos.putArchiveEntry(createEntry("package.xml"),
+                    compressionPolicy.getDefaultCompression());
+            XARUtils.writePackage(documentIds, xmlWriter);
+            zos.closeArchiveEntry();
+
+            logger.info("  Added package.xml");
+
+            zos.finish();
+            zos.flush();
+            zos.close();
+
+            logger.info("Building XAR done");
+        } catch (Exception e) {
+            if (zos != null) {
+                /* Closing finishes the XAR, which fails when an entry is still open: keep the original exception. */
+                try {
+                    zos.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+            }
+
+            throw e;
+        } finally {
+            if (metrics != null) {
+                metrics.detach();
+                if (metrics.stop(countingOutputStream.getByteCount())) {
+                    logger.info(metrics.toTable());
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the size and CRC of the entry of a stored document, which must be known before writing it to the XAR output
+     * stream. The document is serialized a first time only for computing them, so that it is streamed instead of being
+     * buffered. If a file of the document changes in between, closing the entry fails.
+     *
+     * @param xwikiDocument the document.
+     * @param guidSeed the seed of the missing object guids, which must be used again for writing the document.
+     * @param entry the ZIP entry of the document.
+     * @throws Exception if an error occurs.
+     */
+    private void computeSizeAndCrc(XWikiDocument xwikiDocument, String guidSeed, ZipArchiveEntry entry)
+            throws Exception
+    {
+        CRC32 crc = new CRC32();
+        CountingOutputStream out = new CountingOutputStream(new CheckedOutputStream(new NullOutputStream(), crc));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        XARUtils.writeXWikiDocument(xwikiDocument, getOverrides(), guidSeed,
+                new StreamingXMLWriter(writer, prettyPrint));
+        writer.flush();
+
+        entry.setSize(out.getByteCount());
+        entry.setCrc(crc.getValue());
+    }
+
+    /**
+     * Remove the cache entries that have not been used by the build and log the cache statistics.
+     *
+     * @param cache the build cache (can be null).
+     * @throws Exception if an error occurs.
+     */
+    private void pruneCache(XARCache cache) throws Exception
+    {
+        if (cache != null) {
+            logger.info(String.format("Build cache: %d hits, %d misses, %d stale entries removed", cache.getHits(),
+                    cache.getMisses(), cache.prune()));
+        }
+    }
+
+    /**
+     * Read and serialize documents using a pool of workers. At most twice as many documents as the number of workers
+     * are buffered at any time, and they are written to the XAR in the same order of the document directories. With
+     * parallel compression, the workers also compress the documents and the compressed data is copied as is.
+     *
+     * @param documentDirectories the directories containing XWiki document data.
+     * @param threads the number of workers.
+     * @param cache the build cache (can be null).
+     * @param delta the delta selecting the documents to be written, or null for writing all the documents.
+     * @param zos the XAR output stream.
+     * @param documentIds the list where the ids of the written documents are added.
+     * @throws Exception if an error occurs.
+     */
+    private void writeDocumentsInParallel(File[] documentDirectories, int threads, final XARCache cache,
+            XARDelta delta, XARZipOutputStream zos, List<String> documentIds) throws Exception
+    {
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+
+        try {
+            Deque<Future<SerializedDocument>> pending = new ArrayDeque<Future<SerializedDocument>>();
+            int next = 0;
+
+            while (next < documentDirectories.length || !pending.isEmpty()) {
+                while (next < documentDirectories.length && pending.size() < threads * 2) {
+                    final File documentDirectory = documentDirectories[next++];
+                    pending.add(executorService.submit(new Callable<SerializedDocument>()
+                    {
+                        @Override public SerializedDocument call() throws Exception
+                        {
+                            if (metrics != null) {
+                                metrics.attach();
+                            }
+
+                            try {
+                                SerializedDocument serializedDocument = serializeDocument(documentDirectory, cache);
+                                if (parallelCompression) {
+                                    serializedDocument.compress();
+                                }
+
+                                return serializedDocument;
+                            } finally {
+                                if (metrics != null) {
+                                    metrics.detach();
+                                }
+                            }
+                        }
+                    }));
+                }
+
+                writeSerializedDocument(getResult(pending.poll()), delta, zos, documentIds);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Read a document and serialize it in a memory buffer. If a build cache is available and it contains an entry for
+     * the document, the document is not read and the cached serialization is returned.
+     *
+     * @param documentDirectory the directory containing the XWiki document data.
+     * @param cache the build cache (can be null).
+     * @return the serialized document.
+     * @throws Exception if an error occurs.
+     */
+    private SerializedDocument serializeDocument(File documentDirectory, XARCache cache) throws Exception
+    {
+        long[] mark = BuildMetrics.mark();
+
+        TreeIndex.DocumentEntry document = getDocumentEntry(documentDirectory);
+
+        String cacheKey = null;
+        if (cache != null) {
+            byte[] data;
+            BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.CACHE);
+            try {
+                cacheKey = cache.computeKey(document, getConfiguration());
+                data = cache.get(cacheKey);
+            } finally {
+                BuildMetrics.exit(previous);
+            }
+
+            if (data != null) {
+                String[] parts = documentDirectory.getName().split("\\.", 2);
+                recordDocument(parts[0], parts[1], mark, data.length);
+
+                return new SerializedDocument(parts[0], parts[1], data,
+                        compressionPolicy.getCompression(documentDirectory));
+            }
+        }
+
+        XWikiDocument xwikiDocument = XWikiDocument.createFromDirectory(document, classRegistry);
+        boolean externalReferences = recordExternalReferences(xwikiDocument, documentDirectory);
+
+        byte[] data = serializeDocument(xwikiDocument);
+        if (cache != null && !externalReferences) {
+            BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.CACHE);
+            try {
+                cache.put(cacheKey, data);
+            } finally {
+                BuildMetrics.exit(previous);
+            }
+        }
+
+        recordDocument(xwikiDocument.getSpace(), xwikiDocument.getName(), mark, data.length);
+
+        return new SerializedDocument(xwikiDocument.getSpace(), xwikiDocument.getName(), data,
+                compressionPolicy.getCompression(documentDirectory));
+    }
+
+    /**
+     * Record the files outside of its directory that a document references. Such documents are not cached, since the
+     * cache key only covers the files of the document directory. The references are declared in the document
+     * directory, so adding or removing one changes the key.
+     *
+     * @param xwikiDocument the document.
+     * @param documentDirectory the directory the document has been read from.
+     * @return true if the document references files outside its directory.
+     * @throws IOException if an error occurs.
+     */
+    private boolean recordExternalReferences(XWikiDocument xwikiDocument, File documentDirectory) throws IOException
+    {
+        boolean externalReferences = false;
+
+        String directoryPath = documentDirectory.getCanonicalPath() + File.separator;
+        for (File referencedFile : xwikiDocument.getReferencedFiles()) {
+            File canonicalFile = referencedFile.getCanonicalFile();
+            if (!canonicalFile.getPath().startsWith(directoryPath)) {
+                externalFiles.add(canonicalFile);
+                externalReferences = true;
+            }
+        }
+
+        return externalReferences;
+    }
+
+    /**
+     * @return the files outside of the document directories referenced by the documents read so far, sorted.
+     */
+    public Set<File> getExternalFiles()
+    {
+        return new TreeSet<File>(externalFiles);
+    }
+
+    /**
+     * Read a document, using the class registry of this instance.
+     *
+     * @param documentDirectory the directory containing the XWiki document data.
+     * @return the document.
+     * @throws Exception if an error occurs.
+     */
+    XWikiDocument readDocument(File documentDirectory) throws Exception
+    {
+        XWikiDocument xwikiDocument =
+                XWikiDocument.createFromDirectory(getDocumentEntry(documentDirectory), classRegistry);
+        recordExternalReferences(xwikiDocument, documentDirectory);
+
+        return xwikiDocument;
+    }
+
+    /**
+     * Get the content of a document directory, from the tree index if there is one.
+     *
+     * @param documentDirectory the directory containing the XWiki document data.
+     * @return the content of the document directory.
+     * @throws IOException if an error occurs.
+     */
+    private TreeIndex.DocumentEntry getDocumentEntry(File documentDirectory) throws IOException
+    {
+        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.READ_DOCUMENTS);
+        try {
+            return index != null ? index.getDocument(documentDirectory) : TreeIndex.scanDocument(documentDirectory);
+        } finally {
+            BuildMetrics.exit(previous);
+        }
+    }
+
+    /**
+     * Write the tree index, if there is one.
+     *
+     * @throws IOException if an error occurs.
+     */
+    private void saveIndex() throws IOException
+    {
+        if (index != null) {
+            index.save();
+        }
+    }
+
+    /**
+     * Serialize a document in a memory buffer.
+     *
+     * @param xwikiDocument the document.
+     * @return the XML serialization of the document.
+     * @throws Exception if an error occurs.
+     */
+    byte[] serializeDocument(XWikiDocument xwikiDocument) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        XARUtils.writeXWikiDocument(xwikiDocument, getOverrides(), reproducible,
+                new StreamingXMLWriter(writer, prettyPrint));
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a serialized document to the XAR, unless it didn't change since the baseline of the delta.
+     *
+     * @param serializedDocument the serialized document.
+     * @param delta the delta selecting the documents to be written, or null for writing all the documents.
+     * @param zos the XAR output stream.
+     * @param documentIds the list where the ids of the written documents are added.
+     * @throws Exception if an error occurs.
+     */
+    private void writeSerializedDocument(SerializedDocument serializedDocument, XARDelta delta,
+            XARZipOutputStream zos, List<String> documentIds) throws Exception
+    {
+        if (delta != null && !delta.isChanged(String.format("%s.%s", serializedDocument.space,
+                serializedDocument.name), serializedDocument.data))
+        {
+            return;
+        }
+
+        ZipArchiveEntry entry = createEntry(getEntryName(serializedDocument.space, serializedDocument.name));
+
+        if (serializedDocument.compressedData != null) {
+            entry.setMethod(serializedDocument.compression.getMethod());
+            entry.setSize(serializedDocument.data.length);
+            entry.setCompressedSize(serializedDocument.compressedData.length);
+            entry.setCrc(serializedDocument.crc);
+            zos.addRawArchiveEntry(entry, new ByteArrayInputStream(serializedDocument.compressedData));
+        } else {
+            if (serializedDocument.compression.getMethod() == ZipEntry.STORED) {
+                entry.setSize(serializedDocument.data.length);
+                entry.setCrc(serializedDocument.computeCrc());
+            }
+
+            zos.putArchiveEntry(entry, serializedDocument.compression);
+            zos.write(serializedDocument.data);
+            zos.closeArchiveEntry();
+        }
+
+        addDocumentId(serializedDocument.space, serializedDocument.name, documentIds);
+    }
+
+    /**
+     * @return a string describing the configuration that affects the XML serialization of documents, used as part of
+     *         the build cache keys.
+     */
+    private String getConfiguration()
+    {
+        return String.format("prettyPrint=%s,reproducible=%s,timestamp=%s", prettyPrint, reproducible, timestamp);
+    }
+
+    /**
+     * @return the values used for the document fields that are not stored in the XWikiFS.
+     */
+    private Map<String, String> getOverrides()
+    {
+        Map<String, String> overrides = new HashMap<String, String>();
+        Long effectiveTimestamp = getEffectiveTimestamp();
+        if (effectiveTimestamp != null) {
+            overrides.put("date", String.format("%d", effectiveTimestamp));
+        }
+
+        return overrides;
+    }
+
+    /**
+     * @return the timestamp used for all the dates of the XAR, or null if dates are taken from the files.
+     */
+    private Long getEffectiveTimestamp()
+    {
+        if (timestamp == null && reproducible) {
+            return DEFAULT_REPRODUCIBLE_TIMESTAMP;
+        }
+
+        return timestamp;
+    }
+
+    /**
+     * Create a ZIP entry. In reproducible mode, the entry is timestamped with the fixed timestamp, or the default one,
+     * and otherwise with the current time.
+     *
+     * @param name the name of the entry.
+     * @return the ZIP entry.
+     */
+    ZipArchiveEntry createEntry(String name)
+    {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+
+        if (reproducible) {
+            long time = getEffectiveTimestamp();
+
+            /* ZIP entries store local date-times: shift the time so that the stored value is the UTC one. */
+            entry.setTime(time - TimeZone.getDefault().getOffset(time));
+        }
+
+        return entry;
+    }
+
+    /**
+     * Wait for the result of a task, rethrowing the exception that made the task fail, if any.
+     *
+     * @param future the task.
+     * @param <T> the type of the result.
+     * @return the result of the task.
+     * @throws Exception if the task failed.
+     */
+    private static <T> T getResult(Future<T> future) throws Exception
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * @param space the space of a document.
+     * @param name the name of a document.
+     * @return the name of the XAR entry containing the document.
+     */
+    static String getEntryName(String space, String name)
+    {
+        return String.format("%s/%s.xml", space, name);
+    }
+
+    /**
+     * Record the cost of a document in the build metrics, if enabled.
+     *
+     * @param space the space of the document.
+     * @param name the name of the document.
+     * @param mark the marker taken when the current thread started working on the document.
+     * @param size the size of the XML serialization of the document.
+     */
+    private void recordDocument(String space, String name, long[] mark, long size)
+    {
+        if (metrics != null) {
+            metrics.recordDocument(String.format("%s.%s", space, name), mark, size);
+        }
+    }
+
+    private void addDocumentId(String space, String name, List<String> documentIds)
+    {
+        String documentId = String.format("%s.%s", space, name);
+        documentIds.add(documentId);
+
+        logger.info(String.format("  Added %s", documentId));
+    }
+
+    /**
+     * @return the directory containing XWiki document data, the first root when there are several roots.
+     */
+    public File getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * @return the directories containing XWiki document data.
+     */
+    public List<File> getRoots()
+    {
+        return Collections.unmodifiableList(roots);
+    }
+
+    /**
+     * Set the spaces whose documents are included. Patterns are matched against the whole space name, with {@code *}
+     * matching any sequence of characters and {@code ?} any single character.
+     *
+     * @param includes the patterns of the included spaces, or an empty list for including all the spaces.
+     */
+    public void setIncludes(List<String> includes)
+    {
+        this.includes = compileSpacePatterns(includes);
+    }
+
+    /**
+     * Set the spaces whose documents are excluded, even if they match an include pattern. Patterns are matched against
+     * the whole space name, with {@code *} matching any sequence of characters and {@code ?} any single character.
+     *
+     * @param excludes the patterns of the excluded spaces.
+     */
+    public void setExcludes(List<String> excludes)
+    {
+        this.excludes = compileSpacePatterns(excludes);
+    }
+
+    /**
+     * @return the policy deciding how documents are split into several XARs.
+     */
+    public ShardingPolicy getShardingPolicy()
+    {
+        return shardingPolicy;
+    }
+
+    /**
+     * @param shardingPolicy the policy deciding how documents are split into several XARs.
+     */
+    public void setShardingPolicy(ShardingPolicy shardingPolicy)
+    {
+        this.shardingPolicy = shardingPolicy;
+    }
+
+    private static List<Pattern> compileSpacePatterns(List<String> patterns)
+    {
+        List<Pattern> result = new ArrayList<Pattern>();
+        for (String pattern : patterns) {
+            StringBuilder regex = new StringBuilder();
+            for (String part : pattern.trim().split("((?<=[*?])|(?=[*?]))")) {
+                if ("*".equals(part)) {
+                    regex.append(".*");
+                } else if ("?".equals(part)) {
+                    regex.append('.');
+                } else if (!part.isEmpty()) {
+                    regex.append(Pattern.quote(part));
+                }
+            }
+            result.add(Pattern.compile(regex.toString()));
+        }
+
+        return result;
+    }
+
+    /**
+     * @param space a space name.
+     * @return true if the documents of the space are included.
+     */
+    private boolean isIncluded(String space)
+    {
+        for (Pattern exclude : excludes) {
+            if (exclude.matcher(space).matches()) {
+                return false;
+            }
+        }
+
+        if (includes.isEmpty()) {
+            return true;
+        }
+
+        for (Pattern include : includes) {
+            if (include.matcher(space).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the directories that contain XWiki document data, from all the roots, sorted by name.
+     * @throws IOException if an error occurs.
+     */
+    protected File[] getDocumentDirectories() throws IOException
+    {
+        Map<String, File> result = new TreeMap<String, File>();
+        for (File root : roots) {
+            List<File> documentDirectories = new ArrayList<File>();
+            if (index != null) {
+                for (File directory : index.getDirectories(root)) {
+                    if (isDocumentDirectoryName(directory.getName())) {
+                        documentDirectories.add(directory);
+                    }
+                }
+            } else {
+                documentDirectories.addAll(Arrays.asList(root.listFiles(new FileFilter()
+                {
+                    @Override public boolean accept(File file)
+                    {
+                        return isDocumentDirectory(file);
+                    }
+                })));
+            }
+
+            for (File documentDirectory : documentDirectories) {
+                File previous = result.put(documentDirectory.getName(), documentDirectory);
+                if (previous != null) {
+                    throw new IllegalArgumentException(String.format("Document %s is defined in both %s and %s",
+                            documentDirectory.getName(), previous.getParentFile(), root));
+                }
+            }
+        }
+
+        /* Directory listings are not ordered: sort them so that documents are always written in the same order. */
+        return result.values().toArray(new File[0]);
+    }
+
+    /**
+     * @param file a file.
+     * @return true if the file is a directory that contains XWiki document data, in an included space.
+     */
+    protected boolean isDocumentDirectory(File file)
+    {
+        return file.isDirectory() && isDocumentDirectoryName(file.getName());
+    }
+
+    /**
+     * @param name the name of a directory.
+     * @return true if the directory name is the one of a document, in an included space.
+     */
+    private boolean isDocumentDirectoryName(String name)
+    {
+        return name.contains(".") && isIncluded(name.substring(0, name.indexOf('.')));
+    }
+
+    /**
+     * The XML serialization of a document, ready to be added to the XAR.
+     */
+    private static class SerializedDocument
+    {
+        private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+
+        private final String space;
+
+        private final String name;
+
+        private final byte[] data;
+
+        private final CompressionPolicy.Compression compression;
+
+        private byte[] compressedData;
+
+        private long crc;
+
+        SerializedDocument(String space, String name, byte[] data, CompressionPolicy.Compression compression)
+        {
+            this.space = space;
+            this.name = name;
+            this.data = data;
+            this.compression = compression;
+        }
+
+        long computeCrc()
+        {
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, 0, data.length);
+
+            return crc32.getValue();
+        }
+
+        /**
+         * Compress the data, so that it can be copied in the XAR as is.
+         */
+        void compress()
+        {
+            BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.COMPRESS);
+            try {
+                deflate();
+            } finally {
+                BuildMetrics.exit(previous);
+            }
+        }
+
+        private void deflate()
+        {
+            crc = computeCrc();
+
+            if (compression.getMethod() == ZipEntry.STORED) {
+                compressedData = data;
+                return;
+            }
+
+            Deflater deflater = new Deflater(compression.getLevel(), true);
+            try {
+                deflater.setStrategy(compression.getStrategy());
+                deflater.setInput(data);
+                deflater.finish();
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+                byte[] buffer = new byte[COMPRESSION_BUFFER_SIZE];
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    out.write(buffer, 0, count);
+                }
 
-                logger.info("Building XAR done");
+                compressedData = out.toByteArray();
+            } finally {
+                deflater.end();
             }
         }
     }
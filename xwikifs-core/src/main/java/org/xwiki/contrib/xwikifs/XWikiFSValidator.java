@@ -0,0 +1,310 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.contrib.xwikifs.model.XWikiClass;
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * XWikiFSValidator.
+ *
+ * Checks that all the documents of an XWikiFS can be packaged, without writing any XML. Building a XAR stops at the
+ * first invalid file, while validation goes on and reports every problem found, along with the file it was found in:
+ * invalid document directory or object file names, YAML files that cannot be parsed, missing referenced files, missing
+ * class files and object properties that are not described by their class. Referenced files are checked for existence
+ * but not read.
+ *
+ * Documents are validated in parallel, using the parallelism of the XWikiFS.
+ *
+ * @version $Id$
+ */
+public class XWikiFSValidator
+{
+    protected static final Logger logger = LoggerFactory.getLogger(XWikiFSValidator.class);
+
+    private final XWikiFS xwikiFS;
+
+    /**
+     * Constructor.
+     *
+     * @param xwikiFS the XWikiFS to be validated.
+     */
+    public XWikiFSValidator(XWikiFS xwikiFS)
+    {
+        this.xwikiFS = xwikiFS;
+    }
+
+    /**
+     * Validate all the documents of the XWikiFS. Errors are logged and returned in the order of the document
+     * directories.
+     *
+     * @return the errors, empty if the XWikiFS is valid.
+     * @throws Exception if an error not related to the content of the XWikiFS occurs.
+     */
+    public List<ValidationError> validate() throws Exception
+    {
+        logger.info(String.format("Validating %s...", xwikiFS.getRoots()));
+
+        File[] documentDirectories = xwikiFS.getDocumentDirectories();
+
+        List<ValidationError> errors = new ArrayList<ValidationError>();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(xwikiFS.getParallelism());
+        try {
+            List<Future<List<ValidationError>>> results = new ArrayList<Future<List<ValidationError>>>();
+            for (final File documentDirectory : documentDirectories) {
+                results.add(executorService.submit(new Callable<List<ValidationError>>()
+                {
+                    @Override public List<ValidationError> call()
+                    {
+                        return validateDocument(documentDirectory);
+                    }
+                }));
+            }
+
+            for (Future<List<ValidationError>> result : results) {
+                try {
+                    errors.addAll(result.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+
+                    throw e;
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        for (ValidationError error : errors) {
+            logger.error(error.toString());
+        }
+
+        logger.info(String.format("Validation done: %d documents checked, %d errors", documentDirectories.length,
+                errors.size()));
+
+        return errors;
+    }
+
+    /**
+     * Validate a document.
+     *
+     * @param documentDirectory the directory containing the XWiki document data.
+     * @return the errors found in the document.
+     */
+    List<ValidationError> validateDocument(File documentDirectory)
+    {
+        List<ValidationError> errors = new ArrayList<ValidationError>();
+
+        String[] parts = documentDirectory.getName().split("\\.", 2);
+        if (parts.length != 2 || parts[0].isEmpty() || parts[1].isEmpty()) {
+            errors.add(new ValidationError(documentDirectory, "Directory name is not a valid Space.Name reference"));
+        }
+
+        File documentFile = new File(documentDirectory, Constants.DOCUMENT_FILE_NAME);
+        if (documentFile.exists()) {
+            readYaml(documentFile, errors);
+        }
+
+        File classFile = new File(documentDirectory, Constants.CLASS_FILE_NAME);
+        if (classFile.exists()) {
+            getXWikiClass(classFile, new HashMap<File, XWikiClass>(), errors);
+        }
+
+        File objectsDirectory = new File(documentDirectory, Constants.OBJECTS_DIRECTORY_NAME);
+        File[] objectFiles = objectsDirectory.listFiles(new FilenameFilter()
+        {
+            @Override public boolean accept(File dir, String name)
+            {
+                return name.endsWith(Constants.OBJECT_FILE_EXTENSION);
+            }
+        });
+        if (objectFiles != null) {
+            Arrays.sort(objectFiles);
+
+            /* Objects of the same class share a class file, which is parsed and reported only once. */
+            Map<File, XWikiClass> classes = new HashMap<File, XWikiClass>();
+            for (File objectFile : objectFiles) {
+                validateObject(objectFile, classes, errors);
+            }
+        }
+
+        File[] attachments = new File(documentDirectory, Constants.ATTACHMENTS_DIRECTORY_NAME).listFiles();
+        if (attachments != null) {
+            Arrays.sort(attachments);
+            for (File attachment : attachments) {
+                if (!attachment.isFile()) {
+                    errors.add(new ValidationError(attachment, "Attachment is not a regular file"));
+                }
+            }
+        }
+
+        return errors;
+    }
+
+    private void validateObject(File objectFile, Map<File, XWikiClass> classes, List<ValidationError> errors)
+    {
+        String objectName = objectFile.getName();
+        objectName = objectName.substring(0, objectName.length() - Constants.OBJECT_FILE_EXTENSION.length());
+
+        String[] parts = objectName.split("-", 2);
+        if (parts.length != 2 || !parts[0].contains(".") || !parts[1].matches("[0-9]+")) {
+            errors.add(new ValidationError(objectFile, "File name must be in the form of Space.Class-Number"));
+            return;
+        }
+
+        MapWithReferences properties = readYaml(objectFile, errors);
+
+        File classFile = new File(new File(objectFile.getParentFile(), Constants.CLASSINFO_DIRECTORY_NAME),
+                String.format("%s%s", parts[0], Constants.CLASS_FILE_EXTENSION));
+        if (!classFile.isFile()) {
+            errors.add(new ValidationError(objectFile,
+                    String.format("Class file for class %s doesn't exist at %s", parts[0], classFile)));
+            return;
+        }
+
+        XWikiClass xwikiClass = getXWikiClass(classFile, classes, errors);
+        if (properties == null || xwikiClass == null) {
+            return;
+        }
+
+        for (Object key : properties.keySet()) {
+            if (!xwikiClass.hasProperty(String.valueOf(key))) {
+                errors.add(new ValidationError(objectFile,
+                        String.format("Property %s is not described in class %s", key, xwikiClass.getName())));
+            }
+        }
+    }
+
+    /**
+     * @param classFile a class file.
+     * @param classes the class files of the document already parsed, mapped to the class or to null if the class file
+     *            is invalid.
+     * @param errors the list where errors are added.
+     * @return the class, or null if the class file is invalid.
+     */
+    private XWikiClass getXWikiClass(File classFile, Map<File, XWikiClass> classes, List<ValidationError> errors)
+    {
+        if (classes.containsKey(classFile)) {
+            return classes.get(classFile);
+        }
+
+        XWikiClass xwikiClass = null;
+        try {
+            xwikiClass = xwikiFS.getClassRegistry().getXWikiClass(classFile);
+        } catch (Exception e) {
+            /* Whatever the failure, it is reported for this class file and validation goes on. */
+            errors.add(new ValidationError(classFile, getMessage(e)));
+        }
+        classes.put(classFile, xwikiClass);
+
+        return xwikiClass;
+    }
+
+    /**
+     * @param file a YAML file.
+     * @param errors the list where errors are added.
+     * @return the content of the file, or null if the file is invalid.
+     */
+    private MapWithReferences readYaml(File file, List<ValidationError> errors)
+    {
+        try {
+            Object data = YamlEngine.load(FileContent.readString(file));
+            if (!(data instanceof Map)) {
+                errors.add(new ValidationError(file, "Content is not a YAML map"));
+            } else if (checkReferences(file, (Map) data, errors)) {
+                return MapWithReferences.fromMap(file.getParentFile(), (Map) data, true);
+            }
+        } catch (IOException | YAMLException e) {
+            errors.add(new ValidationError(file, getMessage(e)));
+        }
+
+        return null;
+    }
+
+    /**
+     * Check that the files referenced by a YAML map and by its nested maps exist. Every missing file is reported,
+     * while reading the map would stop at the first one.
+     *
+     * @param file the YAML file.
+     * @param map the content of the file.
+     * @param errors the list where errors are added.
+     * @return true if all the referenced files exist.
+     */
+    private boolean checkReferences(File file, Map map, List<ValidationError> errors)
+    {
+        boolean valid = true;
+        for (Object value : map.values()) {
+            if (value instanceof String && MapWithReferences.isReference((String) value)) {
+                File referencedFile =
+                        new File(file.getParentFile(), MapWithReferences.getReferenceId((String) value));
+                if (!referencedFile.isFile()) {
+                    errors.add(new ValidationError(file,
+                            String.format("%s (referenced file doesn't exist)", referencedFile)));
+                    valid = false;
+                }
+            } else if (value instanceof Map) {
+                valid &= checkReferences(file, (Map) value, errors);
+            }
+        }
+
+        return valid;
+    }
+
+    private static String getMessage(Exception e)
+    {
+        return e.getMessage() != null ? e.getMessage().trim() : e.getClass().getName();
+    }
+
+    /**
+     * A problem found in a file of the XWikiFS.
+     */
+    public static class ValidationError
+    {
+        private final File file;
+
+        private final String message;
+
+        ValidationError(File file, String message)
+        {
+            this.file = file;
+            this.message = message;
+        }
+
+        /**
+         * @return the file where the problem was found.
+         */
+        public File getFile()
+        {
+            return file;
+        }
+
+        /**
+         * @return the description of the problem.
+         */
+        public String getMessage()
+        {
+            return message;
+        }
+
+        @Override public String toString()
+        {
+            return String.format("%s: %s", file, message);
+        }
+    }
+}
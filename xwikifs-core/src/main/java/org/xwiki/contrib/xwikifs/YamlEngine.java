@@ -0,0 +1,69 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.InputStream;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * YamlEngine.
+ *
+ * Shared access to YAML parsing and serialization using the XWikiFS canonical options. SnakeYAML instances are
+ * expensive to set up and are not thread-safe, so each thread lazily creates its own instance and reuses it for all
+ * the files it reads or writes.
+ *
+ * @version $Id$
+ */
+public final class YamlEngine
+{
+    private static final ThreadLocal<Yaml> YAML = new ThreadLocal<Yaml>()
+    {
+        @Override protected Yaml initialValue()
+        {
+            DumperOptions opts = new DumperOptions();
+            opts.setCanonical(false);
+            opts.setPrettyFlow(true);
+            opts.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+            opts.setDefaultScalarStyle(DumperOptions.ScalarStyle.PLAIN);
+
+            return new Yaml(opts);
+        }
+    };
+
+    private YamlEngine()
+    {
+    }
+
+    /**
+     * Parse a YAML document.
+     *
+     * @param in the input stream containing the YAML document (not closed by this method).
+     * @return the parsed data.
+     */
+    public static Object load(InputStream in)
+    {
+        return YAML.get().load(in);
+    }
+
+    /**
+     * Parse a YAML document.
+     *
+     * @param yaml the YAML document.
+     * @return the parsed data.
+     */
+    public static Object load(String yaml)
+    {
+        return YAML.get().load(yaml);
+    }
+
+    /**
+     * Serialize data as a YAML document.
+     *
+     * @param data the data to be serialized.
+     * @return the YAML document.
+     */
+    public static String dump(Object data)
+    {
+        return YAML.get().dump(data);
+    }
+}
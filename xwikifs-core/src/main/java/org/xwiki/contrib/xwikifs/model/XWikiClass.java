@@ -2,21 +2,51 @@ package org.xwiki.contrib.xwikifs.model;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.xwiki.contrib.xwikifs.MapWithReferences;
-import org.yaml.snakeyaml.Yaml;
 
 /**
  * XWikiClass.
  *
+ * Instances are never modified after being created, except for the cache of the property orders of their objects, so
+ * that they can be shared by all the objects of a class.
+ *
  * @version $Id$
  */
 public class XWikiClass
 {
     private MapWithReferences data;
 
+    /**
+     * The names of the properties described by the class, in the order of the class file. Objects store their values
+     * by position in this array.
+     */
+    private String[] propertyNames;
+
+    /**
+     * The position of each property in {@link #propertyNames}.
+     */
+    private Map<String, Integer> propertyIndexes;
+
+    /**
+     * The distinct orders of the properties of the objects of the class, shared by all the objects using them.
+     */
+    private final ConcurrentMap<String, char[]> propertyOrders = new ConcurrentHashMap<String, char[]>();
+
+    /**
+     * The class fields other than the properties, computed once since they are written for every object of the class.
+     */
+    private Map<String, String> fields;
+
     protected XWikiClass()
     {
     }
@@ -27,36 +57,148 @@ public class XWikiClass
             throw new IllegalArgumentException(String.format("%s doesn't exist or is not a regular file", target));
         }
 
-        XWikiClass result = new XWikiClass();
-
-        result.data = MapWithReferences.fromYaml(target);
-
-        return result;
+        return create(MapWithReferences.fromYaml(target));
     }
 
-    public String getName()
+    /**
+     * Create a class from the content of a class file that has already been read.
+     *
+     * @param target the class file.
+     * @param content the content of the class file.
+     * @return the class.
+     * @throws Exception if an error occurs.
+     */
+    public static XWikiClass createFromFile(File target, String content) throws Exception
     {
-        return (String) data.get("name");
+        return create(MapWithReferences.fromYaml(target, content, false));
     }
 
-    public Map<String, String> getData()
+    private static XWikiClass create(MapWithReferences data)
     {
-        Map<String, String> result = new LinkedHashMap<String, String>();
-        for (Object key : data.keySet()) {
+        XWikiClass result = new XWikiClass();
+
+        result.data = data;
+
+        Object propertiesValue = result.data.get("properties");
+        if (propertiesValue != null && !(propertiesValue instanceof Map)) {
+            throw new IllegalArgumentException(String.format("Properties of class %s are not a YAML map",
+                    result.getName()));
+        }
+
+        /* Only properties with attributes are described, so that objects using the others fail early. */
+        List<String> propertyNames = new ArrayList<String>();
+        result.propertyIndexes = new HashMap<String, Integer>();
+        if (propertiesValue != null) {
+            for (Map.Entry<?, ?> property : ((Map<?, ?>) propertiesValue).entrySet()) {
+                if (property.getValue() == null) {
+                    continue;
+                }
+                if (!(property.getValue() instanceof Map)) {
+                    throw new IllegalArgumentException(String.format("Property %s of class %s is not a YAML map",
+                            property.getKey(), result.getName()));
+                }
+
+                String propertyName = property.getKey().toString();
+                result.propertyIndexes.put(propertyName, propertyNames.size());
+                propertyNames.add(propertyName);
+            }
+        }
+        result.propertyNames = propertyNames.toArray(new String[propertyNames.size()]);
+
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        for (Object key : result.data.keySet()) {
             if (!"properties".equals(key)) {
-                Object value = data.get(key);
+                Object value = result.data.get(key);
                 if (value != null) {
-                    result.put((String) key, value.toString());
+                    fields.put(key.toString(), value.toString());
                 }
             }
         }
+        result.fields = Collections.unmodifiableMap(fields);
 
         return result;
     }
 
+    public String getName()
+    {
+        Object name = data.get("name");
+
+        return name != null ? name.toString() : null;
+    }
+
+    /**
+     * @return the files referenced by the class file.
+     */
+    public Set<File> getReferencedFiles()
+    {
+        return data.getReferencedFiles();
+    }
+
+    /**
+     * @return the class fields other than the properties, with their values as strings. Fields without value are
+     *         left out.
+     */
+    public Map<String, String> getData()
+    {
+        return fields;
+    }
+
     public Map<String, Map<String, String>> getProperties()
     {
-        return (Map<String, Map<String, String>>) data.get("properties");
+        Map<String, Map<String, String>> properties = (Map<String, Map<String, String>>) data.get("properties");
+
+        return properties != null ? Collections.unmodifiableMap(properties) : null;
+    }
+
+    /**
+     * @param property a property name.
+     * @return true if the property is described by the class, with its attributes.
+     */
+    public boolean hasProperty(String property)
+    {
+        return propertyIndexes.containsKey(property);
+    }
+
+    /**
+     * @return the number of properties described by the class.
+     */
+    public int getPropertyCount()
+    {
+        return propertyNames.length;
+    }
+
+    /**
+     * @param property a property name.
+     * @return the position of the property in the class, or -1 if the property is not described by the class.
+     */
+    public int getPropertyIndex(String property)
+    {
+        Integer index = propertyIndexes.get(property);
+
+        return index != null ? index : -1;
+    }
+
+    /**
+     * @param index the position of a property in the class.
+     * @return the name of the property.
+     */
+    public String getPropertyName(int index)
+    {
+        return propertyNames[index];
+    }
+
+    /**
+     * Get the shared instance of an order of properties, so that objects listing their properties in the same order
+     * don't each keep their own copy.
+     *
+     * @param order positions of properties in the class.
+     * @return an array equal to the given one, not to be modified.
+     */
+    char[] internPropertyOrder(char[] order)
+    {
+        char[] existing = propertyOrders.putIfAbsent(new String(order), order);
+
+        return existing != null ? existing : order;
     }
 
     public Map getPropertyAttributes(String property)
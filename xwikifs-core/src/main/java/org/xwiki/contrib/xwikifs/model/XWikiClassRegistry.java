@@ -0,0 +1,333 @@
+package org.xwiki.contrib.xwikifs.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.xwiki.contrib.xwikifs.BuildMetrics;
+import org.xwiki.contrib.xwikifs.FileContent;
+
+/**
+ * XWikiClassRegistry.
+ *
+ * A thread-safe cache of parsed class files. Class files are identified by their canonical path and are parsed only
+ * once as long as their modification date and size don't change, so that the same {@link XWikiClass} instance is
+ * shared by all the objects (and documents) that refer to it.
+ *
+ * Each document usually has its own copy of the class files of its objects, so class files with identical content
+ * also share the same instance, unless they contain references, which are resolved relative to the class file. A
+ * shared instance is dropped once no class file with its content is in the registry anymore.
+ *
+ * @version $Id$
+ */
+public class XWikiClassRegistry
+{
+    /**
+     * The marker of references in YAML files.
+     */
+    private static final String REFERENCE_MARKER = "->";
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The classes parsed from class files without references, by class file content, along with the number of
+     * entries using them. Guarded by the registry.
+     */
+    private final Map<String, SharedClass> classesByContent = new HashMap<String, SharedClass>();
+
+    /**
+     * The strings repeated in many objects, such as class names and short property values, so that each one is kept
+     * once in memory for all the objects read with this registry.
+     */
+    private final ConcurrentMap<String, String> strings = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The XML of the classes of the registry, by class. A class is usually shared by many objects, so that its XML is
+     * rendered once for each format it is written with and then copied as is. Classes are keyed by identity, and
+     * their XML is dropped along with them.
+     */
+    private final ConcurrentMap<XWikiClass, Fragments> fragments = new ConcurrentHashMap<XWikiClass, Fragments>();
+
+    /**
+     * Get the class described by a class file, parsing the file only if it has not been parsed yet or if it has been
+     * modified since the last time it was parsed.
+     *
+     * @param classFile the class file.
+     * @return the class.
+     * @throws Exception if an error occurs.
+     */
+    public XWikiClass getXWikiClass(File classFile) throws Exception
+    {
+        final File canonicalFile = classFile.getCanonicalFile();
+        String key = canonicalFile.getPath();
+        long lastModified = canonicalFile.lastModified();
+        long length = canonicalFile.length();
+
+        Entry entry = entries.get(key);
+        while (entry == null || entry.lastModified != lastModified || entry.length != length) {
+            final Entry newEntry = new Entry(lastModified, length);
+            newEntry.xwikiClass = new FutureTask<XWikiClass>(new Callable<XWikiClass>()
+            {
+                @Override public XWikiClass call() throws Exception
+                {
+                    long start = BuildMetrics.now();
+                    XWikiClass xwikiClass = parse(canonicalFile, newEntry);
+                    BuildMetrics.classParsed(BuildMetrics.now() - start);
+
+                    return xwikiClass;
+                }
+            });
+
+            boolean added;
+            if (entry == null) {
+                added = entries.putIfAbsent(key, newEntry) == null;
+            } else {
+                added = entries.replace(key, entry, newEntry);
+                if (added) {
+                    release(entry);
+                }
+            }
+
+            if (added) {
+                /* Parse in the calling thread, other threads asking for the same class will wait for the result. */
+                newEntry.xwikiClass.run();
+                entry = newEntry;
+            } else {
+                entry = entries.get(key);
+            }
+        }
+
+        try {
+            return entry.xwikiClass.get();
+        } catch (ExecutionException e) {
+            /* Don't keep failures, so that a fixed class file is parsed again. */
+            if (entries.remove(key, entry)) {
+                release(entry);
+            }
+
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+
+            throw new IOException(String.format("Unable to parse %s", classFile), e.getCause());
+        }
+    }
+
+    /**
+     * @param string a string read from an object file.
+     * @return the instance equal to the string that is shared by all the objects read with this registry.
+     */
+    public String getSharedString(String string)
+    {
+        String sharedString = strings.putIfAbsent(string, string);
+
+        return sharedString != null ? sharedString : string;
+    }
+
+    /**
+     * @param xwikiClass a class of the registry.
+     * @param prettyPrint true for the XML of the class when indented, false for the compact one.
+     * @return the XML of the class in the given format, by depth of the class element, to be filled by the callers
+     *         rendering it.
+     */
+    public ConcurrentMap<Integer, String> getFragments(XWikiClass xwikiClass, boolean prettyPrint)
+    {
+        Fragments classFragments = fragments.get(xwikiClass);
+        if (classFragments == null) {
+            classFragments = new Fragments();
+            Fragments previous = fragments.putIfAbsent(xwikiClass, classFragments);
+            if (previous != null) {
+                classFragments = previous;
+            }
+        }
+
+        return prettyPrint ? classFragments.prettyPrinted : classFragments.compact;
+    }
+
+    /**
+     * Parse a class file, unless a class file with the same content has already been parsed.
+     *
+     * @param classFile the class file.
+     * @param entry the registry entry of the class file.
+     * @return the class.
+     * @throws Exception if an error occurs.
+     */
+    private XWikiClass parse(File classFile, Entry entry) throws Exception
+    {
+        String content = FileContent.readString(classFile);
+        if (content.contains(REFERENCE_MARKER)) {
+            return XWikiClass.createFromFile(classFile, content);
+        }
+
+        XWikiClass xwikiClass = getSharedClass(content);
+        if (xwikiClass == null) {
+            xwikiClass = XWikiClass.createFromFile(classFile, content);
+        }
+
+        return share(entry, content, xwikiClass);
+    }
+
+    private synchronized XWikiClass getSharedClass(String content)
+    {
+        SharedClass sharedClass = classesByContent.get(content);
+
+        return sharedClass != null ? sharedClass.xwikiClass : null;
+    }
+
+    /**
+     * Record that an entry uses the class parsed from some content.
+     *
+     * @param entry the registry entry.
+     * @param content the content of the class file.
+     * @param xwikiClass the class parsed from the content, used unless another one has been shared meanwhile.
+     * @return the shared class.
+     */
+    private synchronized XWikiClass share(Entry entry, String content, XWikiClass xwikiClass)
+    {
+        /* The entry has been replaced while being parsed, it would never be released. */
+        if (entry.released) {
+            return xwikiClass;
+        }
+
+        SharedClass sharedClass = classesByContent.get(content);
+        if (sharedClass == null) {
+            sharedClass = new SharedClass(xwikiClass);
+            classesByContent.put(content, sharedClass);
+        }
+        sharedClass.users++;
+        entry.content = content;
+
+        return sharedClass.xwikiClass;
+    }
+
+    /**
+     * Record that an entry has been removed from the registry, dropping the class it shared if it was the last one
+     * using it.
+     *
+     * @param entry the removed entry.
+     */
+    private synchronized void release(Entry entry)
+    {
+        entry.released = true;
+
+        if (entry.content != null) {
+            SharedClass sharedClass = classesByContent.get(entry.content);
+            if (--sharedClass.users == 0) {
+                classesByContent.remove(entry.content);
+                fragments.remove(sharedClass.xwikiClass);
+            }
+            entry.content = null;
+        } else {
+            XWikiClass xwikiClass = entry.getParsedClass();
+            if (xwikiClass != null) {
+                fragments.remove(xwikiClass);
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct class contents shared by class files.
+     */
+    synchronized int getSharedClassCount()
+    {
+        return classesByContent.size();
+    }
+
+    /**
+     * @return the number of classes whose XML is kept.
+     */
+    int getFragmentsCount()
+    {
+        return fragments.size();
+    }
+
+    /**
+     * @return the number of class files in the registry.
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * A parsed class file along with the file attributes used for detecting changes.
+     */
+    private static class Entry
+    {
+        private final long lastModified;
+
+        private final long length;
+
+        /**
+         * Set before the entry is added to the registry.
+         */
+        private FutureTask<XWikiClass> xwikiClass;
+
+        /**
+         * The content of the shared class used by the entry, or null. Guarded by the registry.
+         */
+        private String content;
+
+        /**
+         * True once the entry has been removed from the registry. Guarded by the registry.
+         */
+        private boolean released;
+
+        Entry(long lastModified, long length)
+        {
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * @return the class of the entry, or null if the class file is still being parsed or could not be parsed.
+         */
+        XWikiClass getParsedClass()
+        {
+            if (!xwikiClass.isDone()) {
+                return null;
+            }
+
+            try {
+                return xwikiClass.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A class shared by the class files with the same content.
+     */
+    private static class SharedClass
+    {
+        private final XWikiClass xwikiClass;
+
+        private int users;
+
+        SharedClass(XWikiClass xwikiClass)
+        {
+            this.xwikiClass = xwikiClass;
+        }
+    }
+
+    /**
+     * The XML of a class, by depth of the class element, for each format.
+     */
+    private static class Fragments
+    {
+        private final ConcurrentMap<Integer, String> prettyPrinted = new ConcurrentHashMap<Integer, String>();
+
+        private final ConcurrentMap<Integer, String> compact = new ConcurrentHashMap<Integer, String>();
+    }
+}
@@ -1,17 +1,20 @@
 package org.xwiki.contrib.xwikifs.model;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FilenameFilter;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.xwiki.contrib.xwikifs.BuildMetrics;
 import org.xwiki.contrib.xwikifs.Constants;
 import org.xwiki.contrib.xwikifs.MapWithReferences;
-import org.yaml.snakeyaml.Yaml;
+import org.xwiki.contrib.xwikifs.ReferencedContent;
+import org.xwiki.contrib.xwikifs.TreeIndex;
 
 /**
  * XWikiDocument.
@@ -20,6 +23,22 @@ import org.yaml.snakeyaml.Yaml;
  */
 public class XWikiDocument
 {
+    /**
+     * Orders objects by class name and then by number.
+     */
+    private static final Comparator<XWikiObject> OBJECT_COMPARATOR = new Comparator<XWikiObject>()
+    {
+        @Override public int compare(XWikiObject object1, XWikiObject object2)
+        {
+            int result = object1.getClassName().compareTo(object2.getClassName());
+            if (result == 0) {
+                result = Integer.compare(object1.getNumber(), object2.getNumber());
+            }
+
+            return result;
+        }
+    };
+
     private String space;
 
     private String name;
@@ -34,15 +53,61 @@ public class XWikiDocument
 
     private long lastModified;
 
+    /**
+     * The registry the classes of the document and of its objects come from.
+     */
+    private XWikiClassRegistry classRegistry;
+
     protected XWikiDocument()
     {
     }
 
     public static XWikiDocument createFromDirectory(File target) throws Exception
     {
-        if (!(target.exists() && target.isDirectory())) {
-            throw new IllegalArgumentException(String.format("%s doesn't exist or is not a directory.", target));
+        return createFromDirectory(target, new XWikiClassRegistry());
+    }
+
+    /**
+     * Create a document from a document directory.
+     *
+     * @param target the document directory.
+     * @param classRegistry the registry used for getting the classes of the document and of its objects.
+     * @return the document.
+     * @throws Exception if an error occurs.
+     */
+    public static XWikiDocument createFromDirectory(File target, XWikiClassRegistry classRegistry) throws Exception
+    {
+        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.READ_DOCUMENTS);
+        try {
+            return readFromDirectory(TreeIndex.scanDocument(target), classRegistry);
+        } finally {
+            BuildMetrics.exit(previous);
         }
+    }
+
+    /**
+     * Create a document from a document directory whose content is known, without listing it again.
+     *
+     * @param document the content of the document directory.
+     * @param classRegistry the registry used for getting the classes of the document and of its objects.
+     * @return the document.
+     * @throws Exception if an error occurs.
+     */
+    public static XWikiDocument createFromDirectory(TreeIndex.DocumentEntry document,
+            XWikiClassRegistry classRegistry) throws Exception
+    {
+        BuildMetrics.Phase previous = BuildMetrics.enter(BuildMetrics.Phase.READ_DOCUMENTS);
+        try {
+            return readFromDirectory(document, classRegistry);
+        } finally {
+            BuildMetrics.exit(previous);
+        }
+    }
+
+    private static XWikiDocument readFromDirectory(TreeIndex.DocumentEntry document, XWikiClassRegistry classRegistry)
+            throws Exception
+    {
+        File target = document.getDirectory();
 
         /* Create a document whose id is based on the directory name */
         String directoryName = target.getName();
@@ -62,43 +127,45 @@ public class XWikiDocument
                     String.format("%s is not a valid XWiki Document identifier", directoryName));
         }
 
-        result.lastModified = target.lastModified();
+        result.lastModified = document.getLastModified();
+        result.classRegistry = classRegistry;
 
         /* Parse the content. */
-        File documentFile = new File(target, Constants.DOCUMENT_FILE_NAME);
-        if (documentFile.exists()) {
-            result.data = MapWithReferences.fromYaml(documentFile);
+        if (document.exists(Constants.DOCUMENT_FILE_NAME)) {
+            result.data = MapWithReferences.fromYaml(document.getFile(Constants.DOCUMENT_FILE_NAME), true);
         } else {
             result.data = new MapWithReferences();
         }
 
         /* Parse the class if it exists. */
-        File classFile = new File(target, Constants.CLASS_FILE_NAME);
-        if (classFile.exists() && classFile.isFile()) {
-            result.xwikiClass = XWikiClass.createFromFile(classFile);
+        if (document.isFile(Constants.CLASS_FILE_NAME)) {
+            result.xwikiClass = classRegistry.getXWikiClass(document.getFile(Constants.CLASS_FILE_NAME));
         }
 
         /* Find objects */
-        File objectsDir = new File(target, Constants.OBJECTS_DIRECTORY_NAME);
-        if (objectsDir.exists()) {
-            File[] objectFiles = objectsDir.listFiles(new FilenameFilter()
-            {
-                @Override public boolean accept(File dir, String name)
-                {
-                    return name.endsWith(Constants.OBJECT_FILE_EXTENSION);
-                }
-            });
-
+        List<String> objectFileNames = document.list(Constants.OBJECTS_DIRECTORY_NAME);
+        if (objectFileNames != null) {
             result.objects = new ArrayList<XWikiObject>();
-            for (File objectFile : objectFiles) {
-                result.objects.add(XWikiObject.createFromFile(result, objectFile));
+            for (String objectFileName : objectFileNames) {
+                if (objectFileName.endsWith(Constants.OBJECT_FILE_EXTENSION)) {
+                    File objectFile = document.getFile(
+                            String.format("%s/%s", Constants.OBJECTS_DIRECTORY_NAME, objectFileName));
+                    result.objects.add(XWikiObject.createFromFile(result, objectFile, classRegistry));
+                }
             }
+
+            /* Directory listings are not ordered: sort objects so that serializations are reproducible. */
+            Collections.sort(result.objects, OBJECT_COMPARATOR);
         }
 
         /* Find attachments */
-        File attachmentsDir = new File(target, Constants.ATTACHMENTS_DIRECTORY_NAME);
-        if (attachmentsDir.exists()) {
-            result.attachments = Arrays.asList(attachmentsDir.listFiles());
+        List<String> attachmentFileNames = document.list(Constants.ATTACHMENTS_DIRECTORY_NAME);
+        if (attachmentFileNames != null) {
+            result.attachments = new ArrayList<File>();
+            for (String attachmentFileName : attachmentFileNames) {
+                result.attachments.add(document.getFile(
+                        String.format("%s/%s", Constants.ATTACHMENTS_DIRECTORY_NAME, attachmentFileName)));
+            }
         }
 
         return result;
@@ -125,16 +192,53 @@ public class XWikiDocument
         }
     }
 
+    /**
+     * @param key a data key.
+     * @return a handle to the data value if it is stored in a referenced file, null otherwise.
+     */
+    public ReferencedContent getReferencedData(String key)
+    {
+        return data.getReferencedContent(key);
+    }
+
     public List<XWikiObject> getObjects()
     {
         return objects;
     }
 
+    /**
+     * @return the files referenced by the document file, by its objects and by the classes of the document and of its
+     *         objects.
+     */
+    public Set<File> getReferencedFiles()
+    {
+        Set<File> result = new LinkedHashSet<File>(data.getReferencedFiles());
+        if (xwikiClass != null) {
+            result.addAll(xwikiClass.getReferencedFiles());
+        }
+        if (objects != null) {
+            for (XWikiObject xwikiObject : objects) {
+                result.addAll(xwikiObject.getReferencedFiles());
+                result.addAll(xwikiObject.getXWikiClass().getReferencedFiles());
+            }
+        }
+
+        return result;
+    }
+
     public XWikiClass getXWikiClass()
     {
         return xwikiClass;
     }
 
+    /**
+     * @return the registry the classes of the document and of its objects come from.
+     */
+    public XWikiClassRegistry getClassRegistry()
+    {
+        return classRegistry;
+    }
+
     public List<File> getAttachments()
     {
         return attachments;
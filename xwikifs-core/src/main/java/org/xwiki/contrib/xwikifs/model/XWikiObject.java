@@ -1,21 +1,36 @@
 package org.xwiki.contrib.xwikifs.model;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.util.Map;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.xwiki.contrib.xwikifs.Constants;
 import org.xwiki.contrib.xwikifs.MapWithReferences;
-import org.yaml.snakeyaml.Yaml;
+import org.xwiki.contrib.xwikifs.ReferencedContent;
 
 /**
  * XWikiObject.
  *
+ * Objects are stored compactly, since there can be hundreds of thousands of them in memory: property values are kept in
+ * an array indexed by the position of the properties in the class, whose names are shared by all the objects of the
+ * class. The order of the properties in the object file, which is the order they are serialized in, is kept as an
+ * array of positions that is shared by all the objects of the class listing their properties in the same order.
+ *
  * @version $Id$
  */
 public class XWikiObject
 {
+    /**
+     * Values shorter than this are shared through the class registry, since small values such as flags, numbers and
+     * user names are repeated in many objects.
+     */
+    private static final int SHARED_VALUE_MAX_LENGTH = 32;
+
     private XWikiDocument xwikiDocument;
 
     private XWikiClass xwikiClass;
@@ -24,13 +39,37 @@ public class XWikiObject
 
     private int number;
 
-    private MapWithReferences properties;
+    /**
+     * The value of each property, indexed by the position of the property in the class: a string, a
+     * {@link ReferencedContent} for values stored in referenced files, or null for missing properties.
+     */
+    private Object[] values;
+
+    /**
+     * The positions in the class of the properties of the object, in the order of the object file.
+     */
+    private char[] order;
 
     protected XWikiObject()
     {
     }
 
     public static XWikiObject createFromFile(XWikiDocument xwikiDocument, File target) throws Exception
+    {
+        return createFromFile(xwikiDocument, target, new XWikiClassRegistry());
+    }
+
+    /**
+     * Create an object from an object file.
+     *
+     * @param xwikiDocument the document the object belongs to.
+     * @param target the object file.
+     * @param classRegistry the registry used for getting the class of the object.
+     * @return the object.
+     * @throws Exception if an error occurs.
+     */
+    public static XWikiObject createFromFile(XWikiDocument xwikiDocument, File target,
+            XWikiClassRegistry classRegistry) throws Exception
     {
         if (!(target.exists() && target.isFile())) {
             throw new IllegalArgumentException(String.format("%s doesn't exist or is not a regular file"));
@@ -56,7 +95,8 @@ public class XWikiObject
             throw new IllegalArgumentException("Filename doesn't contain a valid Space.Class reference");
         }
 
-        result.className = parts[0];
+        /* Class names are repeated in every object of the class. */
+        result.className = classRegistry.getSharedString(parts[0]);
         result.number = Integer.parseInt(parts[1]);
 
         File xwikiClassFile =
@@ -67,18 +107,26 @@ public class XWikiObject
                     String.format("Class file for class %s doesn't exist at %s", result.className, xwikiClassFile));
         }
 
-        result.xwikiClass = XWikiClass.createFromFile(xwikiClassFile);
+        result.xwikiClass = classRegistry.getXWikiClass(xwikiClassFile);
 
-        result.properties = MapWithReferences.fromYaml(target);
+        MapWithReferences properties = MapWithReferences.fromYaml(target, true);
 
-        /* Check that every property in the object has a corresponding description in the class file. */
-        for (Object key : result.properties.keySet()) {
-            if (result.xwikiClass.getPropertyAttributes((String) key) == null) {
+        result.values = new Object[result.xwikiClass.getPropertyCount()];
+        char[] order = new char[properties.size()];
+        int position = 0;
+        for (Object key : properties.keySet()) {
+            /* Check that every property in the object has a corresponding description in the class file. */
+            int index = result.xwikiClass.getPropertyIndex(String.valueOf(key));
+            if (index < 0) {
                 throw new IllegalArgumentException(
                         String.format("Property %s is not described in class %s", key, result.xwikiClass.getName()));
             }
-            ;
+
+            ReferencedContent content = properties.getReferencedContent(key);
+            result.values[index] = content != null ? content : compact(properties.get(key), classRegistry);
+            order[position++] = (char) index;
         }
+        result.order = result.xwikiClass.internPropertyOrder(order);
 
         return result;
     }
@@ -103,13 +151,120 @@ public class XWikiObject
         return xwikiClass;
     }
 
+    /**
+     * @return the names of the properties of the object, in the order of the object file.
+     */
     public Set<String> getProperties()
     {
-        return (Set<String>) properties.keySet();
+        return new PropertySet();
     }
 
     public String getProperty(String property)
     {
-        return (String) properties.get(property);
+        Object value = getValue(property);
+        if (value instanceof ReferencedContent) {
+            try {
+                return ((ReferencedContent) value).get();
+            } catch (IOException e) {
+                throw new UncheckedIOException(
+                        String.format("Unable to read %s", ((ReferencedContent) value).getFile()), e);
+            }
+        }
+
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * @param property a property name.
+     * @return a handle to the property value if it is stored in a referenced file, null otherwise.
+     */
+    public ReferencedContent getReferencedProperty(String property)
+    {
+        Object value = getValue(property);
+
+        return value instanceof ReferencedContent ? (ReferencedContent) value : null;
+    }
+
+    /**
+     * @return the files referenced by the object file, not including the ones referenced by its class.
+     */
+    public Set<File> getReferencedFiles()
+    {
+        Set<File> result = new LinkedHashSet<File>();
+        for (Object value : values) {
+            if (value instanceof ReferencedContent && ((ReferencedContent) value).getFile() != null) {
+                result.add(((ReferencedContent) value).getFile());
+            } else if (value instanceof MapWithReferences) {
+                result.addAll(((MapWithReferences) value).getReferencedFiles());
+            }
+        }
+
+        return result;
+    }
+
+    private Object getValue(String property)
+    {
+        int index = xwikiClass.getPropertyIndex(property);
+
+        return index >= 0 ? values[index] : null;
+    }
+
+    /**
+     * @param value a value read from an object file.
+     * @param classRegistry the registry sharing the short strings of the objects read with it.
+     * @return the value to be stored, shared if it is a short string.
+     */
+    private static Object compact(Object value, XWikiClassRegistry classRegistry)
+    {
+        if (value instanceof String && ((String) value).length() < SHARED_VALUE_MAX_LENGTH) {
+            return classRegistry.getSharedString((String) value);
+        }
+
+        return value;
+    }
+
+    /**
+     * A view of the property names of the object, backed by the class.
+     */
+    private class PropertySet extends AbstractSet<String>
+    {
+        @Override public Iterator<String> iterator()
+        {
+            return new Iterator<String>()
+            {
+                private int position;
+
+                @Override public boolean hasNext()
+                {
+                    return position < order.length;
+                }
+
+                @Override public String next()
+                {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    return xwikiClass.getPropertyName(order[position++]);
+                }
+            };
+        }
+
+        @Override public int size()
+        {
+            return order.length;
+        }
+
+        @Override public boolean contains(Object property)
+        {
+            int index = xwikiClass.getPropertyIndex(String.valueOf(property));
+            for (char position : order) {
+                if (position == index) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
     }
 }
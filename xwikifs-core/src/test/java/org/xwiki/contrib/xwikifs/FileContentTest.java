@@ -0,0 +1,92 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FileContentTest.
+ *
+ * @version $Id$
+ */
+public class FileContentTest
+{
+    private File tempDir;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+        tempDir.mkdirs();
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testReadSmallAndLargeFiles() throws Exception
+    {
+        byte[] small = new byte[1000];
+        Arrays.fill(small, (byte) 'a');
+        File smallFile = new File(tempDir, "small.bin");
+        FileUtils.writeByteArrayToFile(smallFile, small);
+
+        ByteBuffer smallContent = FileContent.read(smallFile);
+        assertTrue(smallContent.hasArray());
+        assertArrayEquals(small, toArray(smallContent));
+
+        byte[] large = new byte[(int) FileContent.MAPPING_THRESHOLD + 1];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        File largeFile = new File(tempDir, "large.bin");
+        FileUtils.writeByteArrayToFile(largeFile, large);
+
+        ByteBuffer largeContent = FileContent.read(largeFile);
+        assertFalse(largeContent.hasArray());
+        assertArrayEquals(large, toArray(largeContent));
+    }
+
+    @Test
+    public void testTextIsUTF8() throws Exception
+    {
+        String text = "Ünïcode ✓\n";
+        File file = new File(tempDir, "content.xwiki");
+        /* Written with a byte order mark, which is not part of the text. */
+        FileUtils.writeByteArrayToFile(file, ("\uFEFF" + text).getBytes("UTF-8"));
+
+        assertEquals(text, FileContent.readString(file));
+
+        Reader reader = FileContent.openReader(file);
+        try {
+            assertEquals("\uFEFF" + text, IOUtils.toString(reader));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private byte[] toArray(ByteBuffer buffer)
+    {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+
+        return result;
+    }
+}
@@ -12,6 +12,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -82,6 +83,31 @@ public class MapWithReferencesTest
         MapWithReferences mapWithReferences = MapWithReferences.fromYaml(yamlFile);
     }
 
+    @Test
+    public void testLazyReferences() throws Exception
+    {
+        File yamlFile = new File(getClass().getResource("/nestedYaml/test.yaml").getFile());
+
+        MapWithReferences mapWithReferences = MapWithReferences.fromYaml(yamlFile, true);
+
+        assertEquals("a", mapWithReferences.get("a"));
+        assertNull(mapWithReferences.getReferencedContent("a"));
+        assertEquals("b", IOUtils.toString(mapWithReferences.getReferencedContent("b").openReader()));
+        assertEquals("b", mapWithReferences.get("b"));
+
+        MapWithReferences nestedMapWithReferences = (MapWithReferences) mapWithReferences.get("c");
+        assertEquals("cb", nestedMapWithReferences.get("cb"));
+        assertEquals(3, mapWithReferences.collectReferences(mapWithReferences).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingLazyReferences() throws Exception
+    {
+        File yamlFile = new File(getClass().getResource("/missingReferencesYaml/test.yaml").getFile());
+
+        MapWithReferences.fromYaml(yamlFile, true);
+    }
+
     @Test
     public void testCollectReferences() throws Exception
     {
@@ -0,0 +1,173 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TreeIndexTest.
+ *
+ * @version $Id$
+ */
+public class TreeIndexTest
+{
+    /**
+     * A modification date old enough for listings and hashes to be kept in the index.
+     */
+    private static final long OLD_DATE = System.currentTimeMillis() - 60000;
+
+    private File tempDir;
+
+    private File root;
+
+    private File documentDir;
+
+    private File indexFile;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+        root = new File(tempDir, "root");
+        documentDir = new File(root, "Space.Name");
+        new File(documentDir, "objects").mkdirs();
+        new File(documentDir, "attachments").mkdirs();
+        write(new File(documentDir, "document.xwd"), "content: -> content.xwiki");
+        write(new File(documentDir, "content.xwiki"), "content");
+        write(new File(documentDir, "objects/Space.Class-0.xwo"), "a: 1");
+        write(new File(documentDir, "attachments/image.png"), "png");
+        new File(root, "Other.Name").mkdirs();
+
+        indexFile = new File(tempDir, "index");
+
+        age(root, OLD_DATE);
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testScanDocument() throws Exception
+    {
+        TreeIndex.DocumentEntry document = TreeIndex.scanDocument(documentDir);
+
+        assertEquals(Arrays.asList("attachments/image.png", "content.xwiki", "document.xwd",
+                "objects/Space.Class-0.xwo"), document.getFiles());
+        assertEquals(Arrays.asList("attachments", "content.xwiki", "document.xwd", "objects"), document.list(""));
+        assertEquals(Arrays.asList("Space.Class-0.xwo"), document.list("objects"));
+        assertNull(document.list("missing"));
+        assertTrue(document.isFile("document.xwd"));
+        assertFalse(document.isFile("objects"));
+        assertTrue(document.exists("objects"));
+        assertEquals(documentDir.lastModified(), document.getLastModified());
+        assertEquals(7, document.getSize("content.xwiki"));
+    }
+
+    @Test
+    public void testUnchangedTreeIsNotScanned() throws Exception
+    {
+        TreeIndex index = TreeIndex.load(indexFile);
+        assertEquals(Arrays.asList(new File(root, "Other.Name"), documentDir), index.getDirectories(root));
+        String hash = index.getDocument(documentDir).getHash("content.xwiki");
+        index.save();
+        assertEquals(0, index.getReusedDirectories());
+        assertEquals(2, index.getScannedDirectories());
+
+        index = TreeIndex.load(indexFile);
+        assertEquals(Arrays.asList(new File(root, "Other.Name"), documentDir), index.getDirectories(root));
+        TreeIndex.DocumentEntry document = index.getDocument(documentDir);
+        assertEquals(hash, document.getHash("content.xwiki"));
+        assertEquals(Arrays.asList("Space.Class-0.xwo"), document.list("objects"));
+        assertEquals(2, index.getReusedDirectories());
+        assertEquals(0, index.getScannedDirectories());
+    }
+
+    @Test
+    public void testChangesAreDetected() throws Exception
+    {
+        TreeIndex index = TreeIndex.load(indexFile);
+        index.getDirectories(root);
+        String hash = index.getDocument(documentDir).getHash("content.xwiki");
+        index.save();
+
+        /* Same size, different content and date. */
+        write(new File(documentDir, "content.xwiki"), "changed");
+        write(new File(documentDir, "attachments/other.png"), "png");
+        FileUtils.deleteDirectory(new File(root, "Other.Name"));
+        age(root, OLD_DATE + 1000);
+
+        index = TreeIndex.load(indexFile);
+        assertEquals(Arrays.asList(documentDir), index.getDirectories(root));
+        TreeIndex.DocumentEntry document = index.getDocument(documentDir);
+        assertEquals(Arrays.asList("image.png", "other.png"), document.list("attachments"));
+        assertFalse(hash.equals(document.getHash("content.xwiki")));
+        assertEquals(2, index.getScannedDirectories());
+    }
+
+    @Test
+    public void testRecentChangesAreNotKept() throws Exception
+    {
+        write(new File(documentDir, "objects/Space.Class-1.xwo"), "a: 2");
+
+        TreeIndex index = TreeIndex.load(indexFile);
+        index.getDirectories(root);
+        index.getDocument(documentDir);
+        index.save();
+
+        /* The objects directory has just been modified, so its listing is not trusted. */
+        index = TreeIndex.load(indexFile);
+        index.getDirectories(root);
+        List<String> objects = index.getDocument(documentDir).list("objects");
+        assertEquals(Arrays.asList("Space.Class-0.xwo", "Space.Class-1.xwo"), objects);
+        assertEquals(1, index.getReusedDirectories());
+        assertEquals(1, index.getScannedDirectories());
+    }
+
+    @Test
+    public void testInvalidIndexIsIgnored() throws Exception
+    {
+        write(indexFile, "xwikifs-index\t1\nunexpected\n");
+
+        TreeIndex index = TreeIndex.load(indexFile);
+        assertEquals(2, index.getDirectories(root).size());
+        assertEquals(1, index.getScannedDirectories());
+    }
+
+    /**
+     * Set an old modification date on a directory and everything it contains.
+     */
+    private void age(File file, long date)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                age(child, date);
+            }
+        }
+        file.setLastModified(date);
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        IOUtils.write(content, out);
+        out.close();
+    }
+}
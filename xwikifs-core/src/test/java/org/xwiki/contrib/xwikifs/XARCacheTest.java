@@ -0,0 +1,135 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XARCacheTest.
+ *
+ * @version $Id$
+ */
+public class XARCacheTest
+{
+    private File tempDir;
+
+    private File documentDir;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+        tempDir.mkdirs();
+
+        documentDir = new File(tempDir, "Space.Name");
+        documentDir.mkdirs();
+        write(new File(documentDir, "document.xwd"), "content: -> content.xwiki");
+        write(new File(documentDir, "content.xwiki"), "content");
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testKeyChangesWithContent() throws Exception
+    {
+        XARCache cache = new XARCache(new File(tempDir, "cache"));
+
+        String key = cache.computeKey(documentDir, "configuration");
+        assertEquals(key, cache.computeKey(documentDir, "configuration"));
+        assertFalse(key.equals(cache.computeKey(documentDir, "another configuration")));
+
+        write(new File(documentDir, "content.xwiki"), "modified content");
+        assertFalse(key.equals(cache.computeKey(documentDir, "configuration")));
+    }
+
+    @Test
+    public void testGetAndPut() throws Exception
+    {
+        XARCache cache = new XARCache(new File(tempDir, "cache"));
+        String key = cache.computeKey(documentDir, "configuration");
+
+        assertNull(cache.get(key));
+        cache.put(key, "data".getBytes("UTF-8"));
+        assertArrayEquals("data".getBytes("UTF-8"), cache.get(key));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testPrune() throws Exception
+    {
+        File cacheDir = new File(tempDir, "cache");
+        XARCache cache = new XARCache(cacheDir);
+        cache.put("a", new byte[0]);
+        cache.put("b", new byte[0]);
+
+        cache = new XARCache(cacheDir);
+        cache.get("a");
+
+        assertEquals(1, cache.prune());
+        assertEquals(1, cacheDir.list().length);
+    }
+
+    @Test
+    public void testExternalReferencesAreNotCached() throws Exception
+    {
+        File sharedDir = new File(tempDir, "shared");
+        sharedDir.mkdirs();
+        write(new File(sharedDir, "content.xwiki"), "shared content");
+        File sharedDocumentDir = new File(tempDir, "Space.Shared");
+        sharedDocumentDir.mkdirs();
+        write(new File(sharedDocumentDir, "document.xwd"), "content: -> ../shared/content.xwiki");
+
+        File cacheDir = new File(tempDir, "cache");
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.setCacheDirectory(cacheDir);
+        xwikiFS.writeXAR(new ByteArrayOutputStream());
+
+        /* Only the document without external references is cached. */
+        assertEquals(1, cacheDir.list().length);
+
+        write(new File(sharedDir, "content.xwiki"), "modified shared content");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        xwikiFS.writeXAR(out);
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        try {
+            ZipEntry entry;
+            while (!(entry = zis.getNextEntry()).getName().equals("Space/Shared.xml")) {
+                zis.closeEntry();
+            }
+            assertTrue(IOUtils.toString(zis, "UTF-8").contains("<content>modified shared content</content>"));
+        } finally {
+            zis.close();
+        }
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        IOUtils.write(content, out);
+        out.close();
+    }
+}
@@ -0,0 +1,196 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XARDeltaTest.
+ *
+ * @version $Id$
+ */
+public class XARDeltaTest
+{
+    private File tempDir;
+
+    private File root;
+
+    private File baselineFile;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+        root = new File(tempDir, "root");
+
+        for (int i = 0; i < 3; i++) {
+            File documentDir = new File(root, String.format("Space.Page%d", i));
+            new File(documentDir, "objects/classinfo").mkdirs();
+
+            write(new File(documentDir, "document.xwd"), String.format("content: Content %d\n", i));
+            write(new File(documentDir, "objects/classinfo/Space.Class.xwc"),
+                    "name: Space.Class\nproperties:\n  a:\n    name: a\n");
+            write(new File(documentDir, "objects/Space.Class-0.xwo"), "a: value\n");
+        }
+
+        baselineFile = new File(tempDir, "baseline.xar");
+        OutputStream out = new FileOutputStream(baselineFile);
+        try {
+            createXWikiFS().writeXAR(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testUnchangedTree() throws Exception
+    {
+        XARDelta delta = XARDelta.load(baselineFile);
+        File deltaFile = writeDelta(delta);
+
+        assertEquals(Arrays.asList("package.xml"), getEntryNames(deltaFile));
+        assertEquals(Collections.emptyList(), delta.getAddedDocuments());
+        assertEquals(Collections.emptyList(), delta.getModifiedDocuments());
+    }
+
+    @Test
+    public void testChangedPagesAgainstXAR() throws Exception
+    {
+        changeTree();
+
+        XARDelta delta = XARDelta.load(baselineFile);
+        File deltaFile = writeDelta(delta);
+
+        assertEquals(Arrays.asList("Space/Page0.xml", "Space/Page3.xml", "package.xml"), getEntryNames(deltaFile));
+        assertEquals(Arrays.asList("Space.Page3"), delta.getAddedDocuments());
+        assertEquals(Arrays.asList("Space.Page0"), delta.getModifiedDocuments());
+        assertEquals(Arrays.asList("Space.Page2"), delta.getRemovedDocuments());
+
+        String packageXML = getEntry(deltaFile, "package.xml");
+        assertTrue(packageXML.contains("Space.Page0"));
+        assertTrue(packageXML.contains("Space.Page3"));
+        assertFalse(packageXML.contains("Space.Page1"));
+    }
+
+    @Test
+    public void testChangedPagesAgainstManifest() throws Exception
+    {
+        File manifestFile = new File(tempDir, "manifest.txt");
+        XARDelta delta = XARDelta.load(baselineFile);
+        writeDelta(delta);
+        delta.writeManifest(manifestFile);
+
+        changeTree();
+
+        delta = XARDelta.load(manifestFile);
+        File deltaFile = writeDelta(delta);
+
+        assertEquals(Arrays.asList("Space/Page0.xml", "Space/Page3.xml", "package.xml"), getEntryNames(deltaFile));
+        assertEquals(Arrays.asList("Space.Page2"), delta.getRemovedDocuments());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBaseline() throws Exception
+    {
+        File invalidFile = new File(tempDir, "invalid.txt");
+        write(invalidFile, "something else\n");
+
+        XARDelta.load(invalidFile);
+    }
+
+    private XWikiFS createXWikiFS()
+    {
+        XWikiFS xwikiFS = new XWikiFS(root);
+        xwikiFS.setReproducible(true);
+        xwikiFS.setTimestamp(XWikiFS.parseTimestamp("2020-01-01T00:00:00Z"));
+
+        return xwikiFS;
+    }
+
+    private void changeTree() throws IOException
+    {
+        write(new File(root, "Space.Page0/objects/Space.Class-0.xwo"), "a: changed\n");
+        new File(root, "Space.Page3").mkdirs();
+        write(new File(root, "Space.Page3/document.xwd"), "content: New\n");
+        FileUtils.deleteDirectory(new File(root, "Space.Page2"));
+    }
+
+    private File writeDelta(XARDelta delta) throws Exception
+    {
+        File deltaFile = new File(tempDir, "delta.xar");
+        OutputStream out = new FileOutputStream(deltaFile);
+        try {
+            createXWikiFS().writeDeltaXAR(out, delta);
+        } finally {
+            out.close();
+        }
+
+        return deltaFile;
+    }
+
+    private List<String> getEntryNames(File xarFile) throws IOException
+    {
+        List<String> entryNames = new ArrayList<String>();
+
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(xarFile));
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                entryNames.add(entry.getName());
+            }
+        } finally {
+            zis.close();
+        }
+
+        return entryNames;
+    }
+
+    private String getEntry(File xarFile, String entryName) throws IOException
+    {
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(xarFile));
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entryName.equals(entry.getName())) {
+                    return IOUtils.toString(zis, "UTF-8");
+                }
+            }
+        } finally {
+            zis.close();
+        }
+
+        return null;
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        IOUtils.write(content, out);
+        out.close();
+    }
+}
@@ -0,0 +1,204 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.xwikifs.model.XWikiDocument;
+import org.xwiki.contrib.xwikifs.model.XWikiObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XARImporterTest.
+ *
+ * @version $Id$
+ */
+public class XARImporterTest
+{
+    private File tempDir;
+
+    private File sourceDir;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+
+        sourceDir = new File(tempDir, "source");
+        File documentDir = new File(sourceDir, "Space.Name");
+        new File(documentDir, "objects/classinfo").mkdirs();
+        new File(documentDir, "attachments").mkdirs();
+
+        write(new File(documentDir, "document.xwd"), "title: Title\ncontent: -> content.xwiki\n");
+        write(new File(documentDir, "content.xwiki"), "Some <content> & more\n");
+        write(new File(documentDir, "objects/classinfo/Space.Class.xwc"),
+                "name: Space.Class\nproperties:\n  short:\n    name: short\n  long:\n    name: long\n");
+        write(new File(documentDir, "objects/Space.Class-0.xwo"), "short: value\nlong: -> long.txt\n");
+        write(new File(documentDir, "objects/long.txt"), "first line\nsecond line\n");
+
+        byte[] attachment = new byte[10000];
+        for (int i = 0; i < attachment.length; i++) {
+            attachment[i] = (byte) i;
+        }
+        FileUtils.writeByteArrayToFile(new File(documentDir, "attachments/data.bin"), attachment);
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        ByteArrayOutputStream xar = new ByteArrayOutputStream();
+        new XWikiFS(sourceDir).writeXAR(xar);
+
+        File importDir = new File(tempDir, "import");
+        int imported = new XARImporter(importDir).importXAR(new ByteArrayInputStream(xar.toByteArray()));
+        assertEquals(1, imported);
+
+        XWikiDocument xwikiDocument = XWikiDocument.createFromDirectory(new File(importDir, "Space.Name"));
+        assertEquals("Title", xwikiDocument.getData("title"));
+        assertEquals("Some <content> & more\n", xwikiDocument.getData("content"));
+        assertNull(xwikiDocument.getData("syntax"));
+
+        assertEquals(1, xwikiDocument.getObjects().size());
+        XWikiObject xwikiObject = xwikiDocument.getObjects().get(0);
+        assertEquals("Space.Class", xwikiObject.getClassName());
+        assertEquals("value", xwikiObject.getProperty("short"));
+        assertEquals("first line\nsecond line\n", xwikiObject.getProperty("long"));
+        assertNotNull(xwikiObject.getReferencedProperty("long"));
+
+        assertEquals(1, xwikiDocument.getAttachments().size());
+        File attachment = xwikiDocument.getAttachments().get(0);
+        assertEquals("data.bin", attachment.getName());
+        assertTrue(FileUtils.contentEquals(new File(sourceDir, "Space.Name/attachments/data.bin"), attachment));
+
+        /* No staging directory is left behind. */
+        assertEquals(1, importDir.list().length);
+    }
+
+    @Test
+    public void testImportReplacesExistingDocument() throws Exception
+    {
+        ByteArrayOutputStream xar = new ByteArrayOutputStream();
+        new XWikiFS(sourceDir).writeXAR(xar);
+
+        File importDir = new File(tempDir, "import");
+        File staleFile = new File(importDir, "Space.Name/objects/Space.Class-1.xwo");
+        staleFile.getParentFile().mkdirs();
+        write(staleFile, "short: stale\n");
+
+        new XARImporter(importDir).importXAR(new ByteArrayInputStream(xar.toByteArray()));
+
+        assertFalse(staleFile.exists());
+        assertTrue(new File(importDir, "Space.Name/objects/Space.Class-0.xwo").exists());
+    }
+
+    @Test
+    public void testNamesOutsideOfTheRootAreRejected() throws Exception
+    {
+        File importDir = new File(tempDir, "import");
+        File victimDir = new File(tempDir, "victim.dir");
+        victimDir.mkdirs();
+        write(new File(victimDir, "file.txt"), "keep");
+
+        String object = "<object><className>%s</className><number>%s</number>"
+                + "<property><a>value</a></property></object>";
+        byte[] xar = createXAR(
+                page("Space", "../../victim.dir", ""),
+                page("..", "victim.dir", ""),
+                page("Space", "Name", String.format(object, "A.B/../../../x", "0") + String.format(object, "A.B", "../1")
+                        + String.format(object, "A.B", "2")
+                        + "<attachment><filename>..</filename><content>YQ==</content></attachment>"));
+
+        assertEquals(1, new XARImporter(importDir).importXAR(new ByteArrayInputStream(xar)));
+
+        assertTrue(new File(victimDir, "file.txt").exists());
+        assertFalse(new File(tempDir, "x-0.xwo").exists());
+        String[] objectFiles = new File(importDir, "Space.Name/objects").list();
+        Arrays.sort(objectFiles);
+        assertEquals(Arrays.asList("A.B-2.xwo", "classinfo"), Arrays.asList(objectFiles));
+        assertEquals(0, new File(importDir, "Space.Name/attachments").list().length);
+    }
+
+    @Test
+    public void testDuplicateAttachmentsAreSkipped() throws Exception
+    {
+        File importDir = new File(tempDir, "import");
+        String attachment = "<attachment><filename>%s</filename><content>%s</content></attachment>";
+        byte[] xar = createXAR(page("Space", "release..notes",
+                String.format(attachment, "release..notes.txt", "YQ==")
+                        + String.format(attachment, "other/release..notes.txt", "Yg==")));
+
+        assertEquals(1, new XARImporter(importDir).importXAR(new ByteArrayInputStream(xar)));
+
+        File attachmentsDir = new File(importDir, "Space.release..notes/attachments");
+        assertEquals(Arrays.asList("release..notes.txt"), Arrays.asList(attachmentsDir.list()));
+        assertEquals("a", FileUtils.readFileToString(new File(attachmentsDir, "release..notes.txt")));
+    }
+
+    @Test
+    public void testStagingDirectoriesAreNotDocuments() throws Exception
+    {
+        File importDir = new File(tempDir, "import");
+        byte[] xar = createXAR(page("Space", "Name", "<content>unterminated"));
+
+        try {
+            new XARImporter(importDir).importXAR(new ByteArrayInputStream(xar));
+        } catch (Exception e) {
+            /* Expected: the page is malformed. */
+        }
+
+        /* Even if a staging directory was left behind, it would not be listed as a document. */
+        for (String name : importDir.list()) {
+            assertFalse(name.contains("."));
+        }
+        assertEquals(0, new XWikiFS(importDir).getDocumentDirectories().length);
+    }
+
+    private String page(String space, String name, String body)
+    {
+        return String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?><xwikidoc><web>%s</web><name>%s</name>%s"
+                + "</xwikidoc>", space, name, body);
+    }
+
+    private byte[] createXAR(String... pages) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(out);
+        for (int i = 0; i < pages.length; i++) {
+            zos.putNextEntry(new ZipEntry(String.format("Space/Page%d.xml", i)));
+            zos.write(pages[i].getBytes("UTF-8"));
+            zos.closeEntry();
+        }
+        zos.close();
+
+        return out.toByteArray();
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        IOUtils.write(content, out);
+        out.close();
+    }
+}
@@ -0,0 +1,215 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * XARServerTest.
+ *
+ * @version $Id$
+ */
+public class XARServerTest
+{
+    private File tempDir;
+
+    private XWikiFS xwikiFS;
+
+    private XARServer server;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+
+        for (int i = 0; i < 2; i++) {
+            File documentDir = new File(tempDir, String.format("Space.Page%d", i));
+            documentDir.mkdirs();
+            write(new File(documentDir, "document.xwd"), String.format("content: Content %d\n", i));
+        }
+
+        xwikiFS = new XWikiFS(tempDir);
+        server = new XARServer(xwikiFS, 0);
+        server.start();
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        server.stop();
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testPages() throws Exception
+    {
+        assertEquals("Space.Page0\nSpace.Page1\n", new String(get("/pages/", 200), "UTF-8"));
+
+        byte[] expected = xwikiFS.serializeDocument(xwikiFS.readDocument(new File(tempDir, "Space.Page0")));
+        assertArrayEquals(expected, get("/pages/Space.Page0", 200));
+        assertArrayEquals(expected, get("/pages/Space.Page0", 200));
+        assertEquals(1, server.getHits());
+        assertEquals(1, server.getMisses());
+
+        get("/pages/Space.Missing", 404);
+        get("/pages/..", 404);
+        get("/other", 404);
+    }
+
+    @Test
+    public void testChangesInvalidatePages() throws Exception
+    {
+        assertTrue(new String(get("/pages/Space.Page0", 200), "UTF-8").contains("Content 0"));
+
+        write(new File(tempDir, "Space.Page0/document.xwd"), "content: Changed\n");
+
+        /* Changes are detected asynchronously. */
+        long deadline = System.currentTimeMillis() + 10000;
+        String content = "";
+        while (!content.contains("Changed") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            content = new String(get("/pages/Space.Page0", 200), "UTF-8");
+        }
+        assertTrue(content.contains("Changed"));
+    }
+
+    @Test
+    public void testXAR() throws Exception
+    {
+        List<String> entryNames = new ArrayList<String>();
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(get("/xar", 200)));
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                entryNames.add(entry.getName());
+            }
+        } finally {
+            zis.close();
+        }
+
+        assertEquals(Arrays.asList("Space/Page0.xml", "Space/Page1.xml", "package.xml"), entryNames);
+    }
+
+    @Test
+    public void testCacheIsBounded() throws Exception
+    {
+        /* Room for a single page. */
+        byte[] page0 = get("/pages/Space.Page0", 200);
+        server.setCacheSize(page0.length + page0.length / 2);
+
+        get("/pages/Space.Page0", 200);
+        get("/pages/Space.Page1", 200);
+        get("/pages/Space.Page0", 200);
+        assertEquals(1, server.getHits());
+        assertEquals(3, server.getMisses());
+
+        /* Pages larger than the cache are not kept. */
+        server.setCacheSize(page0.length - 1);
+        get("/pages/Space.Page0", 200);
+        get("/pages/Space.Page0", 200);
+        assertEquals(1, server.getHits());
+        assertEquals(5, server.getMisses());
+    }
+
+    @Test
+    public void testXARWithUnreadablePage() throws Exception
+    {
+        write(new File(tempDir, "Space.Page1/document.xwd"), "content: [unterminated\n");
+
+        /* The connection is dropped instead of ending a XAR without the page. */
+        try {
+            get("/xar", 200);
+            fail();
+        } catch (IOException e) {
+            /* Expected. */
+        }
+
+        /* The server keeps serving requests. */
+        assertTrue(new String(get("/pages/Space.Page0", 200), "UTF-8").contains("Content 0"));
+    }
+
+    @Test
+    public void testWatcherFailureDisablesCache() throws Exception
+    {
+        assertTrue(new String(get("/pages/Space.Page0", 200), "UTF-8").contains("Content 0"));
+
+        server.watch(new DirectoryWatcher(tempDir)
+        {
+            @Override public Set<String> take(long delay) throws IOException
+            {
+                throw new IOException("Simulated failure");
+            }
+        });
+
+        /* Without watching, changes are seen right away since nothing is served from memory anymore. */
+        write(new File(tempDir, "Space.Page0/document.xwd"), "content: Changed\n");
+        assertTrue(new String(get("/pages/Space.Page0", 200), "UTF-8").contains("Changed"));
+        get("/pages/Space.Page0", 200);
+        assertEquals(0, server.getHits());
+        assertEquals(3, server.getMisses());
+    }
+
+    @Test
+    public void testUnsupportedMethod() throws Exception
+    {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(String.format("http://127.0.0.1:%d/pages/", server.getPort()))
+                        .openConnection();
+        try {
+            connection.setRequestMethod("DELETE");
+            assertEquals(405, connection.getResponseCode());
+            assertEquals("GET, HEAD", connection.getHeaderField("Allow"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private byte[] get(String path, int expectedStatus) throws IOException
+    {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(String.format("http://127.0.0.1:%d%s", server.getPort(), path))
+                        .openConnection();
+        try {
+            assertEquals(expectedStatus, connection.getResponseCode());
+
+            InputStream in = expectedStatus < 400 ? connection.getInputStream() : connection.getErrorStream();
+            try {
+                return IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        IOUtils.write(content, out);
+        out.close();
+    }
+}
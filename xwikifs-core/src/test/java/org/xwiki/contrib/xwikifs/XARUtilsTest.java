@@ -0,0 +1,136 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.xwikifs.model.XWikiDocument;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XARUtilsTest.
+ *
+ * Compares the XML written for the pages of a fixture tree with the expected output, so that any change to the
+ * serialization is deliberate.
+ *
+ * @version $Id$
+ */
+public class XARUtilsTest
+{
+    private File root;
+
+    @Before
+    public void before() throws Exception
+    {
+        root = new File(getClass().getResource("/goldenTree").getFile());
+    }
+
+    @Test
+    public void testPrettyPrintedDocument() throws Exception
+    {
+        XWikiFS xwikiFS = createXWikiFS();
+
+        assertEquals(getExpected("Space.Page.xml"), serialize(xwikiFS, "Space.Page"));
+    }
+
+    @Test
+    public void testCompactDocument() throws Exception
+    {
+        XWikiFS xwikiFS = createXWikiFS();
+        xwikiFS.setPrettyPrint(false);
+
+        assertEquals(getExpected("Space.Page-compact.xml"), serialize(xwikiFS, "Space.Page"));
+    }
+
+    @Test
+    public void testPackage() throws Exception
+    {
+        StringWriter out = new StringWriter();
+        XARUtils.writePackage(Arrays.asList("Space.Page"), new StreamingXMLWriter(out, true));
+
+        assertEquals(getExpected("package.xml"), out.toString());
+    }
+
+    @Test
+    public void testEscaping() throws Exception
+    {
+        StringWriter out = new StringWriter();
+        StreamingXMLWriter writer = new StreamingXMLWriter(out, false);
+        writer.startElement("a", "b", "\"&<>'");
+        writer.text("\"&<>'");
+        writer.text(new char[] {'x', '<', '&', 'y'}, 1, 2);
+        writer.element("c", null);
+        writer.endElement();
+        writer.endDocument();
+
+        assertEquals("<a b=\"&quot;&amp;&lt;&gt;'\">\"&amp;&lt;&gt;'&lt;&amp;<c></c></a>", out.toString());
+    }
+
+    @Test
+    public void testAttachmentBase64() throws Exception
+    {
+        File tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+        File documentDir = new File(tempDir, "Space.Page");
+        new File(documentDir, "attachments").mkdirs();
+        FileUtils.writeStringToFile(new File(documentDir, "document.xwd"), "content: Content\n");
+
+        /* Around the boundaries of the encoded chunks and of the character buffer, and above the mapping threshold. */
+        int chunk = 3 * 16 * 1024;
+        int[] sizes = {0, 1, 2, 3, chunk - 1, chunk, chunk + 1, chunk * 3 / 4, chunk * 3 / 4 + 1, 2 * chunk + 2,
+            (int) FileContent.MAPPING_THRESHOLD + 1, 5 * chunk + 1};
+        Pattern content = Pattern.compile("<attachment>.*?<content>([^<]*)</content>", Pattern.DOTALL);
+        Random random = new Random(0);
+
+        try {
+            for (int size : sizes) {
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+                FileUtils.writeByteArrayToFile(new File(documentDir, "attachments/file.bin"), data);
+
+                XWikiFS xwikiFS = new XWikiFS(tempDir);
+                Matcher matcher = content.matcher(serialize(xwikiFS, tempDir, "Space.Page"));
+                assertTrue(matcher.find());
+                assertEquals(String.format("Size %d", size), Base64.encodeBase64String(data), matcher.group(1));
+            }
+        } finally {
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+
+    private XWikiFS createXWikiFS()
+    {
+        XWikiFS xwikiFS = new XWikiFS(root);
+        xwikiFS.setReproducible(true);
+        xwikiFS.setTimestamp(XWikiFS.parseTimestamp("2020-01-01T00:00:00Z"));
+
+        return xwikiFS;
+    }
+
+    private String serialize(XWikiFS xwikiFS, String documentId) throws Exception
+    {
+        return serialize(xwikiFS, root, documentId);
+    }
+
+    private String serialize(XWikiFS xwikiFS, File root, String documentId) throws Exception
+    {
+        XWikiDocument xwikiDocument = xwikiFS.readDocument(new File(root, documentId));
+
+        return new String(xwikiFS.serializeDocument(xwikiDocument), "UTF-8");
+    }
+
+    private String getExpected(String fileName) throws Exception
+    {
+        return FileContent.readString(new File(getClass().getResource(String.format("/goldenXML/%s", fileName))
+                .getFile()));
+    }
+}
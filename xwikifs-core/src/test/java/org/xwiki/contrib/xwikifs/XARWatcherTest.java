@@ -0,0 +1,113 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XARWatcherTest.
+ *
+ * @version $Id$
+ */
+public class XARWatcherTest
+{
+    private File tempDir;
+
+    private File root;
+
+    private File output;
+
+    private Thread thread;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+        root = new File(tempDir, "root");
+        output = new File(tempDir, "output");
+        output.mkdirs();
+
+        for (int i = 0; i < 3; i++) {
+            File documentDir = new File(root, String.format("Space.Page%d", i));
+            documentDir.mkdirs();
+            write(new File(documentDir, "document.xwd"), String.format("content: Content %d\n", i));
+        }
+
+        final XARWatcher watcher = new XARWatcher(new XWikiFS(root), output);
+        watcher.setDelay(50);
+        thread = new Thread(new Runnable()
+        {
+            @Override public void run()
+            {
+                try {
+                    watcher.run();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+    }
+
+    @After
+    public void after() throws Exception
+    {
+        thread.interrupt();
+        thread.join(10000);
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testChangedAndInvalidPages() throws Exception
+    {
+        waitForContent("Space/Page0.xml", "Content 0");
+        waitForContent("Space/Page1.xml", "Content 1");
+
+        write(new File(root, "Space.Page0/document.xwd"), "content: Changed 0\n");
+        waitForContent("Space/Page0.xml", "Changed 0");
+
+        /* A page that cannot be read keeps its previous version, while the other changes are still applied. */
+        write(new File(root, "Space.Page1/document.xwd"), "content: [unterminated\n");
+        write(new File(root, "Space.Page2/document.xwd"), "content: Changed 2\n");
+        waitForContent("Space/Page2.xml", "Changed 2");
+        assertTrue(read("Space/Page1.xml").contains("Content 1"));
+
+        write(new File(root, "Space.Page1/document.xwd"), "content: Fixed 1\n");
+        waitForContent("Space/Page1.xml", "Fixed 1");
+    }
+
+    /**
+     * Wait for a file of the exploded XAR to contain a given text, since changes are detected asynchronously.
+     */
+    private void waitForContent(String path, String text) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!read(path).contains(text) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(String.format("%s doesn't contain %s", path, text), read(path).contains(text));
+    }
+
+    private String read(String path) throws IOException
+    {
+        File file = new File(output, path);
+
+        return file.isFile() ? FileUtils.readFileToString(file, "UTF-8") : "";
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        IOUtils.write(content, out);
+        out.close();
+    }
+}
@@ -0,0 +1,406 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.contrib.xwikifs.model.XWikiDocument;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XWikiFSTest.
+ *
+ * @version $Id$
+ */
+public class XWikiFSTest
+{
+    private File tempDir;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+
+        for (int i = 0; i < 3; i++) {
+            File documentDir = new File(tempDir, String.format("Space.Page%d", i));
+            new File(documentDir, "objects/classinfo").mkdirs();
+
+            write(new File(documentDir, "document.xwd"), "content: Content\n");
+            write(new File(documentDir, "objects/classinfo/Space.Class.xwc"),
+                    "name: Space.Class\nproperties:\n  a:\n    name: a\n");
+            for (int j = 0; j < 12; j++) {
+                write(new File(documentDir, String.format("objects/Space.Class-%d.xwo", j)), "a: value\n");
+            }
+        }
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testReproducibleXAR() throws Exception
+    {
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.setReproducible(true);
+        xwikiFS.setTimestamp(XWikiFS.parseTimestamp("2020-01-01T00:00:00Z"));
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        xwikiFS.writeXAR(first);
+
+        xwikiFS.setParallelism(4);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        xwikiFS.writeXAR(second);
+
+        assertArrayEquals(first.toByteArray(), second.toByteArray());
+    }
+
+    @Test
+    public void testReproducibleXARIgnoresModificationDates() throws Exception
+    {
+        File attachmentsDir = new File(tempDir, "Space.Page0/attachments");
+        attachmentsDir.mkdirs();
+        write(new File(attachmentsDir, "file.txt"), "attachment");
+
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.setReproducible(true);
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        xwikiFS.writeXAR(first);
+
+        /* Like a fresh checkout of the same sources. */
+        touch(tempDir, System.currentTimeMillis() - 3600000);
+
+        xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.setReproducible(true);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        xwikiFS.writeXAR(second);
+
+        assertArrayEquals(first.toByteArray(), second.toByteArray());
+    }
+
+    @Test
+    public void testParallelXARMatchesSequentialXAR() throws Exception
+    {
+        /* Documents of very different sizes, so that workers finish them out of order. */
+        Random random = new Random(0);
+        for (int i = 3; i < 40; i++) {
+            File documentDir = new File(tempDir, String.format("Other%d.Page%d", i % 4, i));
+            new File(documentDir, "attachments").mkdirs();
+            write(new File(documentDir, "document.xwd"), String.format("content: Content %d\n", i));
+            byte[] attachment = new byte[random.nextInt(200000)];
+            random.nextBytes(attachment);
+            FileUtils.writeByteArrayToFile(new File(documentDir, "attachments/file.bin"), attachment);
+        }
+
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.setReproducible(true);
+        xwikiFS.setTimestamp(XWikiFS.parseTimestamp("2020-01-01T00:00:00Z"));
+
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        xwikiFS.writeXAR(sequential);
+
+        for (int parallelism : new int[] {2, 8}) {
+            xwikiFS.setParallelism(parallelism);
+            ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+            xwikiFS.writeXAR(parallel);
+
+            assertArrayEquals(sequential.toByteArray(), parallel.toByteArray());
+        }
+    }
+
+    @Test
+    public void testCompressionPolicy() throws Exception
+    {
+        File attachmentsDir = new File(tempDir, "Space.Page0/attachments");
+        attachmentsDir.mkdirs();
+        byte[] attachment = new byte[100000];
+        new Random(0).nextBytes(attachment);
+        FileUtils.writeByteArrayToFile(new File(attachmentsDir, "image.png"), attachment);
+
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        File defaultXAR = new File(tempDir, "default.xar");
+        writeXAR(xwikiFS, defaultXAR);
+
+        xwikiFS.getCompressionPolicy().setAttachmentCompression(CompressionPolicy.AttachmentCompression.STORE);
+        File streamedXAR = new File(tempDir, "streamed.xar");
+        writeXAR(xwikiFS, streamedXAR);
+        assertSameContent(defaultXAR, streamedXAR);
+
+        xwikiFS.setParallelism(2);
+        xwikiFS.setParallelCompression(true);
+        File storedXAR = new File(tempDir, "stored.xar");
+        writeXAR(xwikiFS, storedXAR);
+        assertSameContent(defaultXAR, storedXAR);
+    }
+
+    /**
+     * Check that a XAR with stored attachment pages has the same entries as a XAR written with the default compression.
+     */
+    private void assertSameContent(File defaultXAR, File storedXAR) throws Exception
+    {
+        ZipFile defaultZipFile = new ZipFile(defaultXAR);
+        ZipFile storedZipFile = new ZipFile(storedXAR);
+        try {
+            assertEquals(defaultZipFile.size(), storedZipFile.size());
+
+            Enumeration<? extends ZipEntry> entries = defaultZipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                ZipEntry storedEntry = storedZipFile.getEntry(entry.getName());
+
+                int expectedMethod = "Space/Page0.xml".equals(entry.getName()) ? ZipEntry.STORED : ZipEntry.DEFLATED;
+                assertEquals(expectedMethod, storedEntry.getMethod());
+
+                if (!"package.xml".equals(entry.getName())) {
+                    assertArrayEquals(removeGuids(defaultZipFile, entry), removeGuids(storedZipFile, storedEntry));
+                }
+            }
+        } finally {
+            defaultZipFile.close();
+            storedZipFile.close();
+        }
+    }
+
+    @Test
+    public void testParseTimestamp() throws Exception
+    {
+        assertEquals(Long.valueOf(1577836800000L), XWikiFS.parseTimestamp("1577836800"));
+        assertEquals(Long.valueOf(1577836800000L), XWikiFS.parseTimestamp("2020-01-01T01:00:00+01:00"));
+        assertEquals(null, XWikiFS.parseTimestamp(""));
+        /* A single character disables the timestamp, following the Maven convention. */
+        assertEquals(null, XWikiFS.parseTimestamp("a"));
+    }
+
+    @Test
+    public void testCompactXML() throws Exception
+    {
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.setReproducible(true);
+        XWikiDocument xwikiDocument = xwikiFS.readDocument(new File(tempDir, "Space.Page0"));
+
+        String prettyXML = new String(xwikiFS.serializeDocument(xwikiDocument), "UTF-8");
+        xwikiFS.setPrettyPrint(false);
+        String compactXML = new String(xwikiFS.serializeDocument(xwikiDocument), "UTF-8");
+
+        assertTrue(compactXML.length() < prettyXML.length());
+        assertEquals(prettyXML.replaceAll(">\\s+<", "><").trim(), compactXML);
+    }
+
+    @Test
+    public void testClassIsWrittenForEveryObject() throws Exception
+    {
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        XWikiDocument xwikiDocument = xwikiFS.readDocument(new File(tempDir, "Space.Page0"));
+
+        /* The class XML is rendered once and then copied, with the indentation of the object it belongs to. */
+        String xml = new String(xwikiFS.serializeDocument(xwikiDocument), "UTF-8");
+        String classXML = "\n  <object>\n    <class>\n      <name>Space.Class</name>\n      <a>\n        <name>a</name>\n"
+                + "      </a>\n    </class>\n    <name>Space.Page0</name>";
+        assertEquals(12, xml.split(classXML, -1).length - 1);
+    }
+
+    @Test
+    public void testFingerprint() throws Exception
+    {
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.setIndexFile(new File(tempDir, "index"));
+        File objectFile = new File(tempDir, "Space.Page0/objects/Space.Class-0.xwo");
+        objectFile.setLastModified(objectFile.lastModified() - 60000);
+
+        String fingerprint = xwikiFS.computeFingerprint("configuration", false);
+        assertEquals(fingerprint, xwikiFS.computeFingerprint("configuration", false));
+        assertFalse(fingerprint.equals(xwikiFS.computeFingerprint("other configuration", false)));
+
+        /* Modified in place, without changing the listing of the directory. */
+        write(objectFile, "a: other\n");
+        assertFalse(fingerprint.equals(xwikiFS.computeFingerprint("configuration", false)));
+
+        /* Only detected with content hashes when the size and date are restored. */
+        fingerprint = xwikiFS.computeFingerprint("configuration", true);
+        long lastModified = objectFile.lastModified();
+        write(objectFile, "a: value\n");
+        objectFile.setLastModified(lastModified);
+        assertFalse(fingerprint.equals(xwikiFS.computeFingerprint("configuration", true)));
+    }
+
+    @Test
+    public void testExternalFilesAreFingerprinted() throws Exception
+    {
+        File sharedFile = new File(tempDir, "shared/content.xwiki");
+        sharedFile.getParentFile().mkdirs();
+        write(sharedFile, "Shared content");
+        write(new File(tempDir, "Space.Page0/document.xwd"), "content: -> ../shared/content.xwiki\n");
+
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.writeXAR(new ByteArrayOutputStream());
+        Set<File> externalFiles = xwikiFS.getExternalFiles();
+        assertEquals(Collections.singleton(sharedFile.getCanonicalFile()), externalFiles);
+
+        String fingerprint = xwikiFS.computeFingerprint("configuration", false, externalFiles);
+        String documentsFingerprint = xwikiFS.computeFingerprint("configuration", false);
+        write(sharedFile, "Modified shared content");
+        assertFalse(fingerprint.equals(xwikiFS.computeFingerprint("configuration", false, externalFiles)));
+        assertEquals(documentsFingerprint, xwikiFS.computeFingerprint("configuration", false));
+    }
+
+    @Test
+    public void testReformat() throws Exception
+    {
+        File objectFile = new File(tempDir, "Space.Page1/objects/Space.Class-3.xwo");
+        write(objectFile, "{a: value}\n");
+        File documentFile = new File(tempDir, "Space.Page2/document.xwd");
+        long lastModified = documentFile.lastModified() - 60000;
+        documentFile.setLastModified(lastModified);
+
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.setParallelism(4);
+
+        assertEquals(1, xwikiFS.reformat());
+        assertEquals("a: value\n", FileContent.readString(objectFile));
+        /* Files already in the canonical format are not written. */
+        assertEquals(lastModified, documentFile.lastModified());
+
+        assertEquals(0, xwikiFS.reformat());
+    }
+
+    @Test
+    public void testSharedClassRegistry() throws Exception
+    {
+        File otherRoot = new File(tempDir, "other");
+        new File(otherRoot, "Other.Page/objects/classinfo").mkdirs();
+        write(new File(otherRoot, "Other.Page/objects/classinfo/Space.Class.xwc"),
+                "name: Space.Class\nproperties:\n  a:\n    name: a\n");
+        write(new File(otherRoot, "Other.Page/objects/Space.Class-0.xwo"), "a: value\n");
+
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        XWikiFS otherXWikiFS = new XWikiFS(otherRoot);
+        otherXWikiFS.setClassRegistry(xwikiFS.getClassRegistry());
+
+        XWikiDocument xwikiDocument = xwikiFS.readDocument(new File(tempDir, "Space.Page0"));
+        XWikiDocument otherXWikiDocument = otherXWikiFS.readDocument(new File(otherRoot, "Other.Page"));
+
+        /* The class files of both trees have the same content, so they are parsed once. */
+        assertSame(xwikiDocument.getObjects().get(0).getXWikiClass(),
+                otherXWikiDocument.getObjects().get(0).getXWikiClass());
+        assertEquals(2, xwikiFS.getClassRegistry().size());
+    }
+
+    @Test
+    public void testRootsAndShards() throws Exception
+    {
+        File otherRoot = new File(tempDir, "other");
+        new File(otherRoot, "Other.Page").mkdirs();
+        write(new File(otherRoot, "Other.Page/document.xwd"), "content: Content\n");
+        new File(otherRoot, "Excluded.Page").mkdirs();
+
+        XWikiFS xwikiFS = new XWikiFS(Arrays.asList(tempDir, otherRoot));
+        xwikiFS.setExcludes(Arrays.asList("Ex*"));
+        xwikiFS.setParallelism(2);
+        xwikiFS.getShardingPolicy().setMode(ShardingPolicy.Mode.SPACE);
+
+        File outputDir = new File(tempDir, "output");
+        outputDir.mkdirs();
+        Map<String, File> shards = xwikiFS.writeShardedXAR(new File(outputDir, "wiki.xar"));
+
+        assertEquals(Arrays.asList("Other", "Space"), new ArrayList<String>(shards.keySet()));
+        assertEquals(new File(outputDir, "wiki-Space.xar"), shards.get("Space"));
+
+        ZipFile otherZipFile = new ZipFile(shards.get("Other"));
+        ZipFile spaceZipFile = new ZipFile(shards.get("Space"));
+        try {
+            assertEquals(2, otherZipFile.size());
+            assertNotNull(otherZipFile.getEntry("Other/Page.xml"));
+            assertEquals(4, spaceZipFile.size());
+        } finally {
+            otherZipFile.close();
+            spaceZipFile.close();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception
+    {
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.setParallelism(2);
+        BuildMetrics metrics = new BuildMetrics();
+        metrics.setSlowestDocuments(2);
+        xwikiFS.setMetrics(metrics);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        xwikiFS.writeXAR(out);
+
+        assertEquals(3, metrics.getDocumentCount());
+        assertEquals(2, metrics.getSlowest().size());
+        assertEquals(out.size(), metrics.getBytesWritten());
+        /* 1 document file, 1 class file and 12 object files per document. */
+        assertEquals(3 * 14, metrics.getFilesOpened());
+        assertTrue(metrics.getPhaseNanos(BuildMetrics.Phase.PARSE_YAML) > 0);
+        assertTrue(metrics.toJSON().contains(String.format("\"id\": \"%s\"",
+                metrics.getSlowest().get(0).getDocumentId())));
+    }
+
+    private void writeXAR(XWikiFS xwikiFS, File file) throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            xwikiFS.writeXAR(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] removeGuids(ZipFile zipFile, ZipEntry entry) throws IOException
+    {
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+            return IOUtils.toString(in, "UTF-8").replaceAll("<guid>[^<]*</guid>", "").getBytes("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        IOUtils.write(content, out);
+        out.close();
+    }
+
+    private void touch(File file, long time)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                touch(child, time);
+            }
+        }
+
+        file.setLastModified(time);
+    }
+}
@@ -0,0 +1,147 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XWikiFSValidatorTest.
+ *
+ * @version $Id$
+ */
+public class XWikiFSValidatorTest
+{
+    private File tempDir;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+
+        for (int i = 0; i < 4; i++) {
+            File documentDir = new File(tempDir, String.format("Space.Page%d", i));
+            new File(documentDir, "objects/classinfo").mkdirs();
+
+            write(new File(documentDir, "document.xwd"), "content: Content\n");
+            write(new File(documentDir, "objects/classinfo/Space.Class.xwc"),
+                    "name: Space.Class\nproperties:\n  a:\n    name: a\n");
+            write(new File(documentDir, "objects/Space.Class-0.xwo"), "a: value\n");
+        }
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testValidTree() throws Exception
+    {
+        assertTrue(new XWikiFSValidator(new XWikiFS(tempDir)).validate().isEmpty());
+    }
+
+    @Test
+    public void testAllErrorsAreReported() throws Exception
+    {
+        File page0 = new File(tempDir, "Space.Page0");
+        write(new File(page0, "objects/Space.Class-1.xwo"), "a: value\nb: value\nc: value\n");
+        write(new File(page0, "objects/Space.Class-x.xwo"), "a: value\n");
+
+        File page1 = new File(tempDir, "Space.Page1");
+        write(new File(page1, "document.xwd"), "content: -> missing.xwiki\n");
+        write(new File(page1, "objects/Other.Class-0.xwo"), "a: value\n");
+
+        File page2 = new File(tempDir, "Space.Page2");
+        write(new File(page2, "objects/classinfo/Space.Class.xwc"), "name: [unclosed\n");
+        write(new File(page2, "objects/Space.Class-1.xwo"), "a: value\n");
+
+        XWikiFS xwikiFS = new XWikiFS(tempDir);
+        xwikiFS.setParallelism(2);
+        List<XWikiFSValidator.ValidationError> errors = new XWikiFSValidator(xwikiFS).validate();
+
+        List<String> files = new ArrayList<String>();
+        for (XWikiFSValidator.ValidationError error : errors) {
+            files.add(tempDir.toPath().relativize(error.getFile().toPath()).toString().replace(File.separatorChar, '/'));
+        }
+
+        assertEquals(6, errors.size());
+        assertEquals("Space.Page0/objects/Space.Class-1.xwo", files.get(0));
+        assertEquals("Property b is not described in class Space.Class", errors.get(0).getMessage());
+        assertEquals("Space.Page0/objects/Space.Class-1.xwo", files.get(1));
+        assertEquals("Space.Page0/objects/Space.Class-x.xwo", files.get(2));
+        assertEquals("Space.Page1/document.xwd", files.get(3));
+        assertEquals("Space.Page1/objects/Other.Class-0.xwo", files.get(4));
+        /* The broken class file is reported once, not once per object. */
+        assertEquals("Space.Page2/objects/classinfo/Space.Class.xwc", files.get(5));
+    }
+
+    @Test
+    public void testContentThatIsNotAMap() throws Exception
+    {
+        File page0 = new File(tempDir, "Space.Page0");
+        write(new File(page0, "objects/Space.Class-0.xwo"), "- a\n- b\n");
+
+        File page1 = new File(tempDir, "Space.Page1");
+        write(new File(page1, "document.xwd"), "");
+        write(new File(page1, "objects/classinfo/Space.Class.xwc"), "name: Space.Class\nproperties: a\n");
+
+        List<XWikiFSValidator.ValidationError> errors = new XWikiFSValidator(new XWikiFS(tempDir)).validate();
+
+        assertEquals(3, errors.size());
+        assertEquals("Content is not a YAML map", errors.get(0).getMessage());
+        assertEquals("Content is not a YAML map", errors.get(1).getMessage());
+        assertEquals("Properties of class Space.Class are not a YAML map", errors.get(2).getMessage());
+    }
+
+    @Test
+    public void testAllMissingReferencesAreReported() throws Exception
+    {
+        File page0 = new File(tempDir, "Space.Page0");
+        write(new File(page0, "present.xwiki"), "Present");
+        write(new File(page0, "document.xwd"),
+                "content: -> missing1.xwiki\ntitle: -> present.xwiki\nnested:\n  value: -> missing2.xwiki\n");
+
+        List<XWikiFSValidator.ValidationError> errors = new XWikiFSValidator(new XWikiFS(tempDir)).validate();
+
+        assertEquals(2, errors.size());
+        assertEquals(String.format("%s (referenced file doesn't exist)", new File(page0, "missing1.xwiki")),
+                errors.get(0).getMessage());
+        assertEquals(String.format("%s (referenced file doesn't exist)", new File(page0, "missing2.xwiki")),
+                errors.get(1).getMessage());
+    }
+
+    @Test
+    public void testUnexpectedClassFailuresAreReported() throws Exception
+    {
+        /* A property without name makes the class parsing fail with a runtime exception. */
+        File page0 = new File(tempDir, "Space.Page0");
+        write(new File(page0, "objects/classinfo/Space.Class.xwc"), "name: Space.Class\nproperties:\n  ~:\n    a: b\n");
+        write(new File(tempDir, "Space.Page1/objects/Space.Class-1.xwo"), "b: value\n");
+
+        List<XWikiFSValidator.ValidationError> errors = new XWikiFSValidator(new XWikiFS(tempDir)).validate();
+
+        assertEquals(2, errors.size());
+        assertEquals(new File(page0, "objects/classinfo/Space.Class.xwc"), errors.get(0).getFile());
+        assertEquals("Property b is not described in class Space.Class", errors.get(1).getMessage());
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        IOUtils.write(content, out);
+        out.close();
+    }
+}
@@ -0,0 +1,174 @@
+package org.xwiki.contrib.xwikifs.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * XWikiClassRegistryTest.
+ *
+ * @version $Id$
+ */
+public class XWikiClassRegistryTest
+{
+    private File tempDir;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+        tempDir.mkdirs();
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testClassIsShared() throws Exception
+    {
+        File classFile = new File(tempDir, "Space.Class.xwc");
+        write(classFile, "name: Space.Class\nproperties:\n  a:\n    name: a\n");
+
+        XWikiClassRegistry registry = new XWikiClassRegistry();
+        XWikiClass xwikiClass = registry.getXWikiClass(classFile);
+
+        assertSame(xwikiClass, registry.getXWikiClass(new File(new File(tempDir, "."), "Space.Class.xwc")));
+        assertEquals(1, registry.size());
+        assertTrue(xwikiClass.hasProperty("a"));
+        assertFalse(xwikiClass.hasProperty("b"));
+    }
+
+    @Test
+    public void testModifiedClassIsParsedAgain() throws Exception
+    {
+        File classFile = new File(tempDir, "Space.Class.xwc");
+        write(classFile, "name: Space.Class\nproperties:\n  a:\n    name: a\n");
+
+        XWikiClassRegistry registry = new XWikiClassRegistry();
+        XWikiClass xwikiClass = registry.getXWikiClass(classFile);
+
+        write(classFile, "name: Space.Class\nproperties:\n  a:\n    name: a\n  b:\n    name: b\n");
+
+        XWikiClass modifiedXWikiClass = registry.getXWikiClass(classFile);
+        assertNotSame(xwikiClass, modifiedXWikiClass);
+        assertTrue(modifiedXWikiClass.hasProperty("b"));
+    }
+
+    @Test
+    public void testIdenticalClassFilesAreShared() throws Exception
+    {
+        String content = "name: Space.Class\nproperties:\n  a:\n    name: a\n";
+        File classFile = new File(tempDir, "Space.Class.xwc");
+        write(classFile, content);
+        File copyFile = new File(tempDir, "Copy.xwc");
+        write(copyFile, content);
+        File otherFile = new File(tempDir, "Other.xwc");
+        write(otherFile, content + "  b:\n    name: b\n");
+
+        XWikiClassRegistry registry = new XWikiClassRegistry();
+        XWikiClass xwikiClass = registry.getXWikiClass(classFile);
+
+        assertSame(xwikiClass, registry.getXWikiClass(copyFile));
+        assertNotSame(xwikiClass, registry.getXWikiClass(otherFile));
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void testReplacedContentIsDropped() throws Exception
+    {
+        String content = "name: Space.Class\nproperties:\n  a:\n    name: a\n";
+        File classFile = new File(tempDir, "Space.Class.xwc");
+        write(classFile, content);
+        File copyFile = new File(tempDir, "Copy.xwc");
+        write(copyFile, content);
+
+        XWikiClassRegistry registry = new XWikiClassRegistry();
+        registry.getXWikiClass(classFile);
+        registry.getXWikiClass(copyFile);
+        assertEquals(1, registry.getSharedClassCount());
+
+        /* The original content is still used by the copy. */
+        write(classFile, content + "  b:\n    name: b\n");
+        registry.getXWikiClass(classFile);
+        assertEquals(2, registry.getSharedClassCount());
+
+        write(copyFile, content + "  c:\n    name: c\n  d:\n    name: d\n");
+        registry.getXWikiClass(copyFile);
+        assertEquals(2, registry.getSharedClassCount());
+
+        /* A class file that cannot be parsed anymore doesn't keep its previous content either. */
+        write(copyFile, "name: [unclosed\n");
+        try {
+            registry.getXWikiClass(copyFile);
+            fail();
+        } catch (Exception e) {
+            /* Expected. */
+        }
+        assertEquals(1, registry.getSharedClassCount());
+    }
+
+    @Test
+    public void testFragmentsAreDroppedWithTheirClass() throws Exception
+    {
+        File classFile = new File(tempDir, "Space.Class.xwc");
+        write(classFile, "name: Space.Class\nproperties:\n  a:\n    name: a\n");
+        File referencingFile = new File(tempDir, "Other.Class.xwc");
+        write(new File(tempDir, "name.txt"), "Other.Class");
+        write(referencingFile, "name: -> name.txt\n");
+
+        XWikiClassRegistry registry = new XWikiClassRegistry();
+        XWikiClass xwikiClass = registry.getXWikiClass(classFile);
+        registry.getFragments(xwikiClass, true).put(0, "<class/>");
+        registry.getFragments(registry.getXWikiClass(referencingFile), false).put(0, "<class/>");
+        assertEquals(2, registry.getFragmentsCount());
+
+        /* Formats are kept apart. */
+        assertTrue(registry.getFragments(xwikiClass, false).isEmpty());
+        assertEquals("<class/>", registry.getFragments(xwikiClass, true).get(0));
+
+        write(classFile, "name: Space.Class\nproperties:\n  b:\n    name: b\n");
+        registry.getXWikiClass(classFile);
+        write(referencingFile, "name: -> name.txt\nchanged: true\n");
+        registry.getXWikiClass(referencingFile);
+        assertEquals(0, registry.getFragmentsCount());
+    }
+
+    @Test
+    public void testPropertyIndexes() throws Exception
+    {
+        File classFile = new File(tempDir, "Space.Class.xwc");
+        write(classFile, "name: Space.Class\nproperties:\n  b:\n    name: b\n  a:\n    name: a\n");
+
+        XWikiClass xwikiClass = new XWikiClassRegistry().getXWikiClass(classFile);
+
+        assertEquals(2, xwikiClass.getPropertyCount());
+        assertEquals(0, xwikiClass.getPropertyIndex("b"));
+        assertEquals(1, xwikiClass.getPropertyIndex("a"));
+        assertEquals(-1, xwikiClass.getPropertyIndex("c"));
+        assertEquals("a", xwikiClass.getPropertyName(1));
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        IOUtils.write(content, out);
+        out.close();
+    }
+}
@@ -0,0 +1,137 @@
+package org.xwiki.contrib.xwikifs.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * XWikiObjectTest.
+ *
+ * @version $Id$
+ */
+public class XWikiObjectTest
+{
+    private File tempDir;
+
+    private File objectsDir;
+
+    private XWikiClassRegistry classRegistry;
+
+    @Before
+    public void before() throws Exception
+    {
+        tempDir = new File(new File(System.getProperty("java.io.tmpdir")), String.format("temp-%s",
+                Long.toString(System.nanoTime())));
+        objectsDir = new File(tempDir, "objects");
+        new File(objectsDir, "classinfo").mkdirs();
+        write(new File(objectsDir, "classinfo/Space.Class.xwc"),
+                "name: Space.Class\nproperties:\n  a:\n    name: a\n  b:\n    name: b\n  c:\n    name: c\n");
+
+        classRegistry = new XWikiClassRegistry();
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testProperties() throws Exception
+    {
+        write(new File(objectsDir, "Space.Class-0.xwo"), "c: 1\na: value\nb: -> b.txt\n");
+        write(new File(objectsDir, "b.txt"), "referenced");
+
+        XWikiObject xwikiObject = createObject("Space.Class-0.xwo");
+
+        assertEquals("Space.Class", xwikiObject.getClassName());
+        assertEquals(0, xwikiObject.getNumber());
+        /* Properties keep the order of the object file. */
+        assertEquals(Arrays.asList("c", "a", "b"), new ArrayList<String>(xwikiObject.getProperties()));
+        assertTrue(xwikiObject.getProperties().contains("a"));
+        assertFalse(xwikiObject.getProperties().contains("d"));
+        assertEquals("1", xwikiObject.getProperty("c"));
+        assertEquals("value", xwikiObject.getProperty("a"));
+        assertEquals("referenced", xwikiObject.getProperty("b"));
+        assertEquals(new File(objectsDir, "b.txt"), xwikiObject.getReferencedProperty("b").getFile());
+        assertNull(xwikiObject.getReferencedProperty("a"));
+        assertNull(xwikiObject.getProperty("d"));
+    }
+
+    @Test
+    public void testMissingProperties() throws Exception
+    {
+        write(new File(objectsDir, "Space.Class-0.xwo"), "b: value\n");
+
+        XWikiObject xwikiObject = createObject("Space.Class-0.xwo");
+
+        assertEquals(Arrays.asList("b"), new ArrayList<String>(xwikiObject.getProperties()));
+        assertNull(xwikiObject.getProperty("a"));
+        assertNull(xwikiObject.getProperty("c"));
+    }
+
+    @Test
+    public void testNamesAndValuesAreShared() throws Exception
+    {
+        write(new File(objectsDir, "Space.Class-0.xwo"), "a: shared\nb: 0\n");
+        write(new File(objectsDir, "Space.Class-1.xwo"), "a: shared\nb: 1\n");
+
+        XWikiObject first = createObject("Space.Class-0.xwo");
+        XWikiObject second = createObject("Space.Class-1.xwo");
+
+        assertSame(first.getXWikiClass(), second.getXWikiClass());
+        assertSame(first.getClassName(), second.getClassName());
+        assertSame(first.getProperties().iterator().next(), second.getProperties().iterator().next());
+        assertSame(first.getProperty("a"), second.getProperty("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUndescribedProperty() throws Exception
+    {
+        write(new File(objectsDir, "Space.Class-0.xwo"), "d: value\n");
+
+        createObject("Space.Class-0.xwo");
+    }
+
+    @Test
+    public void testPropertyWithoutAttributes() throws Exception
+    {
+        write(new File(objectsDir, "classinfo/Space.Class.xwc"),
+                "name: Space.Class\nproperties:\n  a:\n  b:\n    name: b\n");
+        write(new File(objectsDir, "Space.Class-0.xwo"), "a: value\n");
+
+        try {
+            createObject("Space.Class-0.xwo");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Property a is not described in class Space.Class", e.getMessage());
+        }
+    }
+
+    private XWikiObject createObject(String fileName) throws Exception
+    {
+        return XWikiObject.createFromFile(null, new File(objectsDir, fileName), classRegistry);
+    }
+
+    private void write(File file, String content) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        IOUtils.write(content, out);
+        out.close();
+    }
+}
@@ -0,0 +1,163 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.xwiki.contrib.xwikifs.model.XWikiClassRegistry;
+
+/**
+ * AbstractXWikiFSMojo.
+ *
+ * Base class for the XWikiFS Mojos. The Mojos are thread-safe: their only static state is the class registry of each
+ * build, shared so that the modules of a multi-module wiki, which usually have their own copies of the same class
+ * files, parse each class once per build instead of once per module, whatever the number of threads building them.
+ * The XML of the classes is cached by class, and the YAML engines by thread, so sharing the classes also shares their
+ * rendering and the YAML engines of the threads building several modules.
+ *
+ * @version $Id$
+ */
+public abstract class AbstractXWikiFSMojo extends AbstractMojo
+{
+    /**
+     * The class registries, by build request. Builds are identified by their request and not by their session, since
+     * some Maven versions (e.g. 3.1.0 to 3.2.5) give a clone of the session to each module of a parallel build, while
+     * the clones share the request. Requests are weakly referenced so that their classes are released with them, e.g.
+     * when several builds run in the same JVM. Guarded by itself.
+     */
+    private static final Map<MavenExecutionRequest, XWikiClassRegistry> CLASS_REGISTRIES =
+            new WeakHashMap<MavenExecutionRequest, XWikiClassRegistry>();
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    protected MavenProject project;
+
+    @Parameter(defaultValue = "${session}", readonly = true)
+    protected MavenSession session;
+
+    @Parameter(property = "outputDirectory", defaultValue = "${project.build.directory}")
+    protected File outputDirectory;
+
+    @Parameter(property = "parallelism", defaultValue = "1")
+    protected int parallelism;
+
+    /**
+     * Directories containing XWiki document data, packaged together (default: src/main/resources).
+     */
+    @Parameter
+    protected List<File> roots;
+
+    /**
+     * Patterns of the spaces to include, with * and ? wildcards (default: all spaces).
+     */
+    @Parameter
+    protected List<String> includes;
+
+    /**
+     * Patterns of the spaces to exclude, with * and ? wildcards.
+     */
+    @Parameter
+    protected List<String> excludes;
+
+    /**
+     * File of the tree index, used for only scanning the directories that changed since the previous build (default:
+     * no index).
+     */
+    @Parameter(property = "index")
+    protected File index;
+
+    /**
+     * Build byte-identical XARs from identical sources. Without {@link #outputTimestamp}, all the dates of the XAR are
+     * set to 1980-01-01 instead of the file modification dates, which change with each checkout.
+     */
+    @Parameter(property = "reproducible", defaultValue = "false")
+    protected boolean reproducible;
+
+    /**
+     * Fixed date used in the XAR, in seconds since the epoch or in ISO-8601 format. Setting it also enables the
+     * reproducible mode, following the Maven convention for reproducible builds.
+     */
+    @Parameter(defaultValue = "${project.build.outputTimestamp}")
+    protected String outputTimestamp;
+
+    /**
+     * Write compact XML, without indentation, instead of pretty printed XML.
+     */
+    @Parameter(property = "compact", defaultValue = "false")
+    protected boolean compact;
+
+    /**
+     * @return an XWikiFS for the project resources, configured with the Mojo parameters.
+     */
+    protected XWikiFS createXWikiFS()
+    {
+        XWikiFS xwikiFS = new XWikiFS(roots != null && !roots.isEmpty() ? roots
+                : Collections.singletonList(getResourcesDirectory()));
+        if (includes != null) {
+            xwikiFS.setIncludes(includes);
+        }
+        if (excludes != null) {
+            xwikiFS.setExcludes(excludes);
+        }
+        xwikiFS.setParallelism(parallelism);
+        xwikiFS.setIndexFile(index);
+        xwikiFS.setTimestamp(XWikiFS.parseTimestamp(outputTimestamp));
+        xwikiFS.setReproducible(reproducible || xwikiFS.getTimestamp() != null);
+        xwikiFS.setPrettyPrint(!compact);
+        if (session != null) {
+            xwikiFS.setClassRegistry(getClassRegistry(session));
+        }
+
+        return xwikiFS;
+    }
+
+    /**
+     * @param session the Maven session of the build.
+     * @return the class registry shared by the modules of the build.
+     */
+    protected static XWikiClassRegistry getClassRegistry(MavenSession session)
+    {
+        MavenExecutionRequest request = session.getRequest();
+
+        synchronized (CLASS_REGISTRIES) {
+            XWikiClassRegistry classRegistry = CLASS_REGISTRIES.get(request);
+            if (classRegistry == null) {
+                classRegistry = new XWikiClassRegistry();
+                CLASS_REGISTRIES.put(request, classRegistry);
+            }
+
+            return classRegistry;
+        }
+    }
+
+    /**
+     * @return the XAR file generated for the project.
+     */
+    protected File getOutputFile()
+    {
+        return new File(outputDirectory, String.format("%s.xar", project.getArtifactId()));
+    }
+
+    protected File getResourcesDirectory()
+    {
+        return new File(String.format("%s/src/main/resources", project.getBasedir().getAbsolutePath())
+                .replace("/", File.separator));
+    }
+
+    protected void logStackTrace(Throwable t, Log log)
+    {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        t.printStackTrace(pw);
+        log.error(sw.toString());
+    }
+}
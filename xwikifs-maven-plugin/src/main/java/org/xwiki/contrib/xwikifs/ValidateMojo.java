@@ -0,0 +1,34 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+
+/**
+ * Validate Mojo: checks all the documents of the project without building the XAR, and fails listing every invalid
+ * file.
+ */
+@Mojo(name = "validate", defaultPhase = LifecyclePhase.VALIDATE, threadSafe = true)
+public class ValidateMojo extends AbstractXWikiFSMojo
+{
+    public void execute() throws MojoExecutionException, MojoFailureException
+    {
+        Log log = getLog();
+
+        List<XWikiFSValidator.ValidationError> errors;
+        try {
+            errors = new XWikiFSValidator(createXWikiFS()).validate();
+        } catch (Exception e) {
+            logStackTrace(e, log);
+            throw new MojoExecutionException("Error while validating XWikiFS", e);
+        }
+
+        if (!errors.isEmpty()) {
+            throw new MojoFailureException(String.format("XWikiFS validation failed with %d errors", errors.size()));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.xwiki.contrib.xwikifs;
+
+import java.io.File;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Watch Mojo: keeps the project XAR up to date while its sources are being edited. The goal runs until Maven is
+ * stopped.
+ */
+@Mojo(name = "watch", threadSafe = true)
+public class WatchMojo extends AbstractXWikiFSMojo
+{
+    /**
+     * Maintain an exploded XAR in a directory named after the artifact instead of a XAR file.
+     */
+    @Parameter(property = "exploded", defaultValue = "false")
+    protected boolean exploded;
+
+    @Parameter(property = "delay", defaultValue = "200")
+    protected long delay;
+
+    public void execute() throws MojoExecutionException
+    {
+        Log log = getLog();
+
+        File output = getOutputFile();
+        if (exploded) {
+            output = new File(outputDirectory, project.getArtifactId());
+            output.mkdirs();
+        } else if (!outputDirectory.exists()) {
+            outputDirectory.mkdirs();
+        }
+
+        XARWatcher watcher = new XARWatcher(createXWikiFS(), output);
+        watcher.setDelay(delay);
+
+        try {
+            watcher.run();
+        } catch (Exception e) {
+            logStackTrace(e, log);
+            throw new MojoExecutionException("Error while watching XWikiFS", e);
+        }
+    }
+}
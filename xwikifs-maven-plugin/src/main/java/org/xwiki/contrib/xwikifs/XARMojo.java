@@ -1,47 +1,203 @@
 package org.xwiki.contrib.xwikifs;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
-import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
 
 /**
  * XAR Mojo
  */
-@Mojo(name = "xar", defaultPhase = LifecyclePhase.PROCESS_RESOURCES)
-public class XARMojo extends AbstractMojo
+@Mojo(name = "xar", defaultPhase = LifecyclePhase.PROCESS_RESOURCES, threadSafe = true)
+public class XARMojo extends AbstractXWikiFSMojo
 {
+    @Parameter(property = "cacheDirectory", defaultValue = "${project.build.directory}/xwikifs-cache")
+    protected File cacheDirectory;
+
+    @Parameter(property = "useCache", defaultValue = "true")
+    protected boolean useCache;
+
+    /**
+     * Deflate level, from 0 to 9, or -1 for the default level.
+     */
+    @Parameter(property = "compressionLevel", defaultValue = "-1")
+    protected int compressionLevel;
+
+    /**
+     * Compression of the pages with already-compressed attachments: deflate, fast (Huffman coding only) or store.
+     */
+    @Parameter(property = "attachmentCompression", defaultValue = "deflate")
+    protected String attachmentCompression;
+
+    /**
+     * Size in bytes of already-compressed attachments above which a page uses the attachment compression.
+     */
+    @Parameter(property = "attachmentThreshold", defaultValue = "65536")
+    protected long attachmentThreshold;
+
+    /**
+     * Compress entries in parallel when the parallelism is greater than 1.
+     */
+    @Parameter(property = "parallelCompression", defaultValue = "false")
+    protected boolean parallelCompression;
+
+    /**
+     * Split the XAR into shards built concurrently: none, space (one XAR per space) or size. Shards are attached to
+     * the project with the shard name as classifier, in addition to the complete XAR.
+     */
+    @Parameter(property = "shardBy", defaultValue = "none")
+    protected String shardBy;
+
+    /**
+     * Maximum size in bytes of the sources of a shard when sharding by size.
+     */
+    @Parameter(property = "shardSize", defaultValue = "104857600")
+    protected long shardSize;
+
+    /**
+     * Baseline of a delta XAR: a previous XAR or a manifest of page hashes. When set, a XAR containing only the pages
+     * added or modified since the baseline is also written and attached to the project with the delta classifier.
+     */
+    @Parameter(property = "deltaBaseline")
+    protected File deltaBaseline;
+
+    /**
+     * File where the page hashes of the whole XAR are written when building a delta, to be used as the next baseline.
+     */
+    @Parameter(property = "deltaManifest", defaultValue = "${project.build.directory}/xwikifs-manifest.txt")
+    protected File deltaManifest;
+
+    /**
+     * Build the XAR even if its sources and the configuration didn't change since the previous build.
+     */
+    @Parameter(property = "force", defaultValue = "false")
+    protected boolean force;
+
+    /**
+     * Also compare the content of the source files, and not only their sizes and modification dates, when checking
+     * whether the XAR is up to date.
+     */
+    @Parameter(property = "checkContent", defaultValue = "false")
+    protected boolean checkContent;
+
+    @Parameter(defaultValue = "${plugin.version}", readonly = true)
+    protected String pluginVersion;
+
     @Component
-    protected MavenProject project;
+    protected MavenProjectHelper projectHelper;
 
-    @Parameter(property = "outputDirectory", defaultValue = "${project.build.directory}")
-    protected File outputDirectory;
+    /**
+     * The files written by the build, other than the XAR, with the classifier they are attached to the project with.
+     * Files that are not attached to the project have an empty classifier.
+     */
+    private final Map<File, String> outputs = new LinkedHashMap<File, String>();
+
+    /**
+     * Log the time spent in each build phase, the bytes read and written and the slowest documents.
+     */
+    @Parameter(property = "metrics", defaultValue = "false")
+    protected boolean metrics;
+
+    /**
+     * File where the build metrics are written as JSON. Setting it enables the build metrics.
+     */
+    @Parameter(property = "metricsReport")
+    protected File metricsReport;
+
+    /**
+     * Number of slowest documents listed in the build metrics.
+     */
+    @Parameter(property = "slowestDocuments", defaultValue = "10")
+    protected int slowestDocuments;
 
     public void execute() throws MojoExecutionException
     {
         Log log = getLog();
-        File resourcesDirectory = getResourcesDirectory();
 
-        XWikiFS xwikiFS = new XWikiFS(resourcesDirectory);
+        XWikiFS xwikiFS = createXWikiFS();
+        if (useCache) {
+            xwikiFS.setCacheDirectory(cacheDirectory);
+        }
+
+        try {
+            CompressionPolicy compressionPolicy = new CompressionPolicy();
+            compressionPolicy.setLevel(compressionLevel);
+            compressionPolicy.setAttachmentCompression(
+                    CompressionPolicy.AttachmentCompression.parse(attachmentCompression));
+            compressionPolicy.setAttachmentThreshold(attachmentThreshold);
+            xwikiFS.setCompressionPolicy(compressionPolicy);
+
+            ShardingPolicy shardingPolicy = new ShardingPolicy();
+            shardingPolicy.setMode(ShardingPolicy.Mode.parse(shardBy));
+            shardingPolicy.setShardSize(shardSize);
+            xwikiFS.setShardingPolicy(shardingPolicy);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        xwikiFS.setParallelCompression(parallelCompression);
+        if (metrics || metricsReport != null) {
+            BuildMetrics buildMetrics = new BuildMetrics();
+            try {
+                buildMetrics.setSlowestDocuments(slowestDocuments);
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException(e.getMessage(), e);
+            }
+            xwikiFS.setMetrics(buildMetrics);
+        }
 
         if (!outputDirectory.exists()) {
             outputDirectory.mkdirs();
         }
 
-        File outputFile = new File(outputDirectory,
-                String.format("%s.xar", project.getArtifactId()));
+        File outputFile = getOutputFile();
+
+        /* The fingerprint is computed before building, so that sources changed during the build are built again. */
+        File fingerprintFile = new File(outputDirectory, String.format("%s.xar.fingerprint", project.getArtifactId()));
+        File referencesFile = new File(outputDirectory, String.format("%s.xar.references", project.getArtifactId()));
+        Set<File> externalFiles = readExternalFiles(referencesFile);
+        String fingerprint;
+        try {
+            fingerprint = xwikiFS.computeFingerprint(getConfiguration(xwikiFS), checkContent, externalFiles);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error while checking whether the XAR is up to date", e);
+        }
+        if (!force && reuseOutputs(fingerprintFile, fingerprint, outputFile)) {
+            return;
+        }
+        fingerprintFile.delete();
+
+        /* The baseline can be one of the files written by the build, such as the XAR of the previous build. */
+        XARDelta delta = null;
+        if (deltaBaseline != null) {
+            try {
+                delta = XARDelta.load(deltaBaseline);
+            } catch (Exception e) {
+                throw new MojoExecutionException(String.format("Error while reading the delta baseline %s",
+                        deltaBaseline), e);
+            }
+        }
 
         log.info(String.format("Writing XAR to %s...", outputFile));
 
+        if (xwikiFS.getShardingPolicy().getMode() != ShardingPolicy.Mode.NONE) {
+            writeShards(xwikiFS, outputFile);
+        }
+
         FileOutputStream out = null;
 
         try {
@@ -61,20 +217,226 @@ public class XARMojo extends AbstractMojo
             }
         }
 
+        if (metricsReport != null) {
+            try {
+                metricsReport.getAbsoluteFile().getParentFile().mkdirs();
+                xwikiFS.getMetrics().writeJSON(metricsReport);
+                outputs.put(metricsReport, "");
+            } catch (Exception e) {
+                throw new MojoExecutionException("Error while writing the build metrics report", e);
+            }
+        }
+
+        project.getArtifact().setFile(outputFile);
+
+        if (delta != null) {
+            writeDelta(xwikiFS, delta);
+        }
+
+        try {
+            Set<File> builtExternalFiles = xwikiFS.getExternalFiles();
+            if (!builtExternalFiles.equals(externalFiles)) {
+                /*
+                 * The fingerprint doesn't cover the files the documents now reference outside of their directories.
+                 * Cover them, unless the sources changed during the build, in which case the next build runs anyway.
+                 */
+                if (fingerprint.equals(xwikiFS.computeFingerprint(getConfiguration(xwikiFS), checkContent,
+                        externalFiles))) {
+                    fingerprint = xwikiFS.computeFingerprint(getConfiguration(xwikiFS), checkContent,
+                            builtExternalFiles);
+                }
+                writeExternalFiles(referencesFile, builtExternalFiles);
+            }
+
+            writeFingerprint(fingerprintFile, fingerprint);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error while writing the fingerprint of the XAR", e);
+        }
+    }
+
+    /**
+     * Read the files outside of the document directories referenced by the documents of the previous build.
+     *
+     * @return the files, empty if they are unknown.
+     */
+    private Set<File> readExternalFiles(File referencesFile)
+    {
+        Set<File> externalFiles = new TreeSet<File>();
+        if (referencesFile.isFile()) {
+            try {
+                BufferedReader reader = new BufferedReader(new StringReader(FileContent.readString(referencesFile)));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    externalFiles.add(new File(line));
+                }
+            } catch (IOException e) {
+                getLog().warn(String.format("Ignoring invalid references %s: %s", referencesFile, e.getMessage()));
+                externalFiles.clear();
+            }
+        }
+
+        return externalFiles;
+    }
+
+    /**
+     * Write the files outside of the document directories referenced by the documents, covered by the fingerprint of
+     * the next build.
+     */
+    private void writeExternalFiles(File referencesFile, Set<File> externalFiles) throws IOException
+    {
+        if (externalFiles.isEmpty()) {
+            referencesFile.delete();
+            return;
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(referencesFile), FileContent.UTF8);
+        try {
+            for (File externalFile : externalFiles) {
+                writer.write(String.format("%s\n", externalFile.getAbsolutePath()));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return a description of the parameters affecting the build that are not part of the XWikiFS configuration.
+     */
+    private String getConfiguration(XWikiFS xwikiFS)
+    {
+        StringBuilder configuration = new StringBuilder();
+        configuration.append(String.format("pluginVersion=%s,roots=%s,includes=%s,excludes=%s,", pluginVersion,
+                xwikiFS.getRoots(), includes, excludes));
+        configuration.append(String.format("compressionLevel=%d,attachmentCompression=%s,attachmentThreshold=%d,"
+                + "parallelCompression=%s,", compressionLevel, attachmentCompression, attachmentThreshold,
+                parallelCompression));
+        configuration.append(String.format("shardBy=%s,shardSize=%d,metricsReport=%s,", shardBy, shardSize,
+                metricsReport));
+        configuration.append(String.format("output=%s", getOutputFile().getAbsolutePath()));
+        if (deltaBaseline != null) {
+            configuration.append(String.format(",deltaBaseline=%s,%d,%d,deltaManifest=%s",
+                    deltaBaseline.getAbsolutePath(), deltaBaseline.length(), deltaBaseline.lastModified(),
+                    deltaManifest));
+        }
+
+        return configuration.toString();
+    }
+
+    /**
+     * Reuse the files of the previous build if they have been built from the same sources and configuration, attaching
+     * them to the project again.
+     *
+     * @return true if the files of the previous build have been reused.
+     */
+    private boolean reuseOutputs(File fingerprintFile, String fingerprint, File outputFile)
+            throws MojoExecutionException
+    {
+        if (!fingerprintFile.isFile() || !outputFile.isFile()) {
+            return false;
+        }
+
+        Map<File, String> previousOutputs = new LinkedHashMap<File, String>();
+        try {
+            BufferedReader reader = new BufferedReader(new StringReader(FileContent.readString(fingerprintFile)));
+            if (!fingerprint.equals(reader.readLine())) {
+                return false;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 2);
+                File file = new File(parts[1]);
+                if (!file.isFile()) {
+                    return false;
+                }
+                previousOutputs.put(file, parts[0]);
+            }
+        } catch (Exception e) {
+            getLog().warn(String.format("Ignoring invalid fingerprint %s: %s", fingerprintFile, e.getMessage()));
+
+            return false;
+        }
+
+        getLog().info(String.format("XAR %s is up to date, skipping the build (set force to build it anyway)",
+                outputFile));
+
         project.getArtifact().setFile(outputFile);
+        for (Map.Entry<File, String> output : previousOutputs.entrySet()) {
+            if (!output.getValue().isEmpty()) {
+                projectHelper.attachArtifact(project, "xar", output.getValue(), output.getKey());
+            }
+        }
+
+        return true;
     }
 
-    protected File getResourcesDirectory()
+    /**
+     * Write the fingerprint of the sources and configuration of the build, along with the files written by the build.
+     */
+    private void writeFingerprint(File fingerprintFile, String fingerprint) throws IOException
     {
-        return new File(String.format("%s/src/main/resources", project.getBasedir().getAbsolutePath())
-                .replace("/", File.separator));
+        Writer writer = new OutputStreamWriter(new FileOutputStream(fingerprintFile), FileContent.UTF8);
+        try {
+            writer.write(fingerprint);
+            writer.write('\n');
+            for (Map.Entry<File, String> output : outputs.entrySet()) {
+                writer.write(String.format("%s\t%s\n", output.getValue(), output.getKey().getAbsolutePath()));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the delta XAR and attach it to the project. With the build cache, the documents serialized for the
+     * complete XAR are not serialized again for the delta.
+     *
+     * @param delta the delta against the baseline, loaded before any file of the build is written.
+     */
+    private void writeDelta(XWikiFS xwikiFS, XARDelta delta) throws MojoExecutionException
+    {
+        File deltaFile = new File(outputDirectory, String.format("%s-delta.xar", project.getArtifactId()));
+
+        getLog().info(String.format("Writing the delta against %s to %s...", deltaBaseline, deltaFile));
+
+        try {
+            FileOutputStream out = new FileOutputStream(deltaFile);
+            try {
+                xwikiFS.writeDeltaXAR(out, delta);
+            } finally {
+                out.close();
+            }
+
+            delta.writeManifest(deltaManifest);
+            outputs.put(deltaManifest, "");
+        } catch (Exception e) {
+            logStackTrace(e, getLog());
+            throw new MojoExecutionException("Error while writing the delta XAR", e);
+        }
+
+        projectHelper.attachArtifact(project, "xar", "delta", deltaFile);
+        outputs.put(deltaFile, "delta");
     }
 
-    protected void logStackTrace(Throwable t, Log log)
+    /**
+     * Write the shards of the XAR and attach them to the project. With the build cache, the documents serialized for
+     * the shards are not serialized again for the complete XAR.
+     */
+    private void writeShards(XWikiFS xwikiFS, File outputFile) throws MojoExecutionException
     {
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        t.printStackTrace(pw);
-        log.error(sw.toString());
+        Map<String, File> shards;
+        try {
+            shards = xwikiFS.writeShardedXAR(outputFile);
+        } catch (Exception e) {
+            logStackTrace(e, getLog());
+            throw new MojoExecutionException("Error while writing XAR shards", e);
+        }
+
+        for (Map.Entry<String, File> shard : shards.entrySet()) {
+            if (!shard.getKey().isEmpty()) {
+                projectHelper.attachArtifact(project, "xar", shard.getKey(), shard.getValue());
+                outputs.put(shard.getValue(), shard.getKey());
+            }
+        }
     }
 }